@@ -0,0 +1,46 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import bench.Scenarios;
+
+/*
+ * The `LibraryScenarios` class hands the scenarios of LibraryBenchmark to the JMH benchmarks
+ * in the bench package, so both measure the same operations.
+ */
+public class LibraryScenarios implements Scenarios {
+
+	// Users whose transaction files were written
+	private final List<User> written = new ArrayList<>();
+
+	@Override
+	public Map<String, Operation> users(int count) {
+		Library library = new Library(LibraryBenchmark.generateUsers(count));
+		return adapt(LibraryBenchmark.userOperations(library, count));
+	}
+
+	@Override
+	public Map<String, Operation> history(int length) throws IOException {
+		Library library = new Library(LibraryBenchmark.generateUsers(LibraryBenchmark.HISTORY_USERS));
+		List<User> users = library.getUserList();
+		written.addAll(users);
+		LibraryBenchmark.writeHistories(users, length);
+		return adapt(LibraryBenchmark.historyOperations(library));
+	}
+
+	@Override
+	public void close() {
+		LibraryBenchmark.deleteFiles(written);
+		written.clear();
+		new File("user_data.txt").delete();
+	}
+
+	private static Map<String, Operation> adapt(Map<String, LibraryBenchmark.Operation> operations) {
+		Map<String, Operation> adapted = new HashMap<>();
+		operations.forEach((name, operation) -> adapted.put(name, operation::run));
+		return adapted;
+	}
+}
@@ -0,0 +1,156 @@
+package bench;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/*
+ * The `LibraryBenchmarks` class runs the LibraryBenchmark scenarios under JMH: loginUser,
+ * transferMoney between random accounts and between the same two, addUser, getUserTransactions,
+ * getTransactionPage, getUserDirectory, saveUsers and User.toString. The user count and the
+ * history length are JMH parameters and the contention comes from the JMH thread count, e.g.
+ *   gradle jmh -Pjmh="-t 8 -p users=1000,100000 -prof gc"
+ * Like LibraryBenchmark, saveUsers and the history benchmarks write their files in the working
+ * directory.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LibraryBenchmarks {
+
+	// A library of generated users
+	@State(Scope.Benchmark)
+	public static class Users {
+
+		@Param({"1000", "100000"})
+		public int users;
+
+		private Scenarios scenarios;
+		private Scenarios.Operation login;
+		private Scenarios.Operation transferRandom;
+		private Scenarios.Operation transferHot;
+		private Scenarios.Operation userToString;
+		private Scenarios.Operation userDirectoryPage;
+		private Scenarios.Operation saveUsers;
+		private Scenarios.Operation addUser;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			scenarios = Scenarios.load();
+			Map<String, Scenarios.Operation> operations = scenarios.users(users);
+			login = operations.get("login");
+			transferRandom = operations.get("transfer_random");
+			transferHot = operations.get("transfer_hot");
+			userToString = operations.get("user_to_string");
+			userDirectoryPage = operations.get("user_directory_page");
+			saveUsers = operations.get("save_users");
+			addUser = operations.get("add_user");
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			scenarios.close();
+		}
+	}
+
+	// A library of generated users with transaction files
+	@State(Scope.Benchmark)
+	public static class History {
+
+		@Param({"10", "1000", "10000"})
+		public int history;
+
+		private Scenarios scenarios;
+		private Scenarios.Operation userTransactions;
+		private Scenarios.Operation transactionPage;
+
+		@Setup(Level.Trial)
+		public void setup() throws IOException {
+			scenarios = Scenarios.load();
+			Map<String, Scenarios.Operation> operations = scenarios.history(history);
+			userTransactions = operations.get("get_user_transactions");
+			transactionPage = operations.get("get_transaction_page");
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			scenarios.close();
+		}
+	}
+
+	// The random numbers of one benchmark thread, seeded by its index as in LibraryBenchmark
+	@State(Scope.Thread)
+	public static class Seed {
+
+		private Random random;
+
+		@Setup(Level.Trial)
+		public void setup(ThreadParams thread) {
+			random = new Random(thread.getThreadIndex());
+		}
+	}
+
+	@Benchmark
+	public long login(Users state, Seed seed) {
+		return state.login.run(seed.random);
+	}
+
+	@Benchmark
+	public long transferRandom(Users state, Seed seed) {
+		return state.transferRandom.run(seed.random);
+	}
+
+	// Every thread moves money back and forth between the same two accounts
+	@Benchmark
+	public long transferHot(Users state, Seed seed) {
+		return state.transferHot.run(seed.random);
+	}
+
+	@Benchmark
+	public long userToString(Users state, Seed seed) {
+		return state.userToString.run(seed.random);
+	}
+
+	@Benchmark
+	public long userDirectoryPage(Users state, Seed seed) {
+		return state.userDirectoryPage.run(seed.random);
+	}
+
+	@Benchmark
+	public long saveUsers(Users state, Seed seed) {
+		return state.saveUsers.run(seed.random);
+	}
+
+	@Benchmark
+	public long addUser(Users state, Seed seed) {
+		return state.addUser.run(seed.random);
+	}
+
+	@Benchmark
+	public long getUserTransactions(History state, Seed seed) {
+		return state.userTransactions.run(seed.random);
+	}
+
+	@Benchmark
+	public long getTransactionPage(History state, Seed seed) {
+		return state.transactionPage.run(seed.random);
+	}
+}
@@ -0,0 +1,46 @@
+package bench;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * The `Scenarios` interface gives the JMH benchmarks the LibraryBenchmark scenarios. JMH does
+ * not accept benchmarks in the default package and a package can not name the classes of the
+ * default package, so LibraryScenarios implements this interface next to the library and
+ * load() creates it by name.
+ */
+public interface Scenarios {
+
+	/**
+	 * One operation of a benchmark. It returns a value derived from its result, which the
+	 * benchmark returns to JMH.
+	 */
+	interface Operation {
+		long run(Random random);
+	}
+
+	/**
+	 * Creates a library with the given number of generated users and returns its benchmarks
+	 * by name.
+	 */
+	Map<String, Operation> users(int count);
+
+	/**
+	 * Creates a library of generated users whose transaction files have the given number of
+	 * entries and returns its benchmarks by name.
+	 */
+	Map<String, Operation> history(int length) throws IOException;
+
+	// Deletes the files written by the benchmarks
+	void close();
+
+	// Creates the scenarios of the default package
+	static Scenarios load() {
+		try {
+			return (Scenarios) Class.forName("LibraryScenarios").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("LibraryScenarios is not on the class path", e);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/*
+ * The `AccountColumns` class holds the accounts of a UserStore column by column instead of
+ * object by object. Every account gets a slot when it is registered; its balance is stored at
+ * that slot of a column of longs and its User at the same slot of a column of references.
+ * The columns are made of chunks of 65,536 slots that are never moved or copied, so a User can
+ * keep a reference to the chunk holding its balance, and a scan of every account walks
+ * contiguous arrays instead of following a linked node per user.
+ * A slot whose account turns out not to be registered, as its PPS number or email address is
+ * taken, is released and handed out again by the next reserve, so failed registrations do not
+ * grow the columns.
+ */
+public class AccountColumns {
+
+	private static final int CHUNK_BITS = 16;
+	private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+	// Volatile access to the elements of a column of users
+	private static final VarHandle USERS = MethodHandles.arrayElementVarHandle(User[].class);
+
+	// Chunks of the balance column and of the user column, replaced by longer arrays as they grow
+	private volatile long[][] balances = new long[0][];
+	private volatile User[][] users = new User[0][];
+	// Number of slots handed out, only changed while holding this
+	private volatile int size;
+	// Released slots that hold no user, handed out again first, guarded by this
+	private final ArrayDeque<Integer> free = new ArrayDeque<>();
+
+	/**
+	 * Reserves a released slot, or else the next slot, and returns it.
+	 */
+	public synchronized int reserve() {
+		Integer released = free.pollLast();
+		if (released != null) {
+			return released;
+		}
+		int slot = size;
+		if (slot == balances.length * CHUNK_SIZE) {
+			// Add one chunk to each column
+			long[][] grownBalances = Arrays.copyOf(balances, balances.length + 1);
+			grownBalances[balances.length] = new long[CHUNK_SIZE];
+			User[][] grownUsers = Arrays.copyOf(users, users.length + 1);
+			grownUsers[users.length] = new User[CHUNK_SIZE];
+			balances = grownBalances;
+			users = grownUsers;
+		}
+		size = slot + 1;
+		return slot;
+	}
+
+	/**
+	 * Gives back a reserved slot that no user was stored at, for the next reserve.
+	 */
+	public synchronized void release(int slot) {
+		free.addLast(slot);
+	}
+
+	/**
+	 * Returns the chunk of the balance column that holds the given slot.
+	 */
+	public long[] balanceChunk(int slot) {
+		return balances[slot >>> CHUNK_BITS];
+	}
+
+	/**
+	 * Returns the index of a slot within its chunk.
+	 */
+	public static int offset(int slot) {
+		return slot & (CHUNK_SIZE - 1);
+	}
+
+	/**
+	 * Stores the user registered at a slot, making it visible to scans.
+	 */
+	public void setUser(int slot, User user) {
+		USERS.setRelease(users[slot >>> CHUNK_BITS], offset(slot), user);
+	}
+
+	/**
+	 * Returns the user registered at a slot, or null if the slot holds no user.
+	 */
+	public User getUser(int slot) {
+		return (User) USERS.getAcquire(users[slot >>> CHUNK_BITS], offset(slot));
+	}
+
+	/**
+	 * Returns the number of slots handed out, some of which may hold no user.
+	 */
+	public int size() {
+		return size;
+	}
+}
@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/*
+ * The `AccountTable` class stores the accounts in a memory-mapped file of fixed-width records.
+ * Every account has a record at a fixed position, so a changed balance or password is written
+ * in place and nothing else in the file is touched:
+ *   offset   0  balance in cents (8 bytes)
+ *   offset   8  PPS number  (1 length byte and up to 15 bytes of UTF-8)
+ *   offset  24  name        (1 length byte and up to 63 bytes)
+ *   offset  88  email       (1 length byte and up to 63 bytes)
+ *   offset 152  password    (1 length byte and up to 63 bytes)
+ *   offset 216  address     (1 length byte and up to 103 bytes)
+ * The file starts with a 64-byte header holding a magic number, the format version and the
+ * number of records. It is mapped in segments of 65,536 records, so it grows by mapping one
+ * more segment and never has to be remapped.
+ * Writes are not durable until force() is called; the Library keeps its journal as the
+ * write-ahead log and only writes records whose changes are already in the journal.
+ */
+public class AccountTable {
+
+	private static final int MAGIC = 0x41434354; // "ACCT"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 64;
+	private static final int COUNT_OFFSET = 8;
+
+	static final int RECORD_SIZE = 320;
+	private static final int SEGMENT_RECORDS = 65_536;
+
+	// Offset and width of each field of a record
+	private static final int BALANCE = 0;
+	private static final int PPS = 8, PPS_WIDTH = 16;
+	private static final int NAME = 24, NAME_WIDTH = 64;
+	private static final int MAIL = 88, MAIL_WIDTH = 64;
+	private static final int PASSWORD = 152, PASSWORD_WIDTH = 64;
+	private static final int ADDRESS = 216, ADDRESS_WIDTH = 104;
+
+	private final FileChannel channel;
+	private final MappedByteBuffer header;
+	// Mapped segments of records, replaced by a longer array when the table grows
+	private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+	// Number of records in the table, guarded by this
+	private int count;
+
+	private AccountTable(FileChannel channel) throws IOException {
+		this.channel = channel;
+		header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		if (header.getInt(0) == 0) {
+			// A new file, write its header
+			header.putInt(0, MAGIC).putInt(4, VERSION).putInt(COUNT_OFFSET, 0);
+		} else if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+			throw new IOException("Not an account table of version " + VERSION);
+		}
+		count = header.getInt(COUNT_OFFSET);
+		// Map the segments that hold the existing records
+		while ((long) segments.length * SEGMENT_RECORDS < count) {
+			addSegment();
+		}
+	}
+
+	/**
+	 * Opens the account table in the given file, creating an empty one if it does not exist.
+	 */
+	public static AccountTable open(String fileName) throws IOException {
+		Path path = Paths.get(fileName);
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		return new AccountTable(channel);
+	}
+
+	/**
+	 * Checks whether the fields of a user fit in a record.
+	 */
+	public static boolean fits(User user) {
+		return fits(user.getPpsNum(), PPS_WIDTH) && fits(user.getName(), NAME_WIDTH)
+				&& fits(user.getMail(), MAIL_WIDTH) && fits(user.getPassword().toString(), PASSWORD_WIDTH)
+				&& fits(user.getAddress().toString(), ADDRESS_WIDTH);
+	}
+
+	/**
+	 * Checks whether a password fits in a record.
+	 */
+	public static boolean fitsPassword(String password) {
+		return fits(password, PASSWORD_WIDTH);
+	}
+
+	/**
+	 * Returns the number of records in the table.
+	 */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Creates a User for every record whose PPS number is accepted and adds it to the user store.
+	 * A record that was being added when the server stopped has no PPS number and is skipped.
+	 */
+	public synchronized void load(UserStore users, Predicate<String> accept) {
+		for (int slot = 0; slot < count; slot++) {
+			ByteBuffer segment = segments[slot / SEGMENT_RECORDS];
+			int offset = (slot % SEGMENT_RECORDS) * RECORD_SIZE;
+			String ppsNum = getString(segment, offset + PPS);
+			if (ppsNum.isEmpty() || !accept.test(ppsNum)) {
+				continue;
+			}
+			User user = new User(getString(segment, offset + NAME), ppsNum, getString(segment, offset + MAIL),
+					getString(segment, offset + PASSWORD), getString(segment, offset + ADDRESS),
+					segment.getLong(offset + BALANCE));
+			user.setSlot(slot);
+			users.add(user);
+		}
+	}
+
+	/**
+	 * Writes the balance and password of an account to its record, adding a record for an
+	 * account that is not in the table yet. Fails if the user does not fit in a record.
+	 */
+	public synchronized void write(User user, long balance, String password) throws IOException {
+		if (!fits(password, PASSWORD_WIDTH)) {
+			throw new IOException("Password of account " + user.getPpsNum() + " does not fit in the account table");
+		}
+		if (user.getSlot() < 0) {
+			add(user);
+		}
+		int slot = user.getSlot();
+		ByteBuffer segment = segments[slot / SEGMENT_RECORDS];
+		int offset = (slot % SEGMENT_RECORDS) * RECORD_SIZE;
+		segment.putLong(offset + BALANCE, balance);
+		putString(segment, offset + PASSWORD, PASSWORD_WIDTH, password);
+	}
+
+	/**
+	 * Writes every change made to the table to disk.
+	 */
+	public void force() {
+		header.force();
+		for (MappedByteBuffer segment : segments) {
+			segment.force();
+		}
+	}
+
+	/**
+	 * Closes the file, the mapped records stay valid until they are garbage collected.
+	 */
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	// Adds a record for a new account with its fixed fields, the caller holds this
+	private void add(User user) throws IOException {
+		if (!fits(user)) {
+			throw new IOException("Account " + user.getPpsNum() + " does not fit in a record of the account table");
+		}
+		if (count == (long) segments.length * SEGMENT_RECORDS) {
+			addSegment();
+		}
+		int slot = count;
+		ByteBuffer segment = segments[slot / SEGMENT_RECORDS];
+		int offset = (slot % SEGMENT_RECORDS) * RECORD_SIZE;
+		putString(segment, offset + NAME, NAME_WIDTH, user.getName());
+		putString(segment, offset + MAIL, MAIL_WIDTH, user.getMail());
+		putString(segment, offset + ADDRESS, ADDRESS_WIDTH, user.getAddress().toString());
+		// The PPS number marks the record as complete, so it is written last
+		putString(segment, offset + PPS, PPS_WIDTH, user.getPpsNum());
+		count++;
+		header.putInt(COUNT_OFFSET, count);
+		user.setSlot(slot);
+	}
+
+	// Maps one more segment of records at the end of the file, the caller holds this
+	private void addSegment() throws IOException {
+		MappedByteBuffer[] grown = Arrays.copyOf(segments, segments.length + 1);
+		long position = HEADER_SIZE + (long) segments.length * SEGMENT_RECORDS * RECORD_SIZE;
+		grown[segments.length] = channel.map(FileChannel.MapMode.READ_WRITE, position,
+				(long) SEGMENT_RECORDS * RECORD_SIZE);
+		segments = grown;
+	}
+
+	// Checks whether a string fits in a field of the given width
+	private static boolean fits(String value, int width) {
+		return value.getBytes(StandardCharsets.UTF_8).length < width;
+	}
+
+	// Writes a string as a length byte and its UTF-8 bytes
+	private static void putString(ByteBuffer segment, int offset, int width, String value) {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		segment.put(offset, (byte) bytes.length);
+		segment.put(offset + 1, bytes);
+		// Clear the rest of the field in case a longer value was stored before
+		for (int i = offset + 1 + bytes.length; i < offset + width; i++) {
+			segment.put(i, (byte) 0);
+		}
+	}
+
+	// Reads a string written by putString
+	private static String getString(ByteBuffer segment, int offset) {
+		int length = segment.get(offset) & 0xFF;
+		byte[] bytes = new byte[length];
+		segment.get(offset + 1, bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
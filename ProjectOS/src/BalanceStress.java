@@ -0,0 +1,200 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * The `BalanceStress` class checks that balance updates stay correct under contention, by
+ * running many threads against a few accounts and checking invariants that any lost or
+ * half-applied update would break:
+ *   lodge      every thread lodges one cent at a time into the same account; the balance must
+ *              grow by exactly the number of lodgements
+ *   mixed      threads lodge into and transfer between a few accounts, including transfers to
+ *              the sender's own account; the total must equal the starting money plus what was
+ *              lodged, no balance may go negative, not even right after a transfer, and every
+ *              transfer must appear once in the history of each side
+ *   replay     the mixed run again on a journaled Library, which is then read back from the
+ *              journal and snapshot; every balance must come back as it was in memory
+ * The parameters are system properties:
+ *   stress.threads   number of threads (default 8)
+ *   stress.accounts  number of accounts of the mixed runs (default 4)
+ *   stress.millis    time of each run in milliseconds (default 2000); a run also stops after
+ *                    1,000,000 operations, as every transfer is kept in memory
+ * The replay run writes the real files, so run it from an empty directory:
+ *   java -Dstress.threads=16 BalanceStress
+ * It prints one line per run and exits with status 1 if any check failed.
+ */
+public class BalanceStress {
+
+	// Balance every account starts with, in cents
+	private static final long OPENING_BALANCE = 1_000_00;
+	// Upper bound on the operations of a run
+	private static final long MAX_OPERATIONS = 1_000_000;
+
+	public static void main(String[] args) throws Exception {
+		int threads = Integer.getInteger("stress.threads", 8);
+		int accounts = Integer.getInteger("stress.accounts", 4);
+		long millis = Long.getLong("stress.millis", 2000);
+		if (new File("user_data.txt").exists()) {
+			System.out.println("BalanceStress writes user_data.txt and transaction files, run it from an empty directory.");
+			return;
+		}
+
+		System.out.println("run,threads,accounts,operations,result");
+		boolean passed = lodgeRun(threads, millis);
+		passed &= mixedRun(new Library(new UserStore()), "mixed", threads, accounts, millis) != null;
+		passed &= replayRun(threads, accounts, millis);
+		System.exit(passed ? 0 : 1);
+	}
+
+	// Lodges one cent at a time from every thread into one account
+	private static boolean lodgeRun(int threads, long millis) throws InterruptedException {
+		Library library = new Library(new UserStore());
+		List<User> users = register(library, 1);
+		User user = users.get(0);
+		LongAdder lodged = new LongAdder();
+		run(threads, millis, random -> {
+			library.lodgeMoney(user, 1);
+			lodged.increment();
+		});
+		long expected = OPENING_BALANCE + lodged.sum();
+		return report("lodge", threads, 1, lodged.sum(), user.getBalance() == expected,
+				"balance " + user.getBalance() + ", expected " + expected);
+	}
+
+	// Lodges into and transfers between a few accounts, and checks the invariants of the mixed
+	// run; returns the accounts, or null if a check failed
+	private static List<User> mixedRun(Library library, String name, int threads, int accounts, long millis)
+			throws InterruptedException {
+		List<User> users = register(library, accounts);
+		LongAdder lodged = new LongAdder();
+		LongAdder transfers = new LongAdder();
+		AtomicLong operations = new AtomicLong();
+		run(threads, millis, random -> {
+			User user = users.get(random.nextInt(accounts));
+			if (random.nextInt(4) == 0) {
+				long amount = 1 + random.nextInt(100);
+				library.lodgeMoney(user, amount);
+				lodged.add(amount);
+			} else {
+				// Some transfers go to the sender's own account
+				User recipient = users.get(random.nextInt(accounts));
+				if (library.transferMoney(user, recipient, 1 + random.nextInt(5_000)) == WireCodec.OK) {
+					transfers.increment();
+				}
+			}
+			operations.incrementAndGet();
+		});
+
+		long total = 0;
+		int sent = 0;
+		int received = 0;
+		String failure = null;
+		for (User user : users) {
+			total += user.getBalance();
+			if (user.getBalance() < 0) {
+				failure = user.getPpsNum() + " has a negative balance";
+			}
+			for (Transaction transaction : user.getTransactions()) {
+				if (transaction.type() == Transaction.Type.SENT) {
+					sent++;
+				} else {
+					received++;
+				}
+				if (transaction.balance() < 0) {
+					failure = user.getPpsNum() + " has a transaction with a negative balance after it";
+				}
+			}
+		}
+		long expected = accounts * OPENING_BALANCE + lodged.sum();
+		if (total != expected) {
+			failure = "total " + total + ", expected " + expected;
+		} else if (sent != transfers.sum() || received != transfers.sum()) {
+			failure = sent + " sent and " + received + " received in the histories, expected " + transfers.sum();
+		}
+		boolean passed = report(name, threads, accounts, operations.get(), failure == null, failure);
+		return passed ? users : null;
+	}
+
+	// Runs the mixed run on a journaled library, then reads the library back from its files
+	private static boolean replayRun(int threads, int accounts, long millis) throws InterruptedException {
+		Library library = new Library();
+		List<User> users = mixedRun(library, "replay_mixed", threads, accounts, millis);
+		if (users == null) {
+			return false;
+		}
+		// A compaction started by the run rewrites the files, let it finish first
+		while (library.isCompacting()) {
+			Thread.sleep(10);
+		}
+		Library reloaded = new Library();
+		String failure = null;
+		for (User user : users) {
+			User copy = reloaded.findUserByPps(user.getPpsNum());
+			if (copy == null || copy.getBalance() != user.getBalance()) {
+				failure = user.getPpsNum() + " read back as " + (copy == null ? "missing" : copy.getBalance())
+						+ ", expected " + user.getBalance();
+			}
+		}
+		return report("replay", threads, accounts, users.size(), failure == null, failure);
+	}
+
+	// Registers accounts with the opening balance and returns them
+	private static List<User> register(Library library, int count) {
+		List<User> users = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String ppsNum = String.format("%07dST", i);
+			if (library.findUserByPps(ppsNum) == null) {
+				library.addUser("Stress " + i, ppsNum, "stress" + i + "@stress.com", "pass", "Stress Road",
+						Money.format(OPENING_BALANCE));
+			}
+			users.add(library.findUserByPps(ppsNum));
+		}
+		return users;
+	}
+
+	/**
+	 * One operation of a run, given the random numbers of its thread.
+	 */
+	private interface Operation {
+		void run(Random random);
+	}
+
+	// Runs the operation on every thread, all starting together, until the time is up or
+	// MAX_OPERATIONS have run
+	private static void run(int threads, long millis, Operation operation) throws InterruptedException {
+		CountDownLatch start = new CountDownLatch(1);
+		long end = System.nanoTime() + millis * 1_000_000;
+		AtomicLong started = new AtomicLong();
+		List<Thread> workers = new ArrayList<>(threads);
+		for (int t = 0; t < threads; t++) {
+			Random random = new Random(t);
+			Thread worker = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				while (System.nanoTime() < end && started.incrementAndGet() <= MAX_OPERATIONS) {
+					operation.run(random);
+				}
+			});
+			worker.start();
+			workers.add(worker);
+		}
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+	}
+
+	// Prints the result of a run and returns whether it passed
+	private static boolean report(String name, int threads, int accounts, long operations, boolean passed, String failure) {
+		System.out.println(name + "," + threads + "," + accounts + "," + operations + ","
+				+ (passed ? "PASS" : "FAIL: " + failure));
+		return passed;
+	}
+}
@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The `BulkTransfers` class applies a batch of transfers, such as an end-of-day payroll or
+ * settlement run, without going through the interactive transfer dialogue once per row.
+ * A batch is a CSV file with one transfer per line:
+ *   sender,recipient email,recipient PPS number,amount
+ * The sender is given by email address or PPS number, and a first line starting with "sender"
+ * is taken as a header. The batch runs in three steps:
+ *   1. every row is validated in parallel, looking up both users as findUserByEmail does
+ *   2. the rows of each sender are applied in file order, different senders in parallel,
+ *      each transfer only locking its two accounts
+ *   3. the journal and the transaction files are written once for the whole batch
+ * The outcome of every row is written next to the batch as <file>.results.csv.
+ * Run it with the server stopped, from the directory that holds the files:
+ *   java BulkTransfers payroll.csv
+ */
+public class BulkTransfers {
+
+	// Outcome of one row of a batch
+	enum Outcome {
+		OK, INVALID_ROW, SENDER_NOT_FOUND, RECIPIENT_NOT_FOUND, INSUFFICIENT_FUNDS,
+		// Sent to an account of another shard that has not confirmed the credit yet
+		PENDING
+	}
+
+	/**
+	 * One transfer of a batch and, once the batch has run, its outcome.
+	 */
+	static final class Row {
+		final int line;
+		final String[] fields;
+		User sender;
+		User recipient;
+		// Amount in cents
+		long amount;
+		Outcome outcome;
+
+		Row(int line, String text) {
+			this.line = line;
+			this.fields = text.split(",", -1);
+		}
+	}
+
+	private final Library myLib;
+
+	public BulkTransfers(Library library) {
+		this.myLib = library;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: java BulkTransfers <batch.csv>");
+			return;
+		}
+		Path batch = Paths.get(args[0]);
+		List<Row> rows = parse(Files.readAllLines(batch, StandardCharsets.UTF_8));
+		Library library = new Library();
+		library.start();
+		BulkTransfers transfers = new BulkTransfers(library);
+
+		long start = System.nanoTime();
+		transfers.run(rows);
+		long elapsed = System.nanoTime() - start;
+
+		// Write the outcome of every row and print a summary
+		List<String> results = new ArrayList<>();
+		results.add("line,outcome");
+		int ok = 0;
+		for (Row row : rows) {
+			results.add(row.line + "," + row.outcome);
+			// A pending transfer has left the sender and is credited once the shard answers
+			if (row.outcome == Outcome.OK || row.outcome == Outcome.PENDING) {
+				ok++;
+			}
+		}
+		Files.write(batch.resolveSibling(batch.getFileName() + ".results.csv"), results, StandardCharsets.UTF_8);
+		System.out.println("rows,ok,failed,rows_per_sec");
+		System.out.println(rows.size() + "," + ok + "," + (rows.size() - ok) + ","
+				+ (long) (rows.size() / (elapsed / 1e9)));
+	}
+
+	/**
+	 * Splits the lines of a batch file into rows, skipping blank lines and the header.
+	 */
+	static List<Row> parse(List<String> lines) {
+		List<Row> rows = new ArrayList<>();
+		for (int i = 0; i < lines.size(); i++) {
+			String line = lines.get(i).trim();
+			if (line.isEmpty() || (i == 0 && line.toLowerCase().startsWith("sender"))) {
+				continue;
+			}
+			// Line numbers start at 1, as in an editor
+			rows.add(new Row(i + 1, line));
+		}
+		return rows;
+	}
+
+	/**
+	 * Validates and applies the rows and waits until the applied transfers are on disk.
+	 * Every row has its outcome set when this returns.
+	 */
+	public void run(List<Row> rows) {
+		// Validation only reads the user indexes, so the rows are checked in parallel
+		rows.parallelStream().forEach(this::validate);
+
+		// Keep the valid rows of each sender in file order
+		Map<User, List<Row>> bySender = new LinkedHashMap<>();
+		for (Row row : rows) {
+			if (row.outcome == null) {
+				bySender.computeIfAbsent(row.sender, sender -> new ArrayList<>()).add(row);
+			}
+		}
+
+		// Apply the senders in parallel, collecting the writes of each to sync them together
+		List<Library.PendingWrites> writes = bySender.values().parallelStream()
+				.map(this::apply)
+				.toList();
+		Library.PendingWrites pending = new Library.PendingWrites();
+		for (Library.PendingWrites senderWrites : writes) {
+			pending.add(senderWrites);
+		}
+		myLib.sync(pending);
+	}
+
+	/**
+	 * Looks up the users of a row and parses its amount.
+	 * Leaves the outcome unset if the row can be applied.
+	 */
+	private void validate(Row row) {
+		if (row.fields.length != 4) {
+			row.outcome = Outcome.INVALID_ROW;
+			return;
+		}
+		String sender = row.fields[0].trim();
+		String recipientMail = row.fields[1].trim();
+		String recipientPps = row.fields[2].trim();
+		try {
+			row.amount = Money.parse(row.fields[3].trim());
+		} catch (NumberFormatException e) {
+			row.outcome = Outcome.INVALID_ROW;
+			return;
+		}
+		if (row.amount <= 0) {
+			row.outcome = Outcome.INVALID_ROW;
+			return;
+		}
+		row.sender = sender.contains("@") ? myLib.findUserByEmail(sender) : myLib.findUserByPps(sender);
+		if (row.sender == null) {
+			row.outcome = Outcome.SENDER_NOT_FOUND;
+			return;
+		}
+		// The recipient must exist and the PPS number must match, as in the transfer dialogue
+		row.recipient = myLib.findUserByEmail(recipientMail);
+		if (row.recipient == null || !row.recipient.getPpsNum().equals(recipientPps)) {
+			row.outcome = Outcome.RECIPIENT_NOT_FOUND;
+		}
+	}
+
+	/**
+	 * Applies the rows of one sender in order and returns the writes to sync.
+	 */
+	private Library.PendingWrites apply(List<Row> rows) {
+		Library.PendingWrites pending = new Library.PendingWrites();
+		for (Row row : rows) {
+			switch (myLib.transferMoney(row.sender, row.recipient, row.amount, pending)) {
+				case WireCodec.OK:
+					row.outcome = Outcome.OK;
+					break;
+				case WireCodec.INSUFFICIENT_FUNDS:
+					row.outcome = Outcome.INSUFFICIENT_FUNDS;
+					break;
+				case WireCodec.RECIPIENT_NOT_FOUND:
+					row.outcome = Outcome.RECIPIENT_NOT_FOUND;
+					break;
+				case WireCodec.PENDING:
+					row.outcome = Outcome.PENDING;
+					break;
+				default:
+					// The recipient's balance would overflow
+					row.outcome = Outcome.INVALID_ROW;
+			}
+		}
+		return pending;
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * The `ChangeStream` class is the ordered stream of the changes a primary Library has committed,
+ * which the ReplicationServer sends to the read replicas that follow it, see Replica.
+ * The Journal publishes every record it has written, so balance, password and registration
+ * changes are in the stream as the journal records the Library replays, and the
+ * TransactionLedger publishes every transaction it has written as a record of its own:
+ *   T,<transaction file>,<id>,<timestamp>,<type>,<other account>,<amount>,<balance>
+ * Changes are published once they are on disk, so a replica never holds a change that a crash of
+ * the primary could lose, and in the order they were committed, which for the changes of one
+ * account is the order they were made. The changes are numbered from 1, and the newest ones
+ * are kept in memory so that a replica whose connection broke carries on where it stopped; a
+ * replica that fell further behind than that is sent a new snapshot instead. The numbers start
+ * again when the primary restarts, which its replicas notice by the stream's epoch.
+ */
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ChangeStream {
+
+	// Identifies this run of the primary, never 0 which a replica that has no data sends
+	private final long epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+	// The newest changes, change n at index (n - 1) % length, guarded by lock
+	private final String[] backlog;
+	// Number of the last change published, guarded by lock
+	private long publishedSeq;
+	private final ReentrantLock lock = new ReentrantLock();
+	// Signalled when changes have been published
+	private final Condition published = lock.newCondition();
+	// Replicas currently following the stream
+	private final AtomicInteger replicas = new AtomicInteger();
+
+	/**
+	 * Creates a stream that keeps the given number of the newest changes for replicas to catch up.
+	 */
+	public ChangeStream(int backlogSize) {
+		backlog = new String[backlogSize];
+	}
+
+	/**
+	 * Creates the stream described by the library.replication* properties, or returns null if
+	 * library.replicationPort is not set and the library has no replicas.
+	 */
+	public static ChangeStream fromProperties() {
+		if (Integer.getInteger("library.replicationPort", 0) <= 0) {
+			return null;
+		}
+		return new ChangeStream(Integer.getInteger("library.replicationBacklog", 100_000));
+	}
+
+	/**
+	 * Publishes committed changes, in the order they were committed.
+	 */
+	public void publish(List<String> records) {
+		if (records.isEmpty()) {
+			return;
+		}
+		lock.lock();
+		try {
+			for (String record : records) {
+				backlog[(int) (publishedSeq % backlog.length)] = record;
+				publishedSeq++;
+			}
+			published.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Waits until a change after the given one is published, or the time is up.
+	 */
+	public void await(long afterSeq, long timeoutMillis) throws InterruptedException {
+		long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		lock.lock();
+		try {
+			while (publishedSeq <= afterSeq && remaining > 0) {
+				remaining = published.awaitNanos(remaining);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Adds every change published after the given one to records, and returns the number of the
+	 * last change added, or -1 if some of them are no longer kept.
+	 */
+	public long read(long afterSeq, List<String> records) {
+		lock.lock();
+		try {
+			if (!covers(afterSeq)) {
+				return -1;
+			}
+			for (long seq = afterSeq + 1; seq <= publishedSeq; seq++) {
+				records.add(backlog[(int) ((seq - 1) % backlog.length)]);
+			}
+			return publishedSeq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Checks whether every change after the given one is still kept, so a replica that has the
+	 * changes up to it can be sent the rest.
+	 */
+	public boolean covers(long seq) {
+		lock.lock();
+		try {
+			return seq <= publishedSeq && seq >= publishedSeq - backlog.length;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the number of the last change published.
+	 */
+	public long getPublishedSeq() {
+		lock.lock();
+		try {
+			return publishedSeq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public long getEpoch() {
+		return epoch;
+	}
+
+	/**
+	 * Called when a replica starts following the stream.
+	 */
+	public void replicaConnected() {
+		replicas.incrementAndGet();
+	}
+
+	/**
+	 * Called when a replica stops following the stream.
+	 */
+	public void replicaDisconnected() {
+		replicas.decrementAndGet();
+	}
+
+	public int getReplicas() {
+		return replicas.get();
+	}
+
+	/**
+	 * Returns the record of a transaction written to the given transaction file.
+	 */
+	static String transactionRecord(String fileName, Transaction transaction) {
+		StringBuilder record = new StringBuilder(96).append("T,").append(fileName).append(',')
+				.append(transaction.id()).append(',')
+				.append(transaction.timestamp()).append(',')
+				.append(transaction.type().ordinal()).append(',')
+				.append(transaction.counterparty()).append(',')
+				.append(transaction.amount()).append(',')
+				.append(transaction.balance());
+		return record.toString();
+	}
+
+	/**
+	 * Returns the transaction of a T record split at its commas.
+	 */
+	static Transaction parseTransaction(String[] fields) {
+		return new Transaction(Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+				Transaction.Type.values()[Integer.parseInt(fields[4])], fields[5], Long.parseLong(fields[6]),
+				Long.parseLong(fields[7]));
+	}
+}
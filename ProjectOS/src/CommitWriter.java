@@ -0,0 +1,216 @@
+/*
+ * The `CommitWriter` class is the thread that writes the changes of every request to disk.
+ * Request threads only append their records to the Journal and queue their transactions in the
+ * TransactionLedger; the writer then takes everything appended since its last commit and writes
+ * it with one write and fsync of the journal and one write and fsync per transaction file. The
+ * changes of all the requests that arrived while a commit was being written go into the next
+ * one, and -Dlibrary.commitWindowMicros makes the writer wait that long after the first request
+ * of a commit to gather more of them.
+ * -Dlibrary.durability chooses when a request is answered:
+ *   fsync (default) - once its changes are on disk, so an answered change survives a crash
+ *   enqueue         - as soon as its changes are queued; the writer commits them straight
+ *                     after, and a crash loses the changes of the last commit window
+ * A failed commit is printed, like every other I/O error of the Library. Its records stay queued
+ * and are written again, a second later, by the next commit, and the requests that were waiting
+ * for it fail with an UncheckedIOException, as their changes are not known to be on disk.
+ */
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class CommitWriter implements Runnable {
+
+	// Time to wait after a failed commit before writing its records again
+	private static final long RETRY_MILLIS = 1000;
+
+	public enum Durability {
+		FSYNC, ENQUEUE
+	}
+
+	private final Journal journal;
+	private final TransactionLedger ledger;
+	private final Metrics metrics;
+	private final Durability durability;
+	// Time to wait after the first request of a commit for more requests to join it
+	private final long windowNanos;
+	// Guards the conditions below; a lock so waiting virtual threads do not pin their carrier
+	private final ReentrantLock lock = new ReentrantLock();
+	// Signalled when a request has appended changes for the writer
+	private final Condition requested = lock.newCondition();
+	// Signalled when a commit has been written
+	private final Condition committed = lock.newCondition();
+	// Set by requests and cleared by the writer before it takes a batch, so only the first
+	// request after a commit takes the lock to wake the writer
+	private volatile boolean pending;
+	// Number of commits that failed, what the last of them failed with and the journal records
+	// and transactions it was writing, 0 for a part that was written; guarded by lock
+	private int failures;
+	private IOException failure;
+	private long failedJournalSeq;
+	private long failedTransactionSeq;
+
+	public CommitWriter(Journal journal, TransactionLedger ledger, Metrics metrics) {
+		this.journal = journal;
+		this.ledger = ledger;
+		this.metrics = metrics;
+		durability = Durability.valueOf(System.getProperty("library.durability", "fsync").toUpperCase(Locale.ROOT));
+		windowNanos = TimeUnit.MICROSECONDS.toNanos(Long.getLong("library.commitWindowMicros", 0));
+	}
+
+	/**
+	 * Starts the writer thread, and a shutdown hook that commits whatever is still queued.
+	 */
+	public void start() {
+		Thread thread = new Thread(this, "commit-writer");
+		thread.setDaemon(true);
+		thread.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(this::commitQueued, "commit-writer-shutdown"));
+	}
+
+	/**
+	 * Hands the journal records and transactions up to the given sequence numbers to the writer
+	 * and, unless the durability mode is enqueue, waits until they are on disk.
+	 * Throws UncheckedIOException if the commit writing them fails.
+	 */
+	public void commit(long journalSeq, long transactionSeq) {
+		if (durability == Durability.ENQUEUE) {
+			wake();
+			return;
+		}
+		awaitDurable(journalSeq, transactionSeq);
+	}
+
+	/**
+	 * Waits until the journal records and transactions up to the given sequence numbers are on
+	 * disk, whatever the durability mode. Throws UncheckedIOException if the commit writing them
+	 * fails; they are written again by a later commit.
+	 */
+	public void awaitDurable(long journalSeq, long transactionSeq) {
+		if (isDurable(journalSeq, transactionSeq)) {
+			return;
+		}
+		wake();
+		lock.lock();
+		try {
+			// Only a commit that fails from now on was writing these records
+			int seen = failures;
+			while (!isDurable(journalSeq, transactionSeq)) {
+				if (failures != seen && hasFailed(journalSeq, transactionSeq)) {
+					throw new UncheckedIOException(failure);
+				}
+				committed.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Commits whatever has been appended, each time a request asks for it.
+	 */
+	public void run() {
+		while (true) {
+			lock.lock();
+			try {
+				while (!pending && !hasQueued()) {
+					requested.awaitUninterruptibly();
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (windowNanos > 0) {
+				// Let more requests join this commit
+				try {
+					TimeUnit.NANOSECONDS.sleep(windowNanos);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+			if (!commitQueued()) {
+				try {
+					Thread.sleep(RETRY_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+	}
+
+	// Wakes the writer unless a request has already done so since its last commit
+	private void wake() {
+		if (pending) {
+			return;
+		}
+		lock.lock();
+		try {
+			pending = true;
+			requested.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Writes every journal record and transaction appended so far and wakes the waiting requests,
+	// returns false if the journal or a transaction file could not be written
+	private boolean commitQueued() {
+		// Cleared before the batch is taken, so a request appending later wakes the writer again
+		pending = false;
+		// Everything appended up to here is in this commit
+		long journalSeq = journal.getAppendedSeq();
+		long transactionSeq = ledger.getAppendedSeq();
+		IOException journalFailure = null;
+		IOException ledgerFailure = null;
+		long start = System.nanoTime();
+		int records = 0;
+		try {
+			records += journal.commit();
+		} catch (IOException e) {
+			e.printStackTrace();
+			journalFailure = e;
+		}
+		metrics.recordFlush(Metrics.Flush.JOURNAL, start);
+		long ledgerStart = System.nanoTime();
+		try {
+			records += ledger.flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+			ledgerFailure = e;
+		}
+		metrics.recordFlush(Metrics.Flush.TRANSACTIONS, ledgerStart);
+		metrics.recordCommitBatch(records);
+		lock.lock();
+		try {
+			if (journalFailure != null || ledgerFailure != null) {
+				failures++;
+				failure = journalFailure != null ? journalFailure : ledgerFailure;
+				failedJournalSeq = journalFailure != null ? journalSeq : 0;
+				failedTransactionSeq = ledgerFailure != null ? transactionSeq : 0;
+			}
+			committed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		return journalFailure == null && ledgerFailure == null;
+	}
+
+	// Checks whether anything has been appended since the last commit
+	private boolean hasQueued() {
+		return journal.getAppendedSeq() > journal.getDurableSeq() || ledger.getAppendedSeq() > ledger.getFlushedSeq();
+	}
+
+	// Checks whether the last failed commit was writing some of the given records or transactions
+	// that are still not on disk, the caller holds lock
+	private boolean hasFailed(long journalSeq, long transactionSeq) {
+		return journal.getDurableSeq() < journalSeq && journalSeq <= failedJournalSeq
+				|| ledger.getFlushedSeq() < transactionSeq && transactionSeq <= failedTransactionSeq;
+	}
+
+	// Checks whether the given records and transactions have been committed
+	private boolean isDurable(long journalSeq, long transactionSeq) {
+		return journal.getDurableSeq() >= journalSeq && ledger.getFlushedSeq() >= transactionSeq;
+	}
+}
@@ -0,0 +1,269 @@
+/*
+ * The `Credentials` class hashes and checks the passwords of a Library.
+ * A password is stored as a salted PBKDF2-HMAC-SHA256 hash,
+ *   pbkdf2$<iterations>$<salt>$<hash>
+ * with a random 12-byte salt and a 24-byte hash in Base64, which fits the account table. Files
+ * written by older versions hold the plain password; it is still accepted, and the Library
+ * replaces it with a hash at the next login, as it does a hash made with another iteration count.
+ * Hashing is slow on purpose, so it runs on a small pool of its own threads with a bounded
+ * queue: however many clients log in at once, the hashing uses at most library.passwordThreads
+ * processors, and a check that finds the queue full is refused at once with a
+ * RejectedExecutionException instead of queuing for seconds, so the client can be told the server
+ * is busy rather than that the password is wrong. A check does not hold up its caller: verify
+ * returns a future that completes on the password thread.
+ * A password that was checked lately is remembered as an HMAC with a key that never leaves
+ * memory, so logging in again with it costs one HMAC instead of the hash. The properties are:
+ *   library.passwordIterations    PBKDF2 iterations of new hashes, 1 to 999999 (default 100000)
+ *   library.passwordThreads       threads that hash and check passwords (default half the processors)
+ *   library.passwordQueue         checks that may wait for those threads (default 128)
+ *   library.passwordCacheSeconds  how long a checked password is remembered (default 300, 0 never)
+ * A remembered password only stands for the stored password it was checked against, so it stops
+ * working when the password is changed.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class Credentials {
+
+	private static final String PREFIX = "pbkdf2$";
+	private static final int SALT_BYTES = 12;
+	private static final int HASH_BYTES = 24;
+	// Largest iteration count whose hash still fits the account table
+	private static final int MAX_ITERATIONS = 999_999;
+	// Number of remembered passwords added between two removals of the expired ones
+	private static final int SWEEP_EVERY = 4096;
+	private static final Base64.Encoder ENCODER = Base64.getEncoder().withoutPadding();
+	private static final Base64.Decoder DECODER = Base64.getDecoder();
+
+	/**
+	 * A password that was checked against the stored password of an account, kept as an HMAC.
+	 */
+	private record Checked(String stored, byte[] mac, long expiresAtMillis) {
+	}
+
+	private final int iterations;
+	private final long cacheMillis;
+	private final ThreadPoolExecutor pool;
+	private final SecureRandom random = new SecureRandom();
+	// Key of the HMACs of remembered passwords, made for this run only
+	private final SecretKeySpec cacheKey;
+	private final ThreadLocal<Mac> macs;
+	private final ThreadLocal<SecretKeyFactory> factories = ThreadLocal.withInitial(() -> {
+		try {
+			return SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+	private final Map<User, Checked> checked = new ConcurrentHashMap<>();
+	private final AtomicInteger added = new AtomicInteger();
+	private final LongAdder hashes = new LongAdder();
+	private final LongAdder cacheHits = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+
+	public Credentials(int iterations, int threads, int queueSize, long cacheMillis) {
+		if (iterations < 1 || iterations > MAX_ITERATIONS) {
+			throw new IllegalArgumentException("library.passwordIterations must be between 1 and " + MAX_ITERATIONS);
+		}
+		this.iterations = iterations;
+		this.cacheMillis = cacheMillis;
+		AtomicInteger count = new AtomicInteger();
+		pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+				runnable -> {
+					Thread thread = new Thread(runnable, "credentials-" + count.getAndIncrement());
+					thread.setDaemon(true);
+					return thread;
+				});
+		byte[] key = new byte[32];
+		random.nextBytes(key);
+		cacheKey = new SecretKeySpec(key, "HmacSHA256");
+		macs = ThreadLocal.withInitial(() -> {
+			try {
+				Mac mac = Mac.getInstance("HmacSHA256");
+				mac.init(cacheKey);
+				return mac;
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+		});
+	}
+
+	/**
+	 * Creates the credentials described by the library.password* properties.
+	 */
+	public static Credentials fromProperties() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		return new Credentials(Integer.getInteger("library.passwordIterations", 100_000),
+				Integer.getInteger("library.passwordThreads", Math.max(1, processors / 2)),
+				Integer.getInteger("library.passwordQueue", 128),
+				Long.getLong("library.passwordCacheSeconds", 300) * 1000);
+	}
+
+	/**
+	 * Returns the stored form of a new password once the password threads have hashed it, or null
+	 * if too many passwords are already waiting for them.
+	 */
+	public String hash(String password) {
+		byte[] salt = new byte[SALT_BYTES];
+		random.nextBytes(salt);
+		CompletableFuture<byte[]> hashed = onPool(() -> pbkdf2(password, salt, iterations));
+		if (hashed.isCompletedExceptionally()) {
+			// Refused, the queue is full
+			return null;
+		}
+		byte[] hash = hashed.join();
+		return PREFIX + iterations + '$' + ENCODER.encodeToString(salt) + '$' + ENCODER.encodeToString(hash);
+	}
+
+	/**
+	 * Checks a password against the stored password of a user: a hash, checked on the password
+	 * threads unless the same password was checked lately, or the plain password of an older
+	 * version. Returns a future of whether it matches, which is already complete unless a hash has
+	 * to be computed, and which fails with RejectedExecutionException if too many passwords are
+	 * already waiting to be checked.
+	 */
+	public CompletableFuture<Boolean> verify(User user, String stored, String password) {
+		if (!stored.startsWith(PREFIX)) {
+			return CompletableFuture.completedFuture(
+					MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), password.getBytes(StandardCharsets.UTF_8)));
+		}
+		String[] fields = stored.split("\\$");
+		if (fields.length != 4) {
+			return CompletableFuture.completedFuture(false);
+		}
+		byte[] mac = cacheMillis > 0 ? mac(password) : null;
+		Checked previous = mac == null ? null : checked.get(user);
+		if (previous != null && previous.stored().equals(stored) && previous.expiresAtMillis() > System.currentTimeMillis()
+				&& MessageDigest.isEqual(previous.mac(), mac)) {
+			cacheHits.increment();
+			return CompletableFuture.completedFuture(true);
+		}
+		byte[] salt;
+		byte[] expected;
+		int storedIterations;
+		try {
+			salt = DECODER.decode(fields[2]);
+			expected = DECODER.decode(fields[3]);
+			storedIterations = Integer.parseInt(fields[1]);
+		} catch (IllegalArgumentException e) {
+			// Not a hash this version wrote
+			return CompletableFuture.completedFuture(false);
+		}
+		return onPool(() -> pbkdf2(password, salt, storedIterations)).thenApply(hash -> {
+			if (!MessageDigest.isEqual(hash, expected)) {
+				return false;
+			}
+			if (mac != null) {
+				checked.put(user, new Checked(stored, mac, System.currentTimeMillis() + cacheMillis));
+				sweep();
+			}
+			return true;
+		});
+	}
+
+	/**
+	 * Checks whether a stored password should be hashed again: it is a plain password, or a
+	 * hash made with another iteration count than library.passwordIterations.
+	 */
+	public boolean needsRehash(String stored) {
+		return !stored.startsWith(PREFIX + iterations + '$');
+	}
+
+	/**
+	 * Returns the number of passwords hashed or checked with PBKDF2.
+	 */
+	public long getHashes() {
+		return hashes.sum();
+	}
+
+	/**
+	 * Returns the number of logins whose password was remembered from an earlier check.
+	 */
+	public long getCacheHits() {
+		return cacheHits.sum();
+	}
+
+	/**
+	 * Returns the number of hashes and checks refused because the queue was full.
+	 */
+	public long getRejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Returns the number of hashes and checks waiting for a password thread.
+	 */
+	public int getQueued() {
+		return pool.getQueue().size();
+	}
+
+	public int getThreads() {
+		return pool.getMaximumPoolSize();
+	}
+
+	public int getIterations() {
+		return iterations;
+	}
+
+	// Runs a hash on the password threads, the future fails at once if the queue is full
+	private CompletableFuture<byte[]> onPool(Callable<byte[]> task) {
+		CompletableFuture<byte[]> result = new CompletableFuture<>();
+		try {
+			pool.execute(() -> {
+				try {
+					result.complete(task.call());
+				} catch (Exception e) {
+					result.completeExceptionally(new IllegalStateException(e));
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			result.completeExceptionally(e);
+		}
+		return result;
+	}
+
+	// Derives the PBKDF2-HMAC-SHA256 hash of a password
+	private byte[] pbkdf2(String password, byte[] salt, int count) throws GeneralSecurityException {
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, count, HASH_BYTES * 8);
+		try {
+			hashes.increment();
+			return factories.get().generateSecret(spec).getEncoded();
+		} finally {
+			spec.clearPassword();
+		}
+	}
+
+	// Returns the HMAC of a password under the key of this run
+	private byte[] mac(String password) {
+		return macs.get().doFinal(password.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// Removes the expired remembered passwords now and then
+	private void sweep() {
+		if (added.incrementAndGet() % SWEEP_EVERY != 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		checked.values().removeIf(entry -> entry.expiresAtMillis() <= now);
+	}
+}
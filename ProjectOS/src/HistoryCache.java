@@ -0,0 +1,244 @@
+/*
+ * The `HistoryCache` class keeps the most recent transactions of the accounts whose history was
+ * viewed lately, so viewing it again does not read the transaction file. With
+ * -Dlibrary.warmHistory=true the StartupLoader fills it with the accounts' histories at startup.
+ * An account's newest WINDOW transactions are loaded the first time its history is viewed and
+ * the TransactionLedger adds every transaction it writes to them. The cache holds at most its
+ * budget of bytes, evicting the least recently used accounts first. Pages past the cached
+ * transactions are read from the transaction file by the TransactionHistory.
+ * A load and the ledger's writes exclude each other, so a loaded account never misses or repeats
+ * a transaction that was being written at the same time. A read replica adds the transactions its
+ * primary has written, which may already be in the file when it loads an account; the
+ * transactions are told apart by their ids.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class HistoryCache {
+
+	// Number of newest transactions cached per account
+	static final int WINDOW = 100;
+	// Estimated bytes of an account's entry and of one cached transaction besides its PPS number
+	private static final int ENTRY_OVERHEAD = 96;
+	private static final int TRANSACTION_OVERHEAD = 112;
+
+	/**
+	 * The cached transactions of one account, oldest first, and its number of transactions in total.
+	 */
+	private static final class Entry {
+		final List<Transaction> transactions;
+		int total;
+		long bytes;
+
+		Entry(TransactionHistory.Page newest) {
+			transactions = new ArrayList<>(newest.transactions());
+			// The page is newest first
+			Collections.reverse(transactions);
+			total = newest.total();
+			bytes = ENTRY_OVERHEAD;
+			for (Transaction transaction : transactions) {
+				bytes += size(transaction);
+			}
+		}
+
+		// Checks whether a page can be served from the cached transactions
+		boolean covers(int offset, int limit) {
+			return transactions.size() == total || (long) offset + limit <= transactions.size();
+		}
+
+		// Returns a page of the cached transactions, newest first
+		TransactionHistory.Page page(int offset, int limit) {
+			List<Transaction> page = new ArrayList<>(Math.max(0, Math.min(limit, transactions.size() - offset)));
+			for (int i = transactions.size() - 1 - Math.max(0, offset); i >= 0 && page.size() < limit; i--) {
+				page.add(transactions.get(i));
+			}
+			return new TransactionHistory.Page(page, total);
+		}
+	}
+
+	/**
+	 * Counters of the cache, for monitoring.
+	 */
+	public record Stats(long hits, long misses, long evictions, int entries, long bytes) {
+	}
+
+	// Bytes the cached entries may take
+	private final long budget;
+	// Cached entries by transaction file name, least recently used first, guarded by this
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	// Estimated size of the cached entries, guarded by this
+	private long bytes;
+	// Held while loading an entry and while the ledger writes, see the class comment
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	/**
+	 * Creates a cache that holds at most the given number of bytes, 0 to cache nothing.
+	 */
+	public HistoryCache(long budget) {
+		this.budget = budget;
+	}
+
+	/**
+	 * Returns up to limit transactions of a transaction file, newest first, skipping the
+	 * offset newest ones, from the cache if it holds them and from the transaction file if not.
+	 */
+	public TransactionHistory.Page readPage(String fileName, int offset, int limit, TransactionHistory history)
+			throws IOException {
+		TransactionHistory.Page page = cachedPage(fileName, offset, limit);
+		if (page != null) {
+			hits.increment();
+			return page;
+		}
+		misses.increment();
+		if (budget <= 0 || (long) offset + limit > WINDOW) {
+			// Past the newest transactions, which are all that is cached
+			return history.readPage(fileName, offset, limit);
+		}
+		writeLock.lock();
+		try {
+			// Another thread may have loaded it while this one waited
+			page = cachedPage(fileName, offset, limit);
+			if (page != null) {
+				return page;
+			}
+			Entry entry = new Entry(history.readPage(fileName, 0, WINDOW));
+			synchronized (this) {
+				entries.put(fileName, entry);
+				bytes += entry.bytes;
+				evict();
+			}
+			return entry.page(offset, limit);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Loads the newest transactions of a transaction file at startup, unless they are cached or
+	 * the file has none. Returns false, loading nothing, once they no longer fit in the budget.
+	 * Unlike a load for a page it does not exclude the ledger's writes, so several can run at
+	 * once, but only while no transactions are written, see StartupLoader.
+	 */
+	boolean warm(String fileName, TransactionHistory history) throws IOException {
+		synchronized (this) {
+			if (bytes >= budget) {
+				return false;
+			}
+			if (entries.containsKey(fileName)) {
+				return true;
+			}
+		}
+		TransactionHistory.Page newest = history.readPage(fileName, 0, WINDOW);
+		if (newest.total() == 0) {
+			return true;
+		}
+		Entry entry = new Entry(newest);
+		synchronized (this) {
+			if (bytes + entry.bytes > budget) {
+				return false;
+			}
+			if (entries.putIfAbsent(fileName, entry) == null) {
+				bytes += entry.bytes;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Called by the ledger before it writes transactions, so no entry is loaded meanwhile.
+	 */
+	void lockWrites() {
+		writeLock.lock();
+	}
+
+	/**
+	 * Called by the ledger once it has written its transactions.
+	 */
+	void unlockWrites() {
+		writeLock.unlock();
+	}
+
+	/**
+	 * Adds the transactions just written to a transaction file to its entry, if it is cached.
+	 * The ledger calls this between lockWrites and unlockWrites. Transactions the entry already
+	 * holds are skipped, and an entry that would miss some is dropped to be loaded again.
+	 */
+	synchronized void append(String fileName, List<Transaction> written) {
+		Entry entry = entries.get(fileName);
+		if (entry == null) {
+			return;
+		}
+		long before = entry.bytes;
+		for (Transaction transaction : written) {
+			if (transaction.id() <= entry.total) {
+				continue;
+			}
+			if (transaction.id() != entry.total + 1) {
+				entries.remove(fileName);
+				bytes -= before;
+				return;
+			}
+			entry.transactions.add(transaction);
+			entry.bytes += size(transaction);
+			entry.total++;
+		}
+		// Keep only the newest transactions
+		int excess = entry.transactions.size() - WINDOW;
+		if (excess > 0) {
+			List<Transaction> dropped = entry.transactions.subList(0, excess);
+			for (Transaction transaction : dropped) {
+				entry.bytes -= size(transaction);
+			}
+			dropped.clear();
+		}
+		bytes += entry.bytes - before;
+		evict();
+	}
+
+	/**
+	 * Drops every cached entry, for a read replica that has lost track of the transactions written.
+	 */
+	synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Returns the counters of the cache.
+	 */
+	public synchronized Stats stats() {
+		return new Stats(hits.sum(), misses.sum(), evictions.sum(), entries.size(), bytes);
+	}
+
+	// Returns a page from the cache, or null if it does not hold it
+	private synchronized TransactionHistory.Page cachedPage(String fileName, int offset, int limit) {
+		Entry entry = entries.get(fileName);
+		return entry != null && entry.covers(offset, limit) ? entry.page(offset, limit) : null;
+	}
+
+	// Estimated bytes of a cached transaction
+	private static long size(Transaction transaction) {
+		return TRANSACTION_OVERHEAD + transaction.counterparty().length();
+	}
+
+	// Evicts the least recently used entries until the cache fits its budget, the caller holds this
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (bytes > budget && eldest.hasNext()) {
+			bytes -= eldest.next().getValue().bytes;
+			eldest.remove();
+			evictions.increment();
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * The `Journal` class is an append-only write-ahead log of changes to the user data.
+ * Each change is a single text line, so a change is either fully in the file or, after a crash
+ * in the middle of a write, an unterminated last line that is ignored on replay.
+ * Threads append records to an in-memory buffer, and the CommitWriter thread writes and fsyncs
+ * the records appended by every thread since its last commit in one go (group commit).
+ * The journal is rotated when the Library writes a compacted snapshot of the user file.
+ * A primary with read replicas publishes every record to its ChangeStream once it is on disk.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+public class Journal {
+
+	// Suffix of the journal file that was rotated out and is covered by the next snapshot
+	private static final String ROTATED_SUFFIX = ".1";
+
+	private final Path file;
+	private final Path rotatedFile;
+	private FileChannel channel;
+	// Records appended but not yet written, guarded by this
+	private StringBuilder pending = new StringBuilder();
+	// Records of a commit whose write failed, written again before the pending ones, guarded by
+	// commitLock
+	private String unwritten = "";
+	// Length of the file up to the end of the last record on disk, guarded by commitLock
+	private long durableLength;
+	// Sequence number of the last appended record, guarded by this
+	private long appendedSeq;
+	// Sequence number of the last record that is on disk
+	private volatile long durableSeq;
+	// Number of records written since the journal was last rotated
+	private volatile long recordCount;
+	// Held while writing to the file, so a commit and a rotation never overlap
+	private final ReentrantLock commitLock = new ReentrantLock();
+	// Stream the written records are published to, null when the library has no replicas
+	private volatile ChangeStream changes;
+
+	public Journal(String fileName) throws IOException {
+		file = Paths.get(fileName);
+		rotatedFile = Paths.get(fileName + ROTATED_SUFFIX);
+		channel = open(file);
+		durableLength = channel.size();
+	}
+
+	/**
+	 * Reads the complete records of a journal, the rotated file first, then the current one.
+	 * A last line without a line terminator was torn by a crash and is skipped.
+	 */
+	public static List<String> read(String fileName) throws IOException {
+		List<String> records = new ArrayList<>();
+		readFile(Paths.get(fileName + ROTATED_SUFFIX), records);
+		readFile(Paths.get(fileName), records);
+		return records;
+	}
+
+	// Adds the complete lines of a journal file to the records
+	private static void readFile(Path path, List<String> records) throws IOException {
+		if (!Files.exists(path)) {
+			return;
+		}
+		String content = Files.readString(path, StandardCharsets.UTF_8);
+		int start = 0;
+		int end;
+		// Only take lines that end with a line terminator
+		while ((end = content.indexOf('\n', start)) >= 0) {
+			if (end > start) {
+				records.add(content.substring(start, end));
+			}
+			start = end + 1;
+		}
+	}
+
+	/**
+	 * Appends a record to the journal buffer and returns its sequence number.
+	 * The record is not durable until a commit has written it, see getDurableSeq.
+	 */
+	public synchronized long append(String record) {
+		pending.append(record).append('\n');
+		return ++appendedSeq;
+	}
+
+	/**
+	 * Appends every record made by the given supplier and returns the sequence number of the
+	 * last one, or 0 if it made none. The supplier runs while the journal is held, so the records
+	 * are a consistent picture of what the records appended before them changed.
+	 */
+	public synchronized long appendAll(Supplier<List<String>> records) {
+		long seq = 0;
+		for (String record : records.get()) {
+			seq = append(record);
+		}
+		return seq;
+	}
+
+	/**
+	 * Publishes every record to the given stream once it has been written.
+	 */
+	public void publishTo(ChangeStream changes) {
+		this.changes = changes;
+	}
+
+	/**
+	 * Writes and fsyncs every appended record with one write and returns the number written.
+	 * If the write or the fsync fails the records are kept, and do not count as durable, until a
+	 * later commit has written them.
+	 */
+	public int commit() throws IOException {
+		commitLock.lock();
+		try {
+			return writePending();
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the last record that is on disk.
+	 */
+	public long getDurableSeq() {
+		return durableSeq;
+	}
+
+	/**
+	 * Returns the sequence number of the last appended record.
+	 */
+	public synchronized long getAppendedSeq() {
+		return appendedSeq;
+	}
+
+	/**
+	 * Returns the number of records written since the journal was last rotated.
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Closes the current journal file, renames it to the rotated file and starts a new one.
+	 * Every record appended before the rotation is in the rotated file, so a snapshot taken
+	 * after this call covers it and the rotated file can be deleted once the snapshot is saved.
+	 * A rotated file that is still there, because the snapshot of an earlier rotation was not
+	 * saved, holds records no snapshot covers yet. It was replayed at startup like the current
+	 * file, so it is kept and the records of the current file are added to it instead.
+	 */
+	public void rotate() throws IOException {
+		commitLock.lock();
+		try {
+			writePending();
+			channel.close();
+			if (Files.exists(rotatedFile)) {
+				appendToRotated();
+			} else {
+				Files.move(file, rotatedFile);
+			}
+			channel = open(file);
+			durableLength = channel.size();
+			recordCount = 0;
+		} finally {
+			commitLock.unlock();
+		}
+	}
+
+	/**
+	 * Deletes the rotated journal file once a snapshot covering it has been saved.
+	 */
+	public void deleteRotated() throws IOException {
+		Files.deleteIfExists(rotatedFile);
+	}
+
+	// Adds the complete lines of the current file to the rotated file and deletes the current
+	// file, the caller holds commitLock. A crash before the delete only leaves records in both
+	// files, which replaying twice leaves as they were.
+	private void appendToRotated() throws IOException {
+		byte[] rotated = Files.readAllBytes(rotatedFile);
+		byte[] current = Files.readAllBytes(file);
+		try (FileChannel target = FileChannel.open(rotatedFile, StandardOpenOption.WRITE)) {
+			// Drop a last line torn by a crash, which replay skips, so it does not run into the
+			// first record added
+			target.truncate(completeLength(rotated));
+			target.position(target.size());
+			ByteBuffer buffer = ByteBuffer.wrap(current, 0, completeLength(current));
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			target.force(false);
+		}
+		Files.delete(file);
+	}
+
+	// Returns the length of the complete lines at the start of a journal file's content
+	private static int completeLength(byte[] content) {
+		int length = content.length;
+		while (length > 0 && content[length - 1] != '\n') {
+			length--;
+		}
+		return length;
+	}
+
+	// Writes and fsyncs every pending record, after those of a failed commit, and returns their
+	// number, the caller holds commitLock
+	private int writePending() throws IOException {
+		String batch;
+		long batchSeq;
+		// Take the pending records so other threads can keep appending while we write
+		synchronized (this) {
+			batch = unwritten + pending;
+			pending = new StringBuilder();
+			batchSeq = appendedSeq;
+		}
+		if (!batch.isEmpty()) {
+			try {
+				// Drop what a failed write left after the last durable record, it is written again
+				if (channel.size() > durableLength) {
+					channel.truncate(durableLength);
+				}
+				ByteBuffer buffer = ByteBuffer.wrap(batch.getBytes(StandardCharsets.UTF_8));
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(false);
+				durableLength = channel.size();
+			} catch (IOException e) {
+				unwritten = batch;
+				throw e;
+			}
+			unwritten = "";
+			recordCount += batchSeq - durableSeq;
+			// Published before the records count as durable, so a request that waited for them
+			// finds them in the stream
+			if (changes != null) {
+				changes.publish(Arrays.asList(batch.split("\n")));
+			}
+		}
+		int written = (int) (batchSeq - durableSeq);
+		durableSeq = batchSeq;
+		return written;
+	}
+
+	// Opens a journal file for appending, creating it if it does not exist
+	private static FileChannel open(Path path) throws IOException {
+		return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+}
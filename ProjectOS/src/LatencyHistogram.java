@@ -0,0 +1,116 @@
+/*
+ * The `LatencyHistogram` class counts durations in nanoseconds, or other values such as batch
+ * sizes, in buckets that widen with the value, like an HDR histogram: every power of two is split
+ * into 32 equal buckets, so a percentile read from it is within about 3% of the true value whether
+ * it is a microsecond or a minute, and the histogram is a fixed array of counters however many
+ * values are recorded.
+ * Recording a value increments its counter and takes no lock. The percentiles are worked out
+ * from the counters when read, and may leave out values recorded at the same time.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+
+	// Each power of two is split into 2^SUB_BUCKET_BITS buckets
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	// Enough buckets for every positive long
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration in nanoseconds. Negative durations, from a clock that went back, count as 0.
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		total.increment();
+		sum.add(value);
+		long largest = max.get();
+		while (value > largest && !max.compareAndSet(largest, value)) {
+			largest = max.get();
+		}
+	}
+
+	/**
+	 * Records the time from a System.nanoTime() reading until now.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Returns the number of durations recorded.
+	 */
+	public long count() {
+		return total.sum();
+	}
+
+	/**
+	 * Returns the sum of the durations recorded, in nanoseconds.
+	 */
+	public long sum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the longest duration recorded, in nanoseconds.
+	 */
+	public long max() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the duration that the given fraction of the recorded durations do not exceed, in
+	 * nanoseconds, e.g. percentile(0.99) for the 99th percentile. Returns 0 if nothing is recorded.
+	 */
+	public long percentile(double fraction) {
+		long[] snapshot = new long[BUCKETS];
+		long recorded = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			recorded += snapshot[i];
+		}
+		if (recorded == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(fraction * recorded));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(highestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	// Returns the bucket of a value: values below 2 * SUB_BUCKETS have a bucket each, larger
+	// ones share it with the values that have the same top SUB_BUCKET_BITS + 1 bits
+	private static int bucket(long value) {
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent < SUB_BUCKET_BITS) {
+			return (int) value;
+		}
+		int shift = exponent - SUB_BUCKET_BITS;
+		return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	// Returns the highest value that falls in a bucket
+	private static long highestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+		long top = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+		// The last bucket ends at Long.MAX_VALUE, which the shift reaches by overflowing
+		return ((top + 1) << shift) - 1;
+	}
+}
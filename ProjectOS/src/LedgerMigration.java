@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * The `LedgerMigration` class removes the duplicate lines that older versions of the Library left
+ * in the user_<PPS>.txt transaction files. Those versions appended the whole in-memory history of
+ * an account on every save, so a file holds the same history again and again, each time with at
+ * most one new entry at the end. The original file is kept with a .bak suffix.
+ * It also deletes the user_<PPS>.idx line indexes that an older version kept next to the text
+ * files. The server deletes the index of an account when it converts its file, see
+ * TransactionHistory, so only the indexes of accounts not used since are left for this.
+ * Run it with the server stopped, from the directory that holds the files: java LedgerMigration
+ */
+public class LedgerMigration {
+
+	public static void main(String[] args) throws IOException {
+		Path directory = Paths.get(args.length > 0 ? args[0] : ".");
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "user_*.txt")) {
+			for (Path file : files) {
+				// Only the transaction files are migrated, never the user file
+				if (file.getFileName().toString().matches("user_\\d{7}[a-zA-Z]{2}\\.txt")) {
+					migrate(file);
+				}
+			}
+		}
+		try (DirectoryStream<Path> indexes = Files.newDirectoryStream(directory, "user_*.idx")) {
+			for (Path index : indexes) {
+				if (index.getFileName().toString().matches("user_\\d{7}[a-zA-Z]{2}\\.idx")) {
+					Files.delete(index);
+					System.out.println(index.getFileName() + ": deleted, the line index is no longer used");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Rewrites one transaction file without its duplicate lines.
+	 */
+	private static void migrate(Path file) throws IOException {
+		List<String> lines = splitJoinedLines(Files.readAllLines(file, StandardCharsets.UTF_8));
+		List<String> unique = removeRepeatedHistory(lines);
+		// Keep the original file and replace it with the migrated one
+		Path backup = file.resolveSibling(file.getFileName() + ".bak");
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(temp, unique, StandardCharsets.UTF_8);
+		Files.copy(file, backup, StandardCopyOption.REPLACE_EXISTING);
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		System.out.println(file.getFileName() + ": " + lines.size() + " -> " + unique.size() + " lines");
+	}
+
+	/**
+	 * Splits lines that were joined because the file did not end with a line terminator,
+	 * such as "Received $500.00 from SARAH ADAMSSent $50.0 to MARY JOHNSON".
+	 */
+	static List<String> splitJoinedLines(List<String> lines) {
+		List<String> split = new ArrayList<>();
+		for (String line : lines) {
+			for (String part : line.split("(?<=[A-Z])(?=(Sent|Received) \\$)")) {
+				split.add(part);
+			}
+		}
+		return split;
+	}
+
+	/**
+	 * Removes the repeated copies of the in-memory history.
+	 * The history of the current server run is followed through the file: a line equal to the
+	 * first entry of the history starts another copy of it, the lines matching the history are
+	 * dropped and a line after a full copy is the one new entry of that save. Any other line
+	 * starts a new history, as after a server restart. Two genuinely identical transactions in a
+	 * row can not be told apart from a copy, so the first of a pair may be kept alone.
+	 */
+	static List<String> removeRepeatedHistory(List<String> lines) {
+		List<String> unique = new ArrayList<>();
+		List<String> history = new ArrayList<>();
+		boolean repeating = false;
+		int repeated = 0;
+		for (String line : lines) {
+			if (repeating) {
+				if (repeated < history.size()) {
+					// Still inside a copy of the history
+					if (line.equals(history.get(repeated))) {
+						repeated++;
+						continue;
+					}
+					// The copy broke off, so this line starts a new history
+					history.clear();
+					repeating = false;
+				} else if (line.equals(history.get(0))) {
+					// A full copy with nothing new was followed by another copy
+					repeated = 1;
+					continue;
+				} else {
+					// The new entry at the end of a copy
+					repeating = false;
+				}
+			} else if (!history.isEmpty() && line.equals(history.get(0))) {
+				// Another copy of the history starts
+				repeating = true;
+				repeated = 1;
+				continue;
+			} else {
+				history.clear();
+			}
+			unique.add(line);
+			history.add(line);
+		}
+		return unique;
+	}
+}
@@ -3,143 +3,840 @@
  * It provides functionalities for loading and saving user data, handling user transactions,
  * adding new users, logging in users, transferring money between users, and retrieving user information.
  * The class utilizes file I/O operations to store user data and transactions.
+ * Changes to balances, passwords and registrations are appended to a write-ahead journal,
+ * and user_data.txt is only rewritten as a compacted snapshot once the journal has grown.
+ * Balances and amounts are whole cents held in a long, see Money. Files written by older
+ * versions may hold balances rounded from a float; they are read to the nearest cent and the
+ * snapshot written at startup stores them in the exact two-decimal format.
+ * With -Dlibrary.storage=mapped the snapshot is the memory-mapped AccountTable in accounts.dat
+ * instead: changed accounts are written in place when the journal is compacted, and startup
+ * reads the fixed-width records without parsing any text. The first start in this mode creates
+ * accounts.dat from user_data.txt, which is not read or updated after that. So once accounts.dat
+ * exists it is the snapshot whatever the property says: mapped becomes the default, and a start
+ * with -Dlibrary.storage=text is refused rather than load the outdated user_data.txt.
+ * -Dlibrary.historyCache sets the bytes of recent transactions kept in the HistoryCache
+ * (default 64 MB, 0 to read every page from the transaction files).
+ * The snapshot is loaded by a StartupLoader, which parses user_data.txt on several threads and,
+ * with -Dlibrary.warmHistory=true, fills the HistoryCache before the server accepts connections.
+ * The journal records and transactions of every request are written by the CommitWriter
+ * thread; -Dlibrary.durability=enqueue answers requests before they are on disk.
+ * The time taken by each client operation, the waits for account locks and for the disk are
+ * recorded in the library's Metrics, which MetricsExporter publishes.
+ * With -Dlibrary.shards the accounts are partitioned by PPS number over several Providers, see
+ * ShardRouter: a library only loads and stores the accounts of its own shard, and sends the
+ * calls for the others to the shard that owns them. A transfer to another shard's account is a
+ * saga of durable local steps, see transferToShard.
+ * With -Dlibrary.replicationPort the committed changes are published to a ChangeStream, which
+ * the ReplicationServer sends to read replicas. A replica, started with -Dlibrary.replicaOf, is
+ * a library that holds what its primary streams to it and writes no files: it answers the reads
+ * itself, no further behind the primary than a bound, and has the primary run the writes, see
+ * Replica.
+ * Passwords are stored as salted hashes and checked by Credentials, on threads of their own, and
+ * a client that logged in can ask for a session token to log in with again, see SessionTable.
  */
 
 import java.io.*;
-import java.util.LinkedList;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
-public class Library {
+public final class Library {
 
-	private List<User> userList;
+	// Indexed store of all registered users
+	private UserStore users;
+	// Serializes rewrites of the user file, balances are guarded by each user's own lock
+	private final Object userFileLock = new Object();
+	// Write-ahead journal of changes since the last snapshot, null when nothing is persisted
+	private Journal journal;
+	// Appends new transactions to the transaction files, null when nothing is persisted
+	private TransactionLedger ledger;
+	// Writes the journal records and transactions of every request, null when nothing is persisted
+	private CommitWriter writer;
+	// Reads the transaction files, finding users by name to convert files of older versions
+	private final TransactionHistory history = new TransactionHistory(this::findPpsByName);
+	// Newest transactions of the accounts whose history was viewed lately
+	private final HistoryCache historyCache = new HistoryCache(Long.getLong("library.historyCache", 64L << 20));
+	// Latency histograms and counters of the operations on this library
+	private final Metrics metrics = new Metrics();
+	// Memory-mapped snapshot of the accounts, null when user_data.txt is the snapshot
+	private AccountTable table;
+	// Accounts changed since they were last written to the account table
+	private final Set<User> dirty = ConcurrentHashMap.newKeySet();
+	// Set while a background compaction is running
+	private final AtomicBoolean compacting = new AtomicBoolean();
+	// Runs the journal compactions off the request threads
+	private ExecutorService compactor;
+	// Sends the calls for the accounts of other shards to them, null unless library.shards is set
+	private final ShardRouter router;
+	// Transfers to accounts of other shards whose credit is not confirmed yet, by id
+	private final Map<String, OutgoingTransfer> outgoing = new ConcurrentHashMap<>();
+	// Ids of the transfers from other shards credited here, until their sender lets them go
+	private final Set<String> credited = ConcurrentHashMap.newKeySet();
+	// Committed changes for the read replicas, null unless library.replicationPort is set
+	private ChangeStream changes;
+	// Follows the primary of a read replica and runs its writes, null unless library.replicaOf is set
+	private final Replica replica;
+	// Hashes and checks the passwords
+	private final Credentials credentials;
+	// Sessions of the clients that asked for a token, to log in again without the password
+	private final SessionTable sessions;
 	private static final String USER_FILE = "user_data.txt";
-	private static final String FILE_PREFIX = "user_";
+	private static final String JOURNAL_FILE = "user_data.journal";
+	private static final String TABLE_FILE = "accounts.dat";
+	// Number of journal records after which a compacted snapshot is written
+	private static final long COMPACT_AFTER_RECORDS = 10_000;
+	// Taken by a transfer's new sender balance when the recipient's balance would overflow
+	private static final long OVERFLOW = Long.MIN_VALUE + 1;
+
+	/**
+	 * Sequence numbers of the journal records and transactions written by a group of requests,
+	 * so that they can all be made durable with one commit once the group has run.
+	 */
+	static final class PendingWrites {
+		private long journalSeq;
+		private long transactionSeq;
+
+		// Remembers the latest records that must be on disk
+		private void add(long journalSeq, long transactionSeq) {
+			this.journalSeq = Math.max(this.journalSeq, journalSeq);
+			this.transactionSeq = Math.max(this.transactionSeq, transactionSeq);
+		}
+
+		// Adds the writes of another group, so both can be synced together
+		void add(PendingWrites other) {
+			add(other.journalSeq, other.transactionSeq);
+		}
+	}
+
+	/**
+	 * A transfer to an account of another shard, from the debit of the sender until that shard
+	 * has credited the recipient or refused the credit.
+	 */
+	static final class OutgoingTransfer {
+		private final String id;
+		private final String sender;
+		private final String recipient;
+		private final long amount;
+		// Set while a thread is asking the recipient's shard for the credit
+		private final AtomicBoolean delivering = new AtomicBoolean();
+
+		OutgoingTransfer(String id, String sender, String recipient, long amount) {
+			this.id = id;
+			this.sender = sender;
+			this.recipient = recipient;
+			this.amount = amount;
+		}
+
+		// Journal record of the open transfer, S,<id>,<sender>,<recipient>,<amount>
+		private StringBuilder record() {
+			StringBuilder record = new StringBuilder("S,").append(id).append(',').append(sender)
+					.append(',').append(recipient).append(',');
+			return Money.append(record, amount);
+		}
+	}
 
 	public Library() {
-		userList = new LinkedList<>();
-		loadUsers(); // Load existing users from file on startup
+		router = ShardRouter.fromProperties();
+		replica = Replica.fromProperties();
+		credentials = Credentials.fromProperties();
+		sessions = SessionTable.fromProperties();
+		users = new UserStore();
+		if (replica != null) {
+			if (router != null) {
+				throw new IllegalArgumentException("A read replica can not be sharded, set library.replicaOf or library.shards");
+			}
+			// Only the primary writes the files, the replica loads its accounts from the primary
+			// once it is started
+			history.setReadOnly();
+			return;
+		}
+		boolean mapped = usesTable();
+		StartupLoader loader = StartupLoader.fromProperties();
+		try {
+			// Load the latest snapshot on startup
+			loader.time("snapshot", () -> {
+				if (mapped) {
+					openTable(loader);
+				} else {
+					loadUsers(loader);
+				}
+			});
+			loader.time("journal replay", this::replayJournal); // Apply the changes made after the snapshot
+			loader.warmHistory(users.users(), historyCache, history);
+			// Start a new journal on top of a fresh snapshot
+			journal = new Journal(JOURNAL_FILE);
+			ledger = new TransactionLedger(history, historyCache);
+			changes = ChangeStream.fromProperties();
+			if (changes != null) {
+				if (router != null) {
+					throw new IllegalArgumentException("A sharded library can not have read replicas, set library.replicationPort or library.shards");
+				}
+				journal.publishTo(changes);
+				ledger.publishTo(changes);
+			}
+			writer = new CommitWriter(journal, ledger, metrics);
+			writer.start();
+			compactor = Executors.newSingleThreadExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "journal-compactor");
+				thread.setDaemon(true);
+				return thread;
+			});
+			try {
+				loader.time("compaction", this::compact);
+			} catch (IOException e) {
+				// The journal is kept and replayed until a compaction succeeds
+				e.printStackTrace();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		loader.finish();
+	}
+
+	/**
+	 * Starts the work the library does in the background once it is constructed: a read replica
+	 * follows its primary, returning once the primary's snapshot is loaded, and a sharded
+	 * library keeps asking for the credits of transfers whose shard did not answer.
+	 * Called once, before the library serves any request.
+	 */
+	public void start() {
+		if (replica != null) {
+			replica.start(this);
+		}
+		if (router != null && writer != null) {
+			long retryMillis = Long.getLong("library.transferRetryMillis", 1000);
+			ScheduledExecutorService retries = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "transfer-retry");
+				thread.setDaemon(true);
+				return thread;
+			});
+			retries.scheduleWithFixedDelay(this::retryTransfers, retryMillis, retryMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Creates a library over an already populated user store without reading the user file.
+	 * Nothing is journaled; used by tools such as the benchmarks that work on generated users.
+	 */
+	Library(UserStore users) {
+		this(users, Credentials.fromProperties());
+	}
+
+	/**
+	 * Creates a library over an already populated user store that checks passwords with the
+	 * given credentials, for the login benchmark.
+	 */
+	Library(UserStore users, Credentials credentials) {
+		this.users = users;
+		this.credentials = credentials;
+		sessions = SessionTable.fromProperties();
+		router = null;
+		replica = null;
 	}
 
 	/**
 	* Loads user data from a file.
-	* Reads each line from the file, extracts user information, and creates User objects.
-	* The User objects are then added to the userList.
+	* The lines of the file are parsed into User objects on the loader's threads, a chunk of
+	* the file at a time, and the User objects are added to the user store in the order of the file.
 	*/
-	private void loadUsers() {
-		// Using try to automatically close the BufferReader when done
-		// Read from a file specified by FileReader
-		// Reference: https://stackoverflow.com/questions/13405822/using-bufferedreader-readline-in-a-while-loop-properly
-		try (BufferedReader reader = new BufferedReader(new FileReader(USER_FILE))) {
-			// Reading each line from the file until there are no more lines
-			String line;
-			while ((line = reader.readLine()) != null) {
-				// Split the line into array using ','
-				String[] userData = line.split(",");
-				// Split data should have expected length of 6
-				if (userData.length == 6) {
-					// Extract and save user data from the array
-					String name = userData[0].trim();
-					String ppsNum = userData[1].trim();
-					String mail = userData[2].trim();
-					String pass = userData[3].trim();
-					String address = userData[4].trim();
-					String balance = userData[5].trim();
-					// Convert balance string to float 
-					float balanceValue = Float.parseFloat(balance);
-
-					// Creating new User object using provided data
-					User user = new User(name, ppsNum, mail, pass, address, balanceValue);
-					// Adding User object to the userList
-					userList.add(user);
+	private void loadUsers(StartupLoader loader) {
+		try {
+			// A sharded library only keeps the accounts of its own shard
+			int loaded = loader.loadUsers(Paths.get(USER_FILE), Library::parseUser, user -> owns(user.getPpsNum()), users);
+			Log.info("Loaded " + loaded + " accounts from " + USER_FILE);
+		} catch (NoSuchFileException e) {
+			// No snapshot yet, every user is in the journal
+		} catch (IOException | NumberFormatException e) {
+			// Handle exceptions that may occur during the file reading
+			e.printStackTrace();
+		}
+	}
+
+	// Checks whether the snapshot is the account table: library.storage=mapped, which is the
+	// default once accounts.dat exists, as user_data.txt is no longer updated after that
+	private static boolean usesTable() {
+		boolean exists = new File(TABLE_FILE).exists();
+		String storage = System.getProperty("library.storage", exists ? "mapped" : "text");
+		if (exists && !storage.equals("mapped")) {
+			throw new IllegalArgumentException("The accounts are kept in " + TABLE_FILE + " and " + USER_FILE
+					+ " is out of date, start with library.storage=mapped");
+		}
+		return storage.equals("mapped");
+	}
+
+	/**
+	 * Opens the account table and loads the users from it.
+	 * If there is no table yet, it is created from the users in the user file; if that fails,
+	 * the half-made table is removed and the user file is used as the snapshot instead. An
+	 * existing table that can not be opened stops the startup, as the user file is out of date.
+	 */
+	private void openTable(StartupLoader loader) {
+		boolean exists = new File(TABLE_FILE).exists();
+		try {
+			table = AccountTable.open(TABLE_FILE);
+			if (exists) {
+				table.load(users, this::owns);
+				return;
+			}
+			// First start with the account table, copy every user into it
+			loadUsers(loader);
+			for (User user : users.users()) {
+				table.write(user, user.getBalance(), user.getPassword().toString());
+			}
+			table.force();
+		} catch (IOException e) {
+			if (exists) {
+				throw new UncheckedIOException("Could not open " + TABLE_FILE, e);
+			}
+			if (table != null) {
+				try {
+					table.close();
+				} catch (IOException closeFailure) {
+					e.addSuppressed(closeFailure);
 				}
+				table = null;
+			}
+			e.printStackTrace();
+			new File(TABLE_FILE).delete();
+			users = new UserStore();
+			loadUsers(loader);
+		}
+	}
+
+	/**
+	 * Replays the journal on top of the loaded snapshot.
+	 * Records hold the new absolute values, so replaying a change that is already
+	 * part of the snapshot leaves the user data unchanged.
+	 */
+	private void replayJournal() {
+		try {
+			for (String record : Journal.read(JOURNAL_FILE)) {
+				applyRecord(record);
 			}
 		} catch (IOException | NumberFormatException e) {
-			// Handle exceptions that may occur during the file reading
 			e.printStackTrace();
 		}
 	}
+
+	/**
+	 * Applies one journal record to the user store. The records are:
+	 * U,<user line> for a registration, P,<pps>,<password> for a password change and
+	 * B,<pps>,<balance>[,<pps>,<balance>] for the new balances of one or two accounts.
+	 * A sharded library also journals the transfers between shards:
+	 *   S,<id>,<sender>,<recipient>,<amount>[,<balance>]  a transfer to another shard was opened,
+	 *                                                     debiting the sender to the balance
+	 *   D,<id>                                            its credit was confirmed
+	 *   F,<id>,<sender>,<balance>                         its credit was refused, sender refunded
+	 *   C,<id>[,<recipient>,<balance>]                    a transfer from another shard was credited
+	 *   E,<id>                                            its sender will not ask for it again
+	 * The records without a balance are the ones carried over to a new journal by a compaction.
+	 */
+	private void applyRecord(String record) {
+		// Split the record into its type and its data
+		String[] fields = record.split(",", 2);
+		if (fields.length < 2) {
+			return;
+		}
+		switch (fields[0]) {
+			case "U":
+				User newUser = parseUser(fields[1]);
+				if (newUser != null && owns(newUser.getPpsNum()) && users.add(newUser)) {
+					markDirty(newUser);
+				}
+				break;
+			case "P":
+				String[] password = fields[1].split(",", 2);
+				User passwordUser = users.findByPps(password[0]);
+				if (passwordUser != null && password.length == 2) {
+					passwordUser.setPassword(password[1]);
+					markDirty(passwordUser);
+				}
+				break;
+			case "B":
+				String[] balances = fields[1].split(",");
+				// Balances come in pairs of PPS number and new balance
+				for (int i = 0; i + 1 < balances.length; i += 2) {
+					applyBalance(balances[i], balances[i + 1]);
+				}
+				break;
+			case "S":
+				String[] open = fields[1].split(",");
+				outgoing.put(open[0], new OutgoingTransfer(open[0], open[1], open[2], Money.parse(open[3])));
+				if (open.length == 5) {
+					applyBalance(open[1], open[4]);
+				}
+				break;
+			case "D":
+				outgoing.remove(fields[1]);
+				break;
+			case "F":
+				String[] refund = fields[1].split(",");
+				outgoing.remove(refund[0]);
+				applyBalance(refund[1], refund[2]);
+				break;
+			case "C":
+				String[] credit = fields[1].split(",");
+				credited.add(credit[0]);
+				if (credit.length == 3) {
+					applyBalance(credit[1], credit[2]);
+				}
+				break;
+			case "E":
+				credited.remove(fields[1]);
+				break;
+			default:
+				break;
+		}
+	}
+
+	// Sets the balance of an account from a journal record, if the account is known
+	private void applyBalance(String ppsNum, String balance) {
+		User user = users.findByPps(ppsNum);
+		if (user != null) {
+			user.setBalance(Money.parseLegacy(balance));
+			markDirty(user);
+		}
+	}
+
+	/**
+	 * Loads a snapshot of the accounts of a read replica's primary, as lines of the user file.
+	 * Accounts the replica already has take the balance and password of the snapshot, and the
+	 * cached transactions are dropped, as the replica may have missed some of them.
+	 */
+	void applySnapshot(List<String> lines) {
+		historyCache.clear();
+		for (String line : lines) {
+			User user = parseUser(line);
+			if (user == null || users.add(user)) {
+				continue;
+			}
+			User known = users.findByPps(user.getPpsNum());
+			if (known != null) {
+				known.setPassword(user.getPassword().toString());
+				known.setBalance(user.getBalance());
+			}
+		}
+	}
+
+	/**
+	 * Applies a batch of changes from the stream of a read replica's primary, see ChangeStream.
+	 */
+	void applyChanges(List<String> records) {
+		for (String record : records) {
+			if (!record.startsWith("T,")) {
+				applyRecord(record);
+				continue;
+			}
+			String[] fields = record.split(",", -1);
+			// Excludes the loads of the cache, like the ledger's writes on the primary
+			historyCache.lockWrites();
+			try {
+				historyCache.append(fields[1], List.of(ChangeStream.parseTransaction(fields)));
+			} finally {
+				historyCache.unlockWrites();
+			}
+		}
+	}
+
+	/**
+	 * Returns every account as a line of the user file, for the snapshot sent to a new replica.
+	 */
+	List<String> snapshot() {
+		List<String> lines = new ArrayList<>(users.size());
+		for (User user : users.users()) {
+			lines.add(formatUser(user));
+		}
+		return lines;
+	}
+
+	/**
+	 * Waits until every change made so far is committed, and so published, and returns the
+	 * number of the last change published, for the ReplicationServer to tell a replica which
+	 * change holds a write it ran for it.
+	 */
+	long awaitPublished() {
+		awaitDurable(journal.getAppendedSeq(), ledger.getAppendedSeq());
+		return changes.getPublishedSeq();
+	}
+
+	/**
+	 * Creates a User from a comma-separated line of the user file.
+	 * Returns null if the line does not have the expected 6 fields.
+	 */
+	private static User parseUser(String line) {
+		// Split the line into array using ','
+		String[] userData = line.split(",");
+		// Split data should have expected length of 6
+		if (userData.length != 6) {
+			return null;
+		}
+		// Extract and save user data from the array
+		String name = userData[0].trim();
+		String ppsNum = userData[1].trim();
+		String mail = userData[2].trim();
+		String pass = userData[3].trim();
+		String address = userData[4].trim();
+		String balance = userData[5].trim();
+		// Convert balance string to cents, older files may hold a rounded float
+		long balanceValue = Money.parseLegacy(balance);
+
+		// Creating new User object using provided data
+		return new User(name, ppsNum, mail, pass, address, balanceValue);
+	}
+
+	// Formats a user as a comma-separated line of the user file
+	private static String formatUser(User user) {
+		StringBuilder line = new StringBuilder(128)
+				.append(user.getName()).append(',')
+				.append(user.getPpsNum()).append(',')
+				.append(user.getMail()).append(',')
+				.append(user.getPassword()).append(',')
+				.append(user.getAddress()).append(',');
+		return Money.append(line, user.getBalance()).toString();
+	}
+
 	/**
 	 * Saves user data to a file.
 	 * Each user's information is formatted as a comma-separated string and written to the file.
-	 * The file is specified by the USER_FILE constant.
+	 * The file is specified by the USER_FILE constant. The data is written to a temporary file
+	 * that then replaces the user file, so a crash while writing never truncates it.
+	 * Only one thread rewrites the file at a time; account locks are not held while writing.
+	 * With the account table, only the accounts changed since the last save are written to it.
+	 * Throws IOException if the snapshot could not be written, leaving the previous one in place.
+	 */
+	void saveUsers() throws IOException {
+		long start = System.nanoTime();
+		synchronized (userFileLock) {
+			if (table != null) {
+				writeTable();
+			} else {
+				writeUsers();
+			}
+		}
+		metrics.recordFlush(Metrics.Flush.SNAPSHOT, start);
+	}
+
+	/**
+	 * Writes the changed accounts to the account table, the caller holds userFileLock.
+	 * The balance and password of each account are read under its lock, and the journal is
+	 * committed before they are written, so the table never holds a change the journal lacks.
+	 * If writing fails, the accounts are marked as changed again for the next save.
 	 */
-	void saveUsers() {
+	private void writeTable() throws IOException {
+		List<User> changed = new ArrayList<>();
+		List<Long> balances = new ArrayList<>();
+		List<String> passwords = new ArrayList<>();
+		for (User user : dirty) {
+			// Removed before reading, so a change made meanwhile marks the account again
+			dirty.remove(user);
+			user.getLock().lock();
+			try {
+				changed.add(user);
+				balances.add(user.getBalance());
+				passwords.add(user.getPassword().toString());
+			} finally {
+				user.getLock().unlock();
+			}
+		}
+		try {
+			if (writer != null) {
+				try {
+					writer.awaitDurable(journal.getAppendedSeq(), 0);
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
+			}
+			for (int i = 0; i < changed.size(); i++) {
+				table.write(changed.get(i), balances.get(i), passwords.get(i));
+			}
+			table.force();
+		} catch (IOException e) {
+			dirty.addAll(changed);
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes every user to the user file, the caller holds userFileLock.
+	 * As in writeTable, each account is read under its lock, so the journal already holds the
+	 * record of every change the file shows, and the journal is committed before the file
+	 * replaces the user file: a crash never leaves a snapshot with half of a transfer whose
+	 * records are lost.
+	 */
+	private void writeUsers() throws IOException {
+		File tempFile = new File(USER_FILE + ".tmp");
 		// Using try to automatically close the BufferReader when done
 		// Save from a file specified by FileReader
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(USER_FILE))) {
-			// Iterate through each User in the userList
-			for (User user : userList) {
-				// Formatting data as a string using ','
-				String line = String.format("%s,%s,%s,%s,%s,%.2f",
-						user.getName(), user.getPpsNum(), user.getMail(),
-						user.getPassword(), user.getAddress(), user.getBalance());
-				// Write string to the file
-				writer.write(line);
+		try (FileOutputStream stream = new FileOutputStream(tempFile);
+				BufferedWriter out = new BufferedWriter(new OutputStreamWriter(stream))) {
+			// Iterate through each User in registration order
+			for (User user : users.users()) {
+				String line;
+				user.getLock().lock();
+				try {
+					line = formatUser(user);
+				} finally {
+					user.getLock().unlock();
+				}
+				// Write the user data as a comma-separated string to the file
+				out.write(line);
 				// Move to the next line of the file
-				writer.newLine();
+				out.newLine();
+			}
+			// Make sure the snapshot is on disk before it replaces the user file
+			out.flush();
+			stream.getFD().sync();
+			if (writer != null) {
+				try {
+					writer.awaitDurable(journal.getAppendedSeq(), 0);
+				} catch (UncheckedIOException e) {
+					throw e.getCause();
+				}
 			}
-			// Handle exceptions that may occur during file operations
 		} catch (IOException e) {
-			e.printStackTrace();
+			// Leave the user file as it was
+			tempFile.delete();
+			throw e;
 		}
+		Files.move(tempFile.toPath(), Paths.get(USER_FILE),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
 	}
+
 	/**
-	 * Saves a user's transaction history to a file.
-	 * This method creates or appends to a file named after the user's PPS number,
-	 * then writes each transaction from the user's transaction list to the file,
-	 * followed by a new line. If the file or write operation encounters any errors,
-	 * they are printed to the console.
+	 * Writes a compacted snapshot and drops the journal records it covers.
+	 * The journal is rotated first, so every record in the rotated file was applied
+	 * before the snapshot reads the users. Records appended during the snapshot go to
+	 * the new journal and are replayed on top of it.
+	 * The open transfers between shards are not part of the snapshot, so they are carried over
+	 * to the new journal, and must be on disk there before the rotated file is deleted.
+	 * The rotated file is only deleted once the snapshot is saved: if saving it fails, the
+	 * exception is thrown and the rotated file is kept, and the next compaction adds the records
+	 * of the current journal to it, see Journal.rotate.
 	 */
-	void saveUserTransactions(User user) {
-		// Create the file name based on the user's PPS number
-		String transactionFileName = FILE_PREFIX + user.getPpsNum() + ".txt";
+	private void compact() throws IOException {
+		journal.rotate();
+		long carried = journal.appendAll(this::transferRecords);
+		saveUsers();
+		try {
+			awaitDurable(carried, 0);
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		journal.deleteRotated();
+	}
 
-		try (BufferedWriter writer = new BufferedWriter(new FileWriter(transactionFileName, true))) {
-			// Retrieve the list of transactions for the user
-			List<String> transactions = user.getTransactions();
+	// Returns the records of the transfers between shards that are still open on this side,
+	// without balances, which the snapshot holds; called while the journal is held
+	private List<String> transferRecords() {
+		List<String> records = new ArrayList<>();
+		for (OutgoingTransfer transfer : outgoing.values()) {
+			records.add(transfer.record().toString());
+		}
+		for (String id : credited) {
+			records.add("C," + id);
+		}
+		return records;
+	}
 
-			// Write each transaction to the file, followed by a new line
-			for (String transaction : transactions) {
-				writer.write(transaction);
-				writer.newLine();
-			}
-			// Handle exceptions that may occur during file operations
-		} catch (IOException e) {
-			e.printStackTrace();
+	/**
+	 * Checks whether a background compaction is running, for tools that read the files.
+	 */
+	boolean isCompacting() {
+		return compacting.get();
+	}
+
+	/**
+	 * Appends a journal record and returns its sequence number.
+	 * Callers changing an account hold its lock, so the records of one account are in order.
+	 */
+	private long journal(String record) {
+		return journal == null ? 0 : journal.append(record);
+	}
+
+	/**
+	 * Applies a change and appends the journal record it returns, or nothing if it returns null,
+	 * and returns the record's sequence number. Only the append holds the journal, the change
+	 * runs before it; callers changing accounts hold their locks across both, so the records of
+	 * each account are in the order its balance changed and none holds half of a transfer.
+	 */
+	private long journal(Supplier<String> change) {
+		String record = change.get();
+		return record == null ? 0 : journal(record);
+	}
+
+	/**
+	 * Waits until the given journal records and transactions are on disk, whatever the
+	 * durability mode, for the steps of a transfer between shards.
+	 */
+	private void awaitDurable(long seq, long transactionSeq) {
+		if (writer != null) {
+			writer.awaitDurable(seq, transactionSeq);
+		}
+	}
+
+	// Waits, on a read replica, until it is no further behind its primary than allowed, see Replica
+	private void awaitFresh() {
+		if (replica != null) {
+			replica.awaitFresh();
+		}
+	}
+
+	// Checks whether an account belongs to this library, which is always true unless it is sharded
+	private boolean owns(String ppsNum) {
+		return router == null || router.isLocal(ppsNum);
+	}
+
+	/**
+	 * Marks accounts to be written to the account table by the next save.
+	 * Callers mark an account after changing it and before journaling the change, so a
+	 * compaction that drops the journal record always finds the account marked.
+	 */
+	private void markDirty(User... changed) {
+		if (table == null) {
+			return;
+		}
+		for (User user : changed) {
+			dirty.add(user);
+		}
+	}
+
+	// Returns the journal record with the current balances of the given users
+	private static String balanceRecord(User... changed) {
+		StringBuilder record = new StringBuilder("B");
+		for (User user : changed) {
+			record.append(',').append(user.getPpsNum()).append(',');
+			Money.append(record, user.getBalance());
 		}
+		return record.toString();
 	}
+
+	/**
+	 * Hands the journal records and queued transactions up to the given sequence numbers to the
+	 * commit writer, waiting until they are on disk unless the durability mode is enqueue.
+	 * Once the journal has grown past COMPACT_AFTER_RECORDS, a compaction is started
+	 * in the background.
+	 */
+	private void commit(long seq, long transactionSeq) {
+		if (writer == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		writer.commit(seq, transactionSeq);
+		metrics.recordCommitWait(start);
+		if (journal.getRecordCount() >= COMPACT_AFTER_RECORDS && compacting.compareAndSet(false, true)) {
+			compactor.execute(() -> {
+				try {
+					compact();
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					compacting.set(false);
+				}
+			});
+		}
+	}
+	/**
+	 * Queues the new transactions of a user for their transaction file.
+	 * The caller holds the user's lock; only entries not yet in the file are queued.
+	 */
+	private long queueTransactions(User user) {
+		return ledger == null ? 0 : ledger.append(user);
+	}
+
 	/**
 	 * Adds a new user to the system with the provided information.
 	 * This method attempts to add a new user with the specified details to the system.
-	 * It checks for uniqueness of the user's email and PPS number before adding the user
-	 * to the user list. If the user is unique, they are added to the list, and the user list
-	 * is saved to a file. The initial transaction for the new user is also saved.
+	 * The user store checks the uniqueness of the user's email and PPS number and adds the
+	 * user in one atomic step. If the user is unique, the user list is saved to a file and
+	 * the initial transaction for the new user is also saved.
+	 * A user whose PPS number does not fit in a Transaction record is not added, nor with the
+	 * account table a user whose fields do not fit in its record.
+	 * When sharded, the user is registered by the shard that owns the PPS number, which first
+	 * asks the other shards whether the email address is in use. Two registrations of one
+	 * address on different shards at the same moment can both pass that check.
 	 */
-	public synchronized boolean addUser(String name, String ppsNum, String mail, String pass, String address, String balance) {
+	public boolean addUser(String name, String ppsNum, String mail, String pass, String address, String balance) {
+		long start = System.nanoTime();
+		boolean added = register(name, ppsNum, mail, pass, address, balance);
+		metrics.record(Metrics.Operation.REGISTER, start);
+		return added;
+	}
+
+	// Adds a new user as described for addUser
+	private boolean register(String name, String ppsNum, String mail, String pass, String address, String balance) {
+		if (replica != null) {
+			try {
+				return replica.register(name, ppsNum, mail, pass, address, balance);
+			} catch (IOException e) {
+				Log.warn("Could not register " + ppsNum + " on the primary: " + e);
+				return false;
+			}
+		}
+		if (!owns(ppsNum)) {
+			try {
+				return router.register(name, ppsNum, mail, pass, address, balance);
+			} catch (IOException e) {
+				Log.warn("Could not register " + ppsNum + " on its shard: " + e);
+				return false;
+			}
+		}
 		try {
-			// Convert balance string to float
-			float balanceValue = Float.parseFloat(balance);
+			// Convert balance string to cents
+			long balanceValue = Money.parse(balance);
+			// Only the hash of the password is kept
+			String hash = credentials.hash(pass);
+			if (hash == null) {
+				return false;
+			}
 			// Create a new User with the provided information
-			User newUser = new User(name, ppsNum, mail, pass, address, balanceValue);
-
-			// Check for unique PPS Number and Email before adding the user
-			boolean isUnique = true;
-			for (User u : userList) {
-				if (u.getMail().equals(mail) || u.getPpsNum().equals(ppsNum)) {
-					isUnique = false;
-					break;
-				}
+			User newUser = new User(name, ppsNum, mail, hash, address, balanceValue);
+			// The PPS number must fit in the transaction records of other accounts
+			if (!Transaction.fitsAccount(ppsNum) || (table != null && !AccountTable.fits(newUser))) {
+				return false;
+			}
+			// The email address must not be in use on another shard either
+			if (router != null && router.isMailUsedOnOtherShards(mail)) {
+				return false;
 			}
-			// Add the new user to the user list if it is unique
-			if (isUnique) {
-				userList.add(newUser);
-				// Save the updated user list to a file
-				saveUsers();
-				// Save the initial transaction for the new user
-				saveUserTransactions(newUser);
-				// Return true for successful addition
-				return true;
+
+			long seq;
+			// Hold the new account's lock so its registration is journaled before any change to it
+			lock(newUser);
+			try {
+				// Add the new user to the store if its PPS Number and Email are unique
+				if (!users.add(newUser)) {
+					return false;
+				}
+				markDirty(newUser);
+				seq = journal("U," + formatUser(newUser));
+			} finally {
+				newUser.getLock().unlock();
 			}
+			// Wait until the registration is on disk
+			commit(seq, 0);
+			// Return true for successful addition
+			return true;
 		} catch (NumberFormatException e) {
 			e.printStackTrace();
 		}
@@ -148,33 +845,138 @@ public class Library {
 	}
 	/**
 	 * Login user based on the provided email and password.
-	 * This method iterates through the list of users and checks if the provided email
-	 * and password match any user's credentials. If a match is found, the authenticated user
-	 * is returned; otherwise, null is returned.
+	 * This method looks up the user by email in the email index and checks the password.
+	 * If they match, the authenticated user is returned; otherwise, null is returned.
+	 * The password is checked on the Credentials threads without holding any lock. Throws
+	 * RejectedExecutionException if too many logins are already waiting for them, so the client
+	 * can be told to try again instead of that the password is wrong.
 	 */
-	public synchronized User loginUser(String email, String password) {
-		// Iterate through the list of users
-		for (User user : userList) {
-			// Check if email and password match the current user
-			if (user.getMail().equals(email) && user.authenticate(password)) {
-				// Return the authenticated user
-				return user;
+	public User loginUser(String email, String password) {
+		long start = System.nanoTime();
+		try {
+			awaitFresh();
+			// Look up the user registered with this email
+			User user = users.findByMail(email);
+			// Check if the password matches the user found
+			boolean authenticated = user != null && authenticate(user, password);
+			if (user == null && router != null) {
+				// The account may be on another shard, which checks the password
+				user = router.findOnOtherShards(shard -> router.login(shard, email, password));
+				authenticated = user != null;
 			}
+			// Return the authenticated user, or null if not found
+			return authenticated ? user : null;
+		} finally {
+			metrics.record(Metrics.Operation.LOGIN, start);
 		}
-		// If not found return null
-		return null;
+	}
+
+	/**
+	 * Logs in a user like loginUser, but without waiting for the password check: the future
+	 * completes with the user, or null, once a Credentials thread has checked the password, and
+	 * fails with RejectedExecutionException if too many logins are already waiting. What follows
+	 * the check, such as replacing an old hash, runs on the executor. So does the whole login on a
+	 * read replica, which may wait for its primary, and for an account of another shard.
+	 */
+	public CompletableFuture<User> loginUserAsync(String email, String password, Executor executor) {
+		User user = users.findByMail(email);
+		if (replica != null || user == null && router != null) {
+			return CompletableFuture.supplyAsync(() -> loginUser(email, password), executor);
+		}
+		long start = System.nanoTime();
+		CompletableFuture<Boolean> authenticated = user == null ? CompletableFuture.completedFuture(false)
+				: authenticate(user, password, executor);
+		return authenticated.whenComplete((matches, e) -> metrics.record(Metrics.Operation.LOGIN, start))
+				.thenApply(matches -> matches ? user : null);
 	}
 	
+	/**
+	 * Opens a session for a user who has logged in, in the interactive dialogue or a pipeline of
+	 * typed requests, and returns its token. Until the session has been idle for
+	 * library.sessionTokenSeconds or the user's password changes, resumeSession logs the user in
+	 * with the token without checking the password again.
+	 */
+	public String issueSessionToken(User user, boolean interactive) {
+		return sessions.open(user, user.getPassword().toString(), interactive);
+	}
+
+	/**
+	 * Resumes the session of a token issued by this library, or returns null if the token is
+	 * unknown or no longer valid.
+	 */
+	public SessionTable.Session resumeSession(String token) {
+		long start = System.nanoTime();
+		awaitFresh();
+		SessionTable.Session session = sessions.resume(token);
+		metrics.record(Metrics.Operation.RESUME, start);
+		return session;
+	}
+
+	// Checks the password of a user and waits for the check, see rehash
+	private boolean authenticate(User user, String password) {
+		String stored = user.getPassword().toString();
+		boolean matches;
+		try {
+			matches = credentials.verify(user, stored, password).join();
+		} catch (CompletionException e) {
+			// Rethrow the RejectedExecutionException of a full queue as it is
+			if (e.getCause() instanceof RejectedExecutionException rejected) {
+				throw rejected;
+			}
+			throw e;
+		}
+		if (matches) {
+			rehash(user, stored, password);
+		}
+		return matches;
+	}
+
+	// Checks the password of a user without waiting, the rehash runs on the executor
+	private CompletableFuture<Boolean> authenticate(User user, String password, Executor executor) {
+		String stored = user.getPassword().toString();
+		return credentials.verify(user, stored, password).thenApplyAsync(matches -> {
+			if (matches) {
+				rehash(user, stored, password);
+			}
+			return matches;
+		}, executor);
+	}
+
+	// Replaces a stored plain password of an older version, or a hash made with another
+	// iteration count, with a new hash once the password is known to be right
+	private void rehash(User user, String stored, String password) {
+		if (credentials.needsRehash(stored) && replica == null && owns(user.getPpsNum())) {
+			String hash = credentials.hash(password);
+			if (hash != null) {
+				long seq = 0;
+				lock(user);
+				try {
+					// Unless the password was changed in the meantime
+					if (stored.equals(user.getPassword().toString())) {
+						user.setPassword(hash);
+						markDirty(user);
+						seq = journal("P," + user.getPpsNum() + "," + hash);
+					}
+				} finally {
+					user.getLock().unlock();
+				}
+				if (seq != 0) {
+					commit(seq, 0);
+				}
+			}
+		}
+	}
+
 	/**
 	 * This method retrieves a list of user information in the form of strings.
 	 * The file name is specified by the file prefix and user PPS number.
 	 */
-	public synchronized List<String> getAllUsers() {
-		// Create new LinkedList to store the user information
-		List<String> userStrings = new LinkedList<>();
+	public List<String> getAllUsers() {
+		// Create new list sized for the user information
+		List<String> userStrings = new ArrayList<>(users.size());
 		
-		// Iterate through each object in the userList
-		for (User user : userList) {
+		// Iterate through each registered user
+		for (User user : users.users()) {
 			// Converting each User object to its string format
 			userStrings.add(user.toString());
 		}
@@ -186,85 +988,740 @@ public class Library {
 	 * Transfers money from one user's account to another.
 	 * This method is money transfer operation by deducting the specified amount from 
 	 * the sender's balance and adding it to the recipient's balance, while
-	 * also updating transaction records for both users. If the sender has a sufficient
-	 * balance for the transaction, it is executed successfully, and true is returned;
-	 * otherwise, false is returned to indicate insufficient funds for the transfer.
+	 * also updating transaction records for both users. Returns the WireCodec status of the
+	 * transfer: OK if the sender has a sufficient balance and it is executed successfully,
+	 * INSUFFICIENT_FUNDS if not, and INVALID_REQUEST, with no balance changed, if a balance
+	 * would overflow.
+	 * Only the locks of the two accounts are taken, so transfers between unrelated
+	 * accounts run in parallel; they keep the transactions of each account in order, while
+	 * the balances change by compare-and-set, so lodgements do not wait for them.
+	 * Both new balances are journaled as a single record,
+	 * which is committed to disk after the locks are released. The amount is in cents;
+	 * IllegalArgumentException is thrown if it is not positive.
+	 * When sharded, a transfer from another shard's account is run by that shard, and one to
+	 * another shard's account is a saga, see transferToShard, which also returns
+	 * RECIPIENT_NOT_FOUND if the other shard refuses the credit, or PENDING if it does not answer;
+	 * UncheckedIOException is thrown if the shard that owns the sender's account can not be reached.
 	 * Reference: https://stackoverflow.com/questions/39435649/spring-boot-test-service-class
 
 	 */
-	public synchronized boolean transferMoney(User sender, User recipient, float amount) {
-		// Check if the sender has sufficient balance for transaction
-		if (sender.getBalance() >= amount) {
-			// Deduct the amount from the sender's balance
-			sender.setBalance(sender.getBalance() - amount);
-			// Add the amount to the recipient's balance
-			recipient.setBalance(recipient.getBalance() + amount);
-
-			// Update transactions for sender and recipient
-			sender.addTransaction("Sent $" + amount + " to " + recipient.getName().toUpperCase());
-			recipient.addTransaction("Received $" + amount + " from " + sender.getName().toUpperCase());
-			
-			saveUsers(); // Save the updated user balances to file
-			saveUserTransactions(sender); // Save sender's transactions to file
-			saveUserTransactions(recipient); // Save recipient's transactions to file
-			
-			// Indicate successful transfer
+	public byte transferMoney(User sender, User recipient, long amount) {
+		long start = System.nanoTime();
+		PendingWrites pending = new PendingWrites();
+		try {
+			byte status = transferMoney(sender, recipient, amount, pending);
+			// Save the updated user balances to the journal and the new transactions to file
+			sync(pending);
+			return status;
+		} finally {
+			metrics.record(Metrics.Operation.TRANSFER, start);
+		}
+	}
+
+	/**
+	 * Transfers money like transferMoney(User, User, long) without waiting for the disk.
+	 * The journal record and transactions are added to pending, and the caller must sync
+	 * them before telling anyone that the transfer happened.
+	 */
+	byte transferMoney(User sender, User recipient, long amount, PendingWrites pending) {
+		if (amount <= 0) {
+			throw new IllegalArgumentException("Amount must be positive: " + amount);
+		}
+		if (replica != null) {
+			return transferOnPrimary(sender, recipient, amount);
+		}
+		if (!owns(sender.getPpsNum())) {
+			return transferOnShard(sender, recipient, amount);
+		}
+		if (!owns(recipient.getPpsNum())) {
+			return transferToShard(sender, recipient, amount);
+		}
+		long seq;
+		long transactionSeq;
+		// Balances of the sender and the recipient right after the transfer
+		long[] after = {User.INSUFFICIENT_FUNDS, 0};
+		lockAccounts(sender, recipient);
+		try {
+			// Both accounts are locked until the record is appended, so no other journal record
+			// can hold the sender's new balance without the recipient's
+			seq = journal(() -> {
+				// Take the amount from the sender if the balance covers it
+				long senderBalance = sender.withdraw(amount);
+				if (senderBalance == User.INSUFFICIENT_FUNDS) {
+					return null;
+				}
+				try {
+					after[1] = recipient.lodge(amount);
+				} catch (ArithmeticException e) {
+					// Give the amount back, so an overflow leaves both accounts unchanged
+					sender.lodge(amount);
+					after[0] = OVERFLOW;
+					return null;
+				}
+				// A transfer to the sender's own account ends where it started
+				after[0] = sender == recipient ? after[1] : senderBalance;
+				markDirty(sender, recipient);
+				// Journal both new balances as one record
+				return balanceRecord(sender, recipient);
+			});
+			if (after[0] == User.INSUFFICIENT_FUNDS) {
+				// The sender does not have sufficient amount to transfer
+				return WireCodec.INSUFFICIENT_FUNDS;
+			}
+			if (after[0] == OVERFLOW) {
+				return WireCodec.INVALID_REQUEST;
+			}
+
+			// Update transactions for sender and recipient, the ids are given when they are written
+			long now = System.currentTimeMillis();
+			sender.addTransaction(new Transaction(0, now, Transaction.Type.SENT, recipient.getPpsNum(), amount, after[0]));
+			recipient.addTransaction(new Transaction(0, now, Transaction.Type.RECEIVED, sender.getPpsNum(), amount, after[1]));
+			// Queue only the two new transactions for the transaction files
+			queueTransactions(sender);
+			transactionSeq = queueTransactions(recipient);
+		} finally {
+			unlockAccounts(sender, recipient);
+		}
+		pending.add(seq, transactionSeq);
+		
+		// Indicate successful transfer
+		return WireCodec.OK;
+	}
+
+	/**
+	 * Has the primary of a read replica run a transfer, whose new balances are applied here
+	 * before it returns.
+	 */
+	private byte transferOnPrimary(User sender, User recipient, long amount) {
+		try {
+			return replica.transfer(sender.getPpsNum(), recipient.getPpsNum(), amount);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Has the shard that owns the sender's account run a transfer, which is durable there once it
+	 * answers, and updates the sender's balance to the one it sent back.
+	 */
+	private byte transferOnShard(User sender, User recipient, long amount) {
+		ShardRouter.Outcome outcome;
+		try {
+			outcome = router.transfer(sender.getPpsNum(), recipient.getPpsNum(), amount);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		sender.setBalance(outcome.balance());
+		return outcome.status();
+	}
+
+	/**
+	 * Transfers money to an account of another shard as a saga of steps that are each durable:
+	 *   1. the sender is debited and the transfer opened with one journal record, which is on
+	 *      disk before the other shard hears of it, so a crash can not lose a debit once credited
+	 *   2. the recipient's shard credits the recipient, once per transfer id however often asked
+	 *   3. the transfer is closed, or if the credit was refused the sender is refunded, and the
+	 *      refund shows in the sender's history as money received back from the recipient
+	 * If the other shard does not answer, the transfer stays open and the credit is asked for
+	 * again in the background, also after a restart, until the shard answers. It is reported as
+	 * PENDING meanwhile, as the money has left the sender and the credit only waits for the shard.
+	 * A refused credit is reported with the status the shard refused it with once the sender is
+	 * refunded: RECIPIENT_NOT_FOUND, or INVALID_REQUEST if the recipient's balance would overflow.
+	 * The steps wait for the disk whatever the durability mode, so the pending writes are unused.
+	 */
+	private byte transferToShard(User sender, User recipient, long amount) {
+		OutgoingTransfer transfer = new OutgoingTransfer(UUID.randomUUID().toString(), sender.getPpsNum(),
+				recipient.getPpsNum(), amount);
+		long[] after = {User.INSUFFICIENT_FUNDS};
+		long seq;
+		long transactionSeq;
+		lock(sender);
+		try {
+			seq = journal(() -> {
+				long balance = sender.withdraw(amount);
+				if (balance == User.INSUFFICIENT_FUNDS) {
+					return null;
+				}
+				after[0] = balance;
+				outgoing.put(transfer.id, transfer);
+				markDirty(sender);
+				return Money.append(transfer.record().append(','), balance).toString();
+			});
+			if (after[0] == User.INSUFFICIENT_FUNDS) {
+				return WireCodec.INSUFFICIENT_FUNDS;
+			}
+			sender.addTransaction(new Transaction(0, System.currentTimeMillis(), Transaction.Type.SENT,
+					recipient.getPpsNum(), amount, after[0]));
+			transactionSeq = queueTransactions(sender);
+		} finally {
+			sender.getLock().unlock();
+		}
+		awaitDurable(seq, transactionSeq);
+		int status = deliver(transfer);
+		// Not confirmed yet, the credit is asked for again in the background
+		if (status < 0) {
+			return WireCodec.PENDING;
+		}
+		// Credited, or refused and refunded
+		return (byte) status;
+	}
+
+	/**
+	 * Asks the recipient's shard to credit an open transfer, then closes or refunds it on the
+	 * answer. Returns the status of the credit, or -1 if the shard could not be reached or the
+	 * transfer is being delivered by another thread or was already closed.
+	 */
+	private int deliver(OutgoingTransfer transfer) {
+		if (!transfer.delivering.compareAndSet(false, true)) {
+			return -1;
+		}
+		try {
+			// Closed by the thread that delivered it before, after which asking again could
+			// credit it twice, as the other shard may have forgotten the id
+			if (!outgoing.containsKey(transfer.id)) {
+				return -1;
+			}
+			byte status = router.credit(transfer.id, transfer.sender, transfer.recipient, transfer.amount);
+			if (status == WireCodec.OK) {
+				settle(transfer);
+			} else {
+				refund(transfer);
+			}
+			return status;
+		} catch (IOException e) {
+			Log.warn("Credit of transfer " + transfer.id + " not confirmed, it will be asked for again: " + e);
+			return -1;
+		} finally {
+			transfer.delivering.set(false);
+		}
+	}
+
+	// Closes a transfer whose credit was confirmed and lets the recipient's shard forget its id.
+	// The transfer is closed on disk first, so it is never asked for again once the id is gone.
+	private void settle(OutgoingTransfer transfer) {
+		long seq = journal(() -> outgoing.remove(transfer.id) == null ? null : "D," + transfer.id);
+		awaitDurable(seq, 0);
+		try {
+			router.forget(transfer.recipient, transfer.id);
+		} catch (IOException e) {
+			// The other shard only remembers the id for longer
+			Log.debug("Could not release transfer " + transfer.id + ": " + e);
+		}
+	}
+
+	// Gives the amount of a transfer whose credit was refused back to the sender
+	private void refund(OutgoingTransfer transfer) {
+		User sender = users.findByPps(transfer.sender);
+		long[] balance = {User.INSUFFICIENT_FUNDS};
+		long seq;
+		long transactionSeq = 0;
+		lock(sender);
+		try {
+			seq = journal(() -> {
+				if (!outgoing.containsKey(transfer.id)) {
+					return null;
+				}
+				balance[0] = sender.lodge(transfer.amount);
+				outgoing.remove(transfer.id);
+				markDirty(sender);
+				StringBuilder record = new StringBuilder("F,").append(transfer.id).append(',')
+						.append(transfer.sender).append(',');
+				return Money.append(record, balance[0]).toString();
+			});
+			if (balance[0] != User.INSUFFICIENT_FUNDS) {
+				sender.addTransaction(new Transaction(0, System.currentTimeMillis(), Transaction.Type.RECEIVED,
+						transfer.recipient, transfer.amount, balance[0]));
+				transactionSeq = queueTransactions(sender);
+			}
+		} finally {
+			sender.getLock().unlock();
+		}
+		awaitDurable(seq, transactionSeq);
+	}
+
+	// Asks again for the credit of every open transfer, run in the background
+	private void retryTransfers() {
+		for (OutgoingTransfer transfer : outgoing.values()) {
+			try {
+				deliver(transfer);
+			} catch (RuntimeException e) {
+				// Keep the retries scheduled whatever happens to one transfer
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Credits the recipient of a transfer from another shard, once per transfer id however
+	 * often the sender's shard asks, and returns WireCodec.OK once the credit is on disk, or,
+	 * changing nothing, RECIPIENT_NOT_FOUND if the account is not here or INVALID_REQUEST if its
+	 * balance would overflow.
+	 */
+	byte creditTransfer(String id, String senderPps, String recipientPps, long amount) {
+		User recipient = users.findByPps(recipientPps);
+		if (recipient == null) {
+			return WireCodec.RECIPIENT_NOT_FOUND;
+		}
+		long[] after = {User.INSUFFICIENT_FUNDS};
+		long seq;
+		long transactionSeq;
+		lock(recipient);
+		try {
+			seq = journal(() -> {
+				if (credited.contains(id)) {
+					return null;
+				}
+				after[0] = recipient.lodge(amount);
+				credited.add(id);
+				markDirty(recipient);
+				return Money.append(new StringBuilder("C,").append(id).append(',').append(recipientPps).append(','),
+						after[0]).toString();
+			});
+			if (after[0] != User.INSUFFICIENT_FUNDS) {
+				recipient.addTransaction(new Transaction(0, System.currentTimeMillis(), Transaction.Type.RECEIVED,
+						senderPps, amount, after[0]));
+				transactionSeq = queueTransactions(recipient);
+			} else {
+				// Credited before, maybe by a request that is still waiting for the disk
+				seq = journal == null ? 0 : journal.getAppendedSeq();
+				transactionSeq = ledger == null ? 0 : ledger.getAppendedSeq();
+			}
+		} catch (ArithmeticException | IllegalArgumentException e) {
+			return WireCodec.INVALID_REQUEST;
+		} finally {
+			recipient.getLock().unlock();
+		}
+		awaitDurable(seq, transactionSeq);
+		return WireCodec.OK;
+	}
+
+	/**
+	 * Forgets the id of a credited transfer once its sender has closed it.
+	 */
+	void forgetTransfer(String id) {
+		journal(() -> credited.remove(id) ? "E," + id : null);
+	}
+
+	/**
+	 * Lodges money into a user's account.
+	 * The balance is updated with a compare-and-set, so a lodgement never loses an update made at
+	 * the same time by a transfer or another session; only its journal record is appended under
+	 * the account's lock.
+	 * The amount is in cents; ArithmeticException is thrown if the balance would overflow, and
+	 * IllegalArgumentException if the amount is not positive.
+	 * When sharded, an account of another shard is lodged into by that shard, and
+	 * UncheckedIOException is thrown if it can not be reached.
+	 */
+	public void lodgeMoney(User user, long amount) {
+		long start = System.nanoTime();
+		PendingWrites pending = new PendingWrites();
+		try {
+			lodgeMoney(user, amount, pending);
+			sync(pending); // Save the updated user balance to the journal
+		} finally {
+			metrics.record(Metrics.Operation.LODGE, start);
+		}
+	}
+
+	/**
+	 * Lodges money like lodgeMoney(User, long) without waiting for the disk.
+	 * The journal record is added to pending, which the caller must sync.
+	 */
+	void lodgeMoney(User user, long amount, PendingWrites pending) {
+		if (amount <= 0) {
+			throw new IllegalArgumentException("Amount must be positive: " + amount);
+		}
+		if (replica != null) {
+			lodgeOnPrimary(user, amount);
+			return;
+		}
+		if (!owns(user.getPpsNum())) {
+			lodgeOnShard(user, amount);
+			return;
+		}
+		// Add the lodged amount to the user's balance
+		user.lodge(amount);
+		markDirty(user);
+		// The record is made from the balance under the account's lock, which includes this
+		// lodgement and every change before it, so the last record of an account holds its
+		// latest balance
+		long seq;
+		lock(user);
+		try {
+			seq = journal(balanceRecord(user));
+		} finally {
+			user.getLock().unlock();
+		}
+		pending.add(seq, 0);
+	}
+
+	// Has the primary of a read replica lodge into an account, whose new balance is applied here
+	// before it returns
+	private void lodgeOnPrimary(User user, long amount) {
+		byte status;
+		try {
+			status = replica.lodge(user.getPpsNum(), amount);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (status != WireCodec.OK) {
+			throw new ArithmeticException("Lodgement refused by the primary");
+		}
+	}
+
+	// Has the shard that owns an account lodge into it, which is durable there once it answers
+	private void lodgeOnShard(User user, long amount) {
+		ShardRouter.Outcome outcome;
+		try {
+			outcome = router.lodge(user.getPpsNum(), amount);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (outcome.status() != WireCodec.OK) {
+			throw new ArithmeticException("Lodgement refused by the shard of account " + user.getPpsNum());
+		}
+		user.setBalance(outcome.balance());
+	}
+
+	/**
+	 * Waits until the journal records and transactions of a group of requests are on disk, or
+	 * only hands them to the commit writer if the durability mode is enqueue.
+	 * Requests of every thread that are pending at the same time share the commit.
+	 */
+	void sync(PendingWrites pending) {
+		commit(pending.journalSeq, pending.transactionSeq);
+	}
+
+	/**
+	 * Updates a user's password and journals the change, storing only its hash.
+	 * Returns false, leaving the password unchanged, if too many passwords are waiting to be hashed.
+	 * When sharded, the password of another shard's account is updated by that shard.
+	 */
+	public boolean updatePassword(User user, String newPassword) {
+		long start = System.nanoTime();
+		try {
+			if (replica != null) {
+				try {
+					return replica.updatePassword(user.getPpsNum(), newPassword);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			if (!owns(user.getPpsNum())) {
+				try {
+					return router.updatePassword(user.getPpsNum(), newPassword);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+			// Hashed before taking the account's lock, which the hash would hold up
+			String hash = credentials.hash(newPassword);
+			if (hash == null || (table != null && !AccountTable.fitsPassword(hash))) {
+				return false;
+			}
+			long seq;
+			lock(user);
+			try {
+				// Update the user's password with the new password
+				user.setPassword(hash);
+				markDirty(user);
+				seq = journal("P," + user.getPpsNum() + "," + hash);
+			} finally {
+				user.getLock().unlock();
+			}
+			commit(seq, 0); // Save the new password to the journal
 			return true;
+		} finally {
+			metrics.record(Metrics.Operation.UPDATE_PASSWORD, start);
 		}
-		// Return false if the sender does not have sufficient amount to transfer
-		return false;
+	}
+
+	/**
+	 * Locks the accounts of both users taking part in a transfer.
+	 * The account with the lower PPS number is always locked first, so two transfers
+	 * in opposite directions between the same accounts can never deadlock.
+	 */
+	private void lockAccounts(User a, User b) {
+		User first = a.getPpsNum().compareTo(b.getPpsNum()) <= 0 ? a : b;
+		User second = first == a ? b : a;
+		lock(first);
+		lock(second);
+	}
+
+	/**
+	 * Takes the lock of a user's account, recording how long it waited for it.
+	 * The clock is only read when the lock is held by another thread.
+	 */
+	private void lock(User user) {
+		ReentrantLock lock = user.getLock();
+		if (lock.tryLock()) {
+			metrics.recordLockWait(0);
+			return;
+		}
+		long start = System.nanoTime();
+		lock.lock();
+		metrics.recordLockWait(System.nanoTime() - start);
+	}
+
+	// Releases the locks taken by lockAccounts
+	private static void unlockAccounts(User a, User b) {
+		a.getLock().unlock();
+		b.getLock().unlock();
 	}
 	
+	/**
+	 * Returns one page of the user listing, as the rows shown to a client.
+	 * The users whose name starts with the prefix are listed by name, or those whose email
+	 * address does if the prefix contains '@'; "*" lists every user. Pass null as the cursor
+	 * for the first page and the next cursor of a page for the page after it.
+	 * When sharded, the next entries of every shard are merged by key into the page, leaving
+	 * out the shards that can not be reached.
+	 */
+	public UserDirectory.Page getUserDirectory(String prefix, String cursor, int limit) {
+		long start = System.nanoTime();
+		try {
+			awaitFresh();
+			if (router == null) {
+				return users.directory().find(prefix, cursor, limit);
+			}
+			// One more entry than shown tells whether there is a next page
+			List<UserDirectory.Entry> entries = users.directory().entries(prefix, cursor, limit + 1);
+			entries.addAll(router.getOtherDirectories(prefix, cursor, limit + 1));
+			entries.sort(Comparator.comparing(UserDirectory.Entry::key));
+			return UserDirectory.page(entries, limit);
+		} finally {
+			metrics.record(Metrics.Operation.LIST_USERS, start);
+		}
+	}
+
+	/**
+	 * Returns the number of registered users, on every shard that can be reached when sharded.
+	 */
+	public int getUserCount() {
+		return router == null ? users.size() : users.size() + router.getOtherUserCount();
+	}
+
 	/**
 	 * Returning a copy of the user list
 	 */
-	public synchronized List<User> getUserList() {
-		return new LinkedList<>(userList); // Returning a copy of the user list
+	public List<User> getUserList() {
+		return new ArrayList<>(users.users()); // Returning a copy of the user list
 	}
 	
 	/**
 	 * Finds and returns a user by their email address.
-	 * This method iterates through the user list and searches for a user with the
-	 * specified email address. If a user with a matching email address is found, it
-	 * is returned; otherwise, null is returned to indicate that no user was found.
+	 * This method looks up the specified email address in the email index. If a user
+	 * with a matching email address is found, it is returned; otherwise, null is returned
+	 * to indicate that no user was found.
 	 */
 	public User findUserByEmail(String recipientEmail) {
-		// Iterate through the userList 
-		for (User user : userList) {
-			// Looking for user with the specified email address
-			if (user.getMail().equals(recipientEmail)) {
-				// Return the user if a match is found
-				return user;
+		awaitFresh();
+		// Look up the user in the email index, null if not found
+		User user = users.findByMail(recipientEmail);
+		if (user == null && router != null) {
+			// The account may be on another shard
+			user = router.findOnOtherShards(shard -> router.findUserByEmail(shard, recipientEmail));
+		}
+		return user;
+	}
+
+	// Returns the PPS number of a user with the given name, or null if there is none
+	private String findPpsByName(String name) {
+		User user = users.directory().findByName(name);
+		if (user == null && router != null) {
+			// Old text files name the other account, which may be on another shard
+			user = router.findOnOtherShards(shard -> router.findUserByName(shard, name));
+		}
+		return user == null ? null : user.getPpsNum();
+	}
+
+	/**
+	 * Finds and returns a user by their PPS number, or null if no user has it.
+	 * When sharded, an account of another shard is looked up on it, and is null if it can not
+	 * be reached.
+	 */
+	public User findUserByPps(String ppsNum) {
+		if (!owns(ppsNum)) {
+			try {
+				return router.findUserByPps(ppsNum);
+			} catch (IOException e) {
+				Log.warn("Could not look up " + ppsNum + " on its shard: " + e);
+				return null;
 			}
 		}
-		// User not found with the given email
-		return null; 
+		awaitFresh();
+		// Look up the user in the PPS number index, null if not found
+		return users.findByPps(ppsNum);
 	}
 	
 	/**
-	 * Provides a list of transaction records for the specified user.
+	 * Returns the names of the accounts with the given PPS numbers, such as the other accounts of
+	 * a page of transactions. The accounts of this shard are looked up here, and those of every
+	 * other shard with one request to it. Numbers without an account are left out.
+	 */
+	public Map<String, String> findNamesByPps(Collection<String> ppsNums) {
+		awaitFresh();
+		Map<String, String> names = new HashMap<>();
+		List<String> remote = new ArrayList<>();
+		for (String ppsNum : ppsNums) {
+			if (!owns(ppsNum)) {
+				remote.add(ppsNum);
+				continue;
+			}
+			User user = users.findByPps(ppsNum);
+			if (user != null) {
+				names.put(ppsNum, user.getName());
+			}
+		}
+		if (!remote.isEmpty()) {
+			names.putAll(router.findNames(remote));
+		}
+		return names;
+	}
+
+	/**
+	 * Provides a list of transaction records for the specified user, oldest first.
 	 * This method retrieves and returns a list of transaction records associated with
 	 * the provided user by reading the transaction file based on the user's PPS number.
+	 * The whole history is read, getTransactionPage reads only the part that is shown.
 	 */
-	public List<String> getUserTransactions(User currentUser) {
-		// Initialize an empty list to store the user's transaction
-		List<String> transactions = new LinkedList<>();
-		// Construct the file based on the user's PPS number
-		String transactionFileName = FILE_PREFIX + currentUser.getPpsNum() + ".txt";
-		
-		// Use try statement to automatically close the BufferReader when done
-		try (BufferedReader reader = new BufferedReader(new FileReader(transactionFileName))) {
-			// Read each line from the file and add it to the transaction list
-			String line;
-			// Read each line from the BufferedReader until there are no more lines
-			while ((line = reader.readLine()) != null) {
-				// Add the read line to the list of transactions
-				transactions.add(line);
+	public List<Transaction> getUserTransactions(User currentUser) {
+		try {
+			return history.readAll(TransactionHistory.fileName(currentUser.getPpsNum()));
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new ArrayList<>();
+		}
+	}
+
+	/**
+	 * Provides up to limit transaction records of the specified user with a timestamp from
+	 * fromMillis to toMillis inclusive, oldest first. The first record is found by a binary
+	 * search of the transaction file, so only the records returned are read.
+	 */
+	public List<Transaction> getTransactionsBetween(User currentUser, long fromMillis, long toMillis, int limit) {
+		try {
+			return history.readBetween(TransactionHistory.fileName(currentUser.getPpsNum()), fromMillis, toMillis, limit);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new ArrayList<>();
+		}
+	}
+
+	/**
+	 * Provides one page of the transaction records of the specified user, newest first.
+	 * The offset newest records are skipped and at most limit records are returned, with the
+	 * number of records in total. Only the requested records are read from the transaction
+	 * file, so the cost does not grow with the length of the history, and the newest records
+	 * of recently viewed accounts are served from the history cache without reading it at all.
+	 */
+	public TransactionHistory.Page getTransactionPage(User currentUser, int offset, int limit) {
+		long start = System.nanoTime();
+		try {
+			awaitFresh();
+			if (!owns(currentUser.getPpsNum())) {
+				// The transaction files of the account are kept by its shard
+				return router.getTransactionPage(currentUser.getPpsNum(), offset, limit);
 			}
+			return historyCache.readPage(TransactionHistory.fileName(currentUser.getPpsNum()), offset, limit, history);
 		} catch (IOException e) {
 			e.printStackTrace();
+			return new TransactionHistory.Page(new ArrayList<>(), 0);
+		} finally {
+			metrics.record(Metrics.Operation.VIEW_TRANSACTIONS, start);
 		}
-		// Return list of transactions, even if it's empty
-		return transactions;
+	}
+
+	/**
+	 * Returns the hit, miss and eviction counters and the size of the history cache.
+	 */
+	public HistoryCache.Stats getHistoryCacheStats() {
+		return historyCache.stats();
+	}
+
+	/**
+	 * Returns the latency histograms and counters of this library.
+	 */
+	public Metrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Returns the router to the other shards, or null if this library is not sharded.
+	 */
+	public ShardRouter getShardRouter() {
+		return router;
+	}
+
+	/**
+	 * Returns the stream of committed changes sent to the read replicas, or null if there are none.
+	 */
+	public ChangeStream getChangeStream() {
+		return changes;
+	}
+
+	/**
+	 * Returns the follower of the primary if this library is a read replica, or null.
+	 */
+	public Replica getReplica() {
+		return replica;
+	}
+
+	/**
+	 * Returns the hashing and checking of the passwords, for MetricsExporter.
+	 */
+	public Credentials getCredentials() {
+		return credentials;
+	}
+
+	/**
+	 * Returns the sessions of the clients that asked for a token, for MetricsExporter.
+	 */
+	public SessionTable getSessionTable() {
+		return sessions;
+	}
+
+	/**
+	 * Returns the user of this shard with the given email address, or null, for ShardServer.
+	 */
+	User findLocalUserByEmail(String mail) {
+		return users.findByMail(mail);
+	}
+
+	/**
+	 * Returns the user of this shard with the given PPS number, or null, for ShardServer.
+	 */
+	User findLocalUserByPps(String ppsNum) {
+		return users.findByPps(ppsNum);
+	}
+
+	/**
+	 * Returns a user of this shard with the given name, or null, for ShardServer.
+	 */
+	User findLocalUserByName(String name) {
+		return users.directory().findByName(name);
+	}
+
+	/**
+	 * Logs in a user of this shard like loginUser, without asking the other shards. Throws
+	 * RejectedExecutionException if too many logins are already waiting.
+	 */
+	User loginLocalUser(String email, String password) {
+		User user = users.findByMail(email);
+		return user != null && authenticate(user, password) ? user : null;
+	}
+
+	/**
+	 * Returns the number of users of this shard.
+	 */
+	int getLocalUserCount() {
+		return users.size();
+	}
+
+	/**
+	 * Returns the directory entries of this shard after the cursor, see UserDirectory.entries.
+	 */
+	List<UserDirectory.Entry> getLocalDirectory(String prefix, String cursor, int limit) {
+		return users.directory().entries(prefix, cursor, limit);
 	}
 }
@@ -0,0 +1,319 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The `LibraryBenchmark` class measures the throughput and allocation of the Library hot paths
+ * on generated users: loginUser, transferMoney, addUser, getUserTransactions, getTransactionPage,
+ * getUserDirectory, saveUsers and User.toString. Every benchmark runs for each user count or history length and for each
+ * number of threads, so the single-threaded cost and the cost under contention are both known.
+ * The transfers are measured between random accounts and with every thread on the same two.
+ * Each measurement is warmed up first, then runs for a fixed time; the allocation per operation
+ * is read from the allocated bytes of the measuring threads.
+ * The results are printed as CSV and written as JSON, so runs of different releases can be
+ * compared. The parameters are system properties:
+ *   bench.users    user counts (default 10,1000,100000,1000000)
+ *   bench.history  transaction history lengths (default 10,1000,10000)
+ *   bench.threads  thread counts (default 1,8)
+ *   bench.millis   measured time of each benchmark in milliseconds (default 1000)
+ *   bench.json     file the JSON results are written to (default library-benchmark.json)
+ * saveUsers and the history benchmarks use the real files, so run it from an empty directory:
+ *   java -Dbench.users=1000,100000 LibraryBenchmark
+ * The same scenarios run under JMH with `gradle jmh`, see jmh/bench/LibraryBenchmarks.java.
+ */
+public class LibraryBenchmark {
+
+	// Users with a transaction file in the getUserTransactions benchmark
+	static final int HISTORY_USERS = 16;
+	// Upper bound on the operations of benchmarks whose every operation keeps memory
+	private static final int GROWING_OPERATIONS = 1_000_000;
+	// The benchmarks whose every operation keeps memory
+	private static final Set<String> GROWING = Set.of("transfer_random", "transfer_hot", "add_user");
+
+	// Consumes the benchmark results so the operations cannot be optimised away
+	private static volatile long sink;
+
+	/**
+	 * One operation of a benchmark. It returns a value derived from its result, which is
+	 * added to the sink.
+	 */
+	interface Operation {
+		long run(Random random);
+	}
+
+	// One measured benchmark
+	private record Result(String name, int users, int history, int threads, long operations,
+			double opsPerSecond, double nanosPerOp, double bytesPerOp) {
+	}
+
+	public static void main(String[] args) throws Exception {
+		int[] userCounts = intList("bench.users", "10,1000,100000,1000000");
+		int[] historyLengths = intList("bench.history", "10,1000,10000");
+		int[] threadCounts = intList("bench.threads", "1,8");
+		long millis = Long.getLong("bench.millis", 1000);
+		String json = System.getProperty("bench.json", "library-benchmark.json");
+		if (new File("user_data.txt").exists()) {
+			System.out.println("LibraryBenchmark writes user_data.txt and transaction files, run it from an empty directory.");
+			return;
+		}
+
+		List<Result> results = new ArrayList<>();
+		System.out.println("benchmark,users,history,threads,ops_per_sec,ns_per_op,bytes_per_op");
+		for (int count : userCounts) {
+			Library library = new Library(generateUsers(count));
+			Map<String, Operation> operations = userOperations(library, count);
+			for (int threads : threadCounts) {
+				for (Map.Entry<String, Operation> operation : operations.entrySet()) {
+					String name = operation.getKey();
+					results.add(measure(name, count, 0, threads, millis,
+							GROWING.contains(name) ? GROWING_OPERATIONS : 0, operation.getValue()));
+				}
+			}
+		}
+
+		for (int history : historyLengths) {
+			Library library = new Library(generateUsers(HISTORY_USERS));
+			List<User> users = library.getUserList();
+			writeHistories(users, history);
+			Map<String, Operation> operations = historyOperations(library);
+			for (int threads : threadCounts) {
+				for (Map.Entry<String, Operation> operation : operations.entrySet()) {
+					results.add(measure(operation.getKey(), HISTORY_USERS, history, threads, millis, 0,
+							operation.getValue()));
+				}
+			}
+			deleteFiles(users);
+		}
+		new File("user_data.txt").delete();
+
+		writeJson(json, results);
+		System.out.println("Results written to " + json);
+	}
+
+	/**
+	 * Returns the benchmarks on a library of the given number of generated users, by name in
+	 * the order they are measured.
+	 */
+	static Map<String, Operation> userOperations(Library library, int count) {
+		List<User> users = library.getUserList();
+		AtomicInteger nextUser = new AtomicInteger(count);
+		Map<String, Operation> operations = new LinkedHashMap<>();
+		operations.put("login", random -> {
+			int user = random.nextInt(count);
+			return library.loginUser(mail(user), "pass" + user) != null ? 1 : 0;
+		});
+		operations.put("transfer_random", random -> {
+			User sender = users.get(random.nextInt(count));
+			User recipient = users.get(random.nextInt(count));
+			return library.transferMoney(sender, recipient, 1) == WireCodec.OK ? 1 : 0;
+		});
+		// Every thread moves money back and forth between the same two accounts
+		operations.put("transfer_hot", random -> {
+			boolean forward = random.nextBoolean();
+			User first = users.get(0);
+			User second = users.get(count > 1 ? 1 : 0);
+			return library.transferMoney(forward ? first : second, forward ? second : first, 1) == WireCodec.OK ? 1 : 0;
+		});
+		operations.put("user_to_string", random -> users.get(random.nextInt(count)).toString().length());
+		// A page of the user listing, starting at a random name
+		operations.put("user_directory_page", random -> library.getUserDirectory("User " + random.nextInt(count),
+				null, ServerThread.DIRECTORY_PAGE_SIZE).rows().size());
+		operations.put("save_users", random -> {
+			try {
+				library.saveUsers();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return 1;
+		});
+		// Last, as every registration makes the library larger
+		operations.put("add_user", random -> {
+			int user = nextUser.getAndIncrement();
+			return library.addUser("User " + user, ppsNum(user), mail(user), "pass" + user,
+					user + " Main Street", "1000") ? 1 : 0;
+		});
+		return operations;
+	}
+
+	/**
+	 * Returns the benchmarks on a library of HISTORY_USERS generated users with transaction
+	 * files, by name in the order they are measured.
+	 */
+	static Map<String, Operation> historyOperations(Library library) {
+		List<User> users = library.getUserList();
+		Map<String, Operation> operations = new LinkedHashMap<>();
+		operations.put("get_user_transactions",
+				random -> library.getUserTransactions(users.get(random.nextInt(HISTORY_USERS))).size());
+		// The page a user sees first, the newest transactions
+		operations.put("get_transaction_page", random -> library.getTransactionPage(
+				users.get(random.nextInt(HISTORY_USERS)), 0, ServerThread.HISTORY_PAGE_SIZE).transactions().size());
+		return operations;
+	}
+
+	/**
+	 * Creates a user store with the given number of generated users.
+	 * User i has the email user<i>@bank.com and the password pass<i>.
+	 */
+	static UserStore generateUsers(int count) {
+		UserStore store = new UserStore();
+		for (int i = 0; i < count; i++) {
+			store.add(new User("User " + i, ppsNum(i), mail(i), "pass" + i, i + " Main Street", 100_000));
+		}
+		return store;
+	}
+
+	// Email address of generated user i
+	static String mail(int i) {
+		return "user" + i + "@bank.com";
+	}
+
+	// PPS number of generated user i
+	static String ppsNum(int i) {
+		return String.format("%07dTA", i);
+	}
+
+	/**
+	 * Runs an operation on the given number of threads, first to warm up and then for the
+	 * measured time, and prints and returns the result.
+	 * If maxOperations is not 0, each thread stops after its share of that many operations.
+	 */
+	private static Result measure(String name, int users, int history, int threads, long millis,
+			int maxOperations, Operation operation) throws InterruptedException {
+		// Warm up the JIT for half the measured time
+		run(threads, millis / 2, maxOperations, operation, new long[threads], new long[threads]);
+		long[] operations = new long[threads];
+		long[] bytes = new long[threads];
+		long elapsed = run(threads, millis, maxOperations, operation, operations, bytes);
+
+		long totalOperations = 0;
+		long totalBytes = 0;
+		for (int i = 0; i < threads; i++) {
+			totalOperations += operations[i];
+			totalBytes += bytes[i];
+		}
+		long ops = Math.max(totalOperations, 1);
+		Result result = new Result(name, users, history, threads, totalOperations,
+				totalOperations / (elapsed / 1e9), (double) elapsed * threads / ops, (double) totalBytes / ops);
+		System.out.println(name + "," + users + "," + history + "," + threads + ","
+				+ String.format("%.0f,%.1f,%.0f", result.opsPerSecond(), result.nanosPerOp(), result.bytesPerOp()));
+		return result;
+	}
+
+	/**
+	 * Runs an operation on the given number of threads for about the given time and returns the
+	 * time taken in nanoseconds. The operations and allocated bytes of each thread are stored
+	 * in the given arrays.
+	 */
+	static long run(int threads, long millis, int maxOperations, Operation operation,
+			long[] operations, long[] bytes) throws InterruptedException {
+		com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long limit = maxOperations == 0 ? Long.MAX_VALUE : Math.max(1, maxOperations / threads);
+		CountDownLatch ready = new CountDownLatch(threads);
+		CountDownLatch start = new CountDownLatch(1);
+		List<Thread> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			int index = t;
+			Thread worker = new Thread(() -> {
+				Random random = new Random(index);
+				long local = 0;
+				ready.countDown();
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+				long deadline = System.nanoTime() + millis * 1_000_000;
+				long done = 0;
+				// Run the operations in chunks, so reading the clock does not dominate fast operations
+				int chunk = 1;
+				while (done < limit) {
+					long chunkStart = System.nanoTime();
+					if (chunkStart >= deadline) {
+						break;
+					}
+					int size = (int) Math.min(chunk, limit - done);
+					for (int i = 0; i < size; i++) {
+						local += operation.run(random);
+					}
+					done += size;
+					if (System.nanoTime() - chunkStart < 1_000_000) {
+						chunk = Math.min(chunk * 2, 1 << 20);
+					}
+				}
+				bytes[index] = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+				operations[index] = done;
+				sink += local;
+			});
+			workers.add(worker);
+			worker.start();
+		}
+		ready.await();
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		return System.nanoTime() - begin;
+	}
+
+	// Writes a transaction file with the given number of entries for each user
+	static void writeHistories(List<User> users, int history) throws IOException {
+		long start = System.currentTimeMillis() - history * 1000L;
+		for (User user : users) {
+			ByteBuffer records = ByteBuffer.allocate(history * Transaction.RECORD_SIZE);
+			for (int i = 0; i < history; i++) {
+				// One transaction a second with the other generated users in turn
+				Transaction.Type type = i % 2 == 0 ? Transaction.Type.SENT : Transaction.Type.RECEIVED;
+				new Transaction(0, start + i * 1000L, type, ppsNum(i % HISTORY_USERS), (i % 500) * 100L, 100_000)
+						.encode(records);
+			}
+			Files.write(Paths.get(TransactionHistory.fileName(user.getPpsNum())), records.array());
+		}
+	}
+
+	// Deletes the transaction files of the given users
+	static void deleteFiles(List<User> users) {
+		for (User user : users) {
+			new File(TransactionHistory.fileName(user.getPpsNum())).delete();
+		}
+	}
+
+	// Reads a comma-separated list of numbers from a system property
+	private static int[] intList(String property, String defaults) {
+		String[] values = System.getProperty(property, defaults).split(",");
+		int[] numbers = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			numbers[i] = Integer.parseInt(values[i].trim());
+		}
+		return numbers;
+	}
+
+	// Writes the results as a JSON array of objects
+	private static void writeJson(String fileName, List<Result> results) throws IOException {
+		StringBuilder json = new StringBuilder("[\n");
+		for (int i = 0; i < results.size(); i++) {
+			Result result = results.get(i);
+			json.append(String.format("  {\"benchmark\": \"%s\", \"users\": %d, \"history\": %d, \"threads\": %d, "
+					+ "\"operations\": %d, \"ops_per_sec\": %.1f, \"ns_per_op\": %.1f, \"bytes_per_op\": %.1f}",
+					result.name(), result.users(), result.history(), result.threads(), result.operations(),
+					result.opsPerSecond(), result.nanosPerOp(), result.bytesPerOp()));
+			json.append(i < results.size() - 1 ? ",\n" : "\n");
+		}
+		json.append("]\n");
+		Files.writeString(Paths.get(fileName), json, StandardCharsets.UTF_8);
+	}
+}
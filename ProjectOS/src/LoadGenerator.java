@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The `LoadGenerator` class opens many concurrent client sessions against a running Provider
+ * and measures the round-trip latency of the main menu.
+ * Every session connects and, as soon as it has the main menu, repeatedly sends an invalid
+ * option and goes back to the menu, timing the full cycle. The sessions do not wait for each
+ * other: in pool mode the sessions beyond provider.workers wait in the server's queue until a
+ * worker is free, which only shows in the time to the first menu, reported as connect_p99_us.
+ * Run the Provider in each provider.mode and compare the reported p50/p99, for example:
+ *   java -Dprovider.mode=virtual Provider
+ *   java LoadGenerator virtual 127.0.0.1 2004 10000 20
+ * Large session counts need a raised open file limit (ulimit -n) on both sides.
+ */
+public class LoadGenerator {
+
+	public static void main(String[] args) throws InterruptedException {
+		// Read the mode label, server address, number of sessions and menu cycles per session
+		String label = args.length > 0 ? args[0] : "server";
+		String host = args.length > 1 ? args[1] : "127.0.0.1";
+		int port = args.length > 2 ? Integer.parseInt(args[2]) : 2004;
+		int sessions = args.length > 3 ? Integer.parseInt(args[3]) : 10_000;
+		int cycles = args.length > 4 ? Integer.parseInt(args[4]) : 20;
+
+		// Each session records its own latencies, merged when all are done
+		long[][] latencies = new long[sessions][];
+		long[] connects = new long[sessions];
+		AtomicInteger failures = new AtomicInteger();
+		CountDownLatch done = new CountDownLatch(sessions);
+		long start = System.nanoTime();
+
+		// A virtual thread per client session so the generator itself scales to many sessions
+		try (ExecutorService clients = Executors.newVirtualThreadPerTaskExecutor()) {
+			for (int i = 0; i < sessions; i++) {
+				int session = i;
+				clients.execute(() -> {
+					try {
+						latencies[session] = runSession(host, port, cycles, connects, session);
+					} catch (IOException e) {
+						failures.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				});
+			}
+			done.await();
+		}
+		long elapsed = System.nanoTime() - start;
+		report(label, latencies, connects, failures.get(), elapsed);
+	}
+
+	/**
+	 * Runs one client session and returns the latency of each menu cycle in nanoseconds.
+	 * The time from connecting to the first menu is stored in connects.
+	 */
+	private static long[] runSession(String host, int port, int cycles, long[] connects, int session)
+			throws IOException {
+		long connectStart = System.nanoTime();
+		try (Socket socket = new Socket(host, port)) {
+			socket.setSoTimeout(60_000);
+			WireCodec codec = new WireCodec(socket.getInputStream(), socket.getOutputStream());
+			// Wait for the main menu, which a pool server only sends once a worker is free
+			codec.readText();
+			connects[session] = System.nanoTime() - connectStart;
+
+			long[] latencies = new long[cycles];
+			for (int i = 0; i < cycles; i++) {
+				long cycleStart = System.nanoTime();
+				// An invalid option is answered with an error and the go back prompt
+				codec.writeText("9");
+				codec.readText();
+				codec.readText();
+				// Going back is answered with the main menu
+				codec.writeText("1");
+				codec.readText();
+				latencies[i] = System.nanoTime() - cycleStart;
+			}
+			// Leave through the exit option
+			codec.writeText("0");
+			codec.flush();
+			return latencies;
+		}
+	}
+
+	/**
+	 * Prints the number of sessions, failures, throughput, the latency percentiles and the 99th
+	 * percentile of the time to the first menu.
+	 */
+	private static void report(String label, long[][] latencies, long[] connects, int failures, long elapsed) {
+		List<long[]> completed = new ArrayList<>();
+		long[] connected = new long[latencies.length];
+		int count = 0;
+		for (int i = 0; i < latencies.length; i++) {
+			long[] session = latencies[i];
+			if (session != null) {
+				connected[completed.size()] = connects[i];
+				completed.add(session);
+				count += session.length;
+			}
+		}
+		connected = Arrays.copyOf(connected, completed.size());
+		Arrays.sort(connected);
+		long[] all = new long[count];
+		int index = 0;
+		for (long[] session : completed) {
+			System.arraycopy(session, 0, all, index, session.length);
+			index += session.length;
+		}
+		Arrays.sort(all);
+		System.out.println("mode,sessions,failed,cycles,cycles_per_sec,p50_us,p99_us,max_us,connect_p99_us");
+		System.out.println(label + "," + completed.size() + "," + failures + "," + count + ","
+				+ (long) (count / (elapsed / 1e9)) + ","
+				+ percentile(all, 0.50) / 1000 + "," + percentile(all, 0.99) / 1000 + ","
+				+ (count == 0 ? 0 : all[count - 1] / 1000) + "," + percentile(connected, 0.99) / 1000);
+	}
+
+	// Returns the value at the given percentile of a sorted array
+	private static long percentile(long[] sorted, double percentile) {
+		if (sorted.length == 0) {
+			return 0;
+		}
+		return sorted[(int) Math.min(sorted.length - 1, Math.round(percentile * (sorted.length - 1)))];
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * The `Log` class writes the server's log messages to the console from a background thread, so a
+ * session never waits for the console. Messages below the level set with -Dprovider.log
+ * (error, warn, info or debug; default info) are dropped before they are queued, and callers of
+ * debug check isDebugEnabled first so a disabled message costs no string building.
+ * If the console falls behind and the queue fills, further messages are dropped and counted
+ * rather than slowing down the sessions.
+ */
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.LocalDateTime;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+public final class Log {
+
+	public enum Level {
+		ERROR, WARN, INFO, DEBUG
+	}
+
+	// Messages waiting to be written
+	private static final int QUEUE_SIZE = 8192;
+
+	private static final Level LEVEL = Level.valueOf(System.getProperty("provider.log", "info").toUpperCase(Locale.ROOT));
+	private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private static final LongAdder dropped = new LongAdder();
+
+	static {
+		Thread writer = new Thread(Log::writeMessages, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		// Write what is still queued when the server stops
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-drain"));
+	}
+
+	private Log() {
+	}
+
+	/**
+	 * Checks whether messages of the given level are written.
+	 */
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(LEVEL) <= 0;
+	}
+
+	public static boolean isDebugEnabled() {
+		return isEnabled(Level.DEBUG);
+	}
+
+	public static void error(String message) {
+		log(Level.ERROR, message);
+	}
+
+	public static void warn(String message) {
+		log(Level.WARN, message);
+	}
+
+	public static void info(String message) {
+		log(Level.INFO, message);
+	}
+
+	public static void debug(String message) {
+		log(Level.DEBUG, message);
+	}
+
+	/**
+	 * Returns the number of messages dropped because the queue was full.
+	 */
+	public static long getDropped() {
+		return dropped.sum();
+	}
+
+	// Queues a message of the given level if it is enabled
+	private static void log(Level level, String message) {
+		if (!isEnabled(level)) {
+			return;
+		}
+		if (!queue.offer(LocalDateTime.now() + " " + level + " " + message)) {
+			dropped.increment();
+		}
+	}
+
+	// Writes the queued messages to the console, flushing whenever the queue is empty
+	private static void writeMessages() {
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+		try {
+			while (true) {
+				String message = queue.take();
+				do {
+					out.write(message);
+					out.write(System.lineSeparator());
+				} while ((message = queue.poll()) != null);
+				out.flush();
+			}
+		} catch (InterruptedException | IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Writes whatever is left in the queue, on shutdown
+	private static void drain() {
+		String message;
+		while ((message = queue.poll()) != null) {
+			System.out.println(message);
+		}
+		System.out.flush();
+	}
+}
@@ -0,0 +1,97 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/*
+ * The `LoginBenchmark` class measures how many logins per second the Library checks, in total
+ * and per processor, for each PBKDF2 iteration count of the stored password hashes:
+ *   login_hash    every login checks the password hash, as for a client seen for the first time
+ *   login_cached  the users log in again while Credentials remembers their passwords
+ *   resume        the users log in with a session token
+ * The Credentials of each run have as many password threads as the benchmark has threads, so
+ * logins per core is the throughput divided by the threads, or by the processors if there are
+ * fewer. The parameters are system properties:
+ *   bench.users       generated users logging in (default 64)
+ *   bench.iterations  PBKDF2 iteration counts (default 10000,100000,310000)
+ *   bench.threads     thread counts (default 1 and the number of processors)
+ *   bench.millis      measured time of each benchmark in milliseconds (default 2000)
+ * It writes no files, for example:
+ *   java -Dbench.iterations=100000 LoginBenchmark
+ */
+public class LoginBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int count = Integer.getInteger("bench.users", 64);
+		int[] iterationCounts = intList("bench.iterations", "10000,100000,310000");
+		int[] threadCounts = intList("bench.threads", processors > 1 ? "1," + processors : "1");
+		long millis = Long.getLong("bench.millis", 2000);
+
+		System.out.println("benchmark,iterations,threads,logins_per_sec,logins_per_sec_per_core,us_per_login");
+		for (int iterations : iterationCounts) {
+			// Store the hashes of the generated passwords, hashed on every processor
+			UserStore users = LibraryBenchmark.generateUsers(count);
+			Credentials setup = new Credentials(iterations, processors, count, 0);
+			IntStream.range(0, count).parallel().forEach(
+					i -> users.findByPps(LibraryBenchmark.ppsNum(i)).setPassword(setup.hash("pass" + i)));
+			for (int threads : threadCounts) {
+				int cores = Math.min(threads, processors);
+				// Nothing is remembered, every login checks the hash
+				Library hashing = new Library(users, new Credentials(iterations, threads, threads, 0));
+				measure("login_hash", iterations, threads, cores, millis, random -> {
+					int user = random.nextInt(count);
+					return hashing.loginUser(LibraryBenchmark.mail(user), "pass" + user) != null ? 1 : 0;
+				});
+				Library caching = new Library(users, new Credentials(iterations, threads, threads, 3_600_000));
+				for (int i = 0; i < count; i++) {
+					caching.loginUser(LibraryBenchmark.mail(i), "pass" + i);
+				}
+				measure("login_cached", iterations, threads, cores, millis, random -> {
+					int user = random.nextInt(count);
+					return caching.loginUser(LibraryBenchmark.mail(user), "pass" + user) != null ? 1 : 0;
+				});
+				List<String> tokens = new ArrayList<>();
+				for (int i = 0; i < count; i++) {
+					tokens.add(caching.issueSessionToken(users.findByPps(LibraryBenchmark.ppsNum(i)), true));
+				}
+				measure("resume", iterations, threads, cores, millis,
+						random -> caching.resumeSession(tokens.get(random.nextInt(count))) != null ? 1 : 0);
+			}
+		}
+	}
+
+	/**
+	 * Runs the logins on the given number of threads, first to warm up and then for the
+	 * measured time, and prints the result.
+	 */
+	private static void measure(String name, int iterations, int threads, int cores, long millis,
+			LibraryBenchmark.Operation login) throws InterruptedException {
+		// Warm up the JIT for half the measured time
+		LibraryBenchmark.run(threads, millis / 2, 0, login, new long[threads], new long[threads]);
+		long[] operations = new long[threads];
+		long elapsed = LibraryBenchmark.run(threads, millis, 0, random -> {
+			long result = login.run(random);
+			if (result == 0) {
+				throw new IllegalStateException(name + " failed to log in");
+			}
+			return result;
+		}, operations, new long[threads]);
+		long total = 0;
+		for (long done : operations) {
+			total += done;
+		}
+		double perSecond = total / (elapsed / 1e9);
+		System.out.println(name + "," + iterations + "," + threads + ","
+				+ String.format("%.0f,%.0f,%.1f", perSecond, perSecond / cores, elapsed * threads / 1e3 / Math.max(total, 1)));
+	}
+
+	// Reads a comma-separated list of numbers from a system property
+	private static int[] intList(String property, String defaults) {
+		String[] values = System.getProperty(property, defaults).split(",");
+		int[] numbers = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			numbers[i] = Integer.parseInt(values[i].trim());
+		}
+		return numbers;
+	}
+}
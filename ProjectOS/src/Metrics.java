@@ -0,0 +1,146 @@
+/*
+ * The `Metrics` class holds the counters and latency histograms of a Library: how long each kind
+ * of client operation takes, how long requests wait for the lock of an account and for their
+ * changes to be committed, how long the commits take to write and how many changes each holds,
+ * how many client sessions are open, and on a read replica how long the changes of its primary
+ * take to reach it.
+ * Recording is cheap and lock-free, so it is always on; MetricsExporter publishes the values
+ * through JMX and as Prometheus text.
+ */
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Metrics {
+
+	/**
+	 * The client operations that are timed, from the call into the Library until it returns.
+	 */
+	public enum Operation {
+		REGISTER, LOGIN, RESUME, LODGE, TRANSFER, VIEW_TRANSACTIONS, LIST_USERS, UPDATE_PASSWORD;
+
+		// Name used in exported metrics, e.g. "view_transactions"
+		public String label() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	/**
+	 * What is written to disk: the journal of balance, password and registration changes, the
+	 * transaction files, or the snapshot written by a compaction.
+	 */
+	public enum Flush {
+		JOURNAL, TRANSACTIONS, SNAPSHOT;
+
+		// Name used in exported metrics, e.g. "journal"
+		public String label() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	private final Map<Operation, LatencyHistogram> operations = new EnumMap<>(Operation.class);
+	private final Map<Flush, LatencyHistogram> flushes = new EnumMap<>(Flush.class);
+	private final LatencyHistogram lockWait = new LatencyHistogram();
+	private final LatencyHistogram commitWait = new LatencyHistogram();
+	// Journal records and transactions written by each commit, not a duration
+	private final LatencyHistogram commitBatch = new LatencyHistogram();
+	// Time from the primary sending a batch of changes until a read replica applied it
+	private final LatencyHistogram replicaDelay = new LatencyHistogram();
+	private final AtomicInteger activeSessions = new AtomicInteger();
+
+	public Metrics() {
+		// Filled once here and only read afterwards, so the maps need no locking
+		for (Operation operation : Operation.values()) {
+			operations.put(operation, new LatencyHistogram());
+		}
+		for (Flush flush : Flush.values()) {
+			flushes.put(flush, new LatencyHistogram());
+		}
+	}
+
+	/**
+	 * Records an operation that started at the given System.nanoTime() reading.
+	 */
+	public void record(Operation operation, long startNanos) {
+		operations.get(operation).recordSince(startNanos);
+	}
+
+	/**
+	 * Records a write to disk that started at the given System.nanoTime() reading.
+	 */
+	public void recordFlush(Flush flush, long startNanos) {
+		flushes.get(flush).recordSince(startNanos);
+	}
+
+	/**
+	 * Records how long a request waited for the lock of an account, 0 if it was free.
+	 */
+	public void recordLockWait(long nanos) {
+		lockWait.record(nanos);
+	}
+
+	/**
+	 * Records how long a request waited for its changes to be committed, from the given reading.
+	 */
+	public void recordCommitWait(long startNanos) {
+		commitWait.recordSince(startNanos);
+	}
+
+	/**
+	 * Records the number of journal records and transactions written by one commit.
+	 */
+	public void recordCommitBatch(int records) {
+		commitBatch.record(records);
+	}
+
+	/**
+	 * Records how long a batch of changes took from the primary until a read replica applied it.
+	 */
+	public void recordReplicaDelay(long millis) {
+		replicaDelay.record(Math.max(0, millis) * 1_000_000);
+	}
+
+	/**
+	 * Called when a client session starts.
+	 */
+	public void sessionOpened() {
+		activeSessions.incrementAndGet();
+	}
+
+	/**
+	 * Called when a client session ends.
+	 */
+	public void sessionClosed() {
+		activeSessions.decrementAndGet();
+	}
+
+	public LatencyHistogram getOperation(Operation operation) {
+		return operations.get(operation);
+	}
+
+	public LatencyHistogram getFlush(Flush flush) {
+		return flushes.get(flush);
+	}
+
+	public LatencyHistogram getLockWait() {
+		return lockWait;
+	}
+
+	public LatencyHistogram getCommitWait() {
+		return commitWait;
+	}
+
+	public LatencyHistogram getCommitBatch() {
+		return commitBatch;
+	}
+
+	public LatencyHistogram getReplicaDelay() {
+		return replicaDelay;
+	}
+
+	public int getActiveSessions() {
+		return activeSessions.get();
+	}
+}
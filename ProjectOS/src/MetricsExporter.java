@@ -0,0 +1,422 @@
+/*
+ * The `MetricsExporter` class publishes the Metrics of a Library for monitoring.
+ * Every latency histogram is registered as a JMX bean named ProjectOS:type=Latency,name=<name>,
+ * the sizes of the commits as ProjectOS:type=CommitBatch, and the session, user, history cache,
+ * password, session token and replication counters as ProjectOS:type=Server, so they can be watched with jconsole or any JMX client. With -Dprovider.metricsPort the same values are also
+ * served in the Prometheus text format at http://127.0.0.1:<port>/metrics; the endpoint only
+ * listens on the loopback address.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+public class MetricsExporter {
+
+	private static final String DOMAIN = "ProjectOS";
+	// Percentiles exported for every histogram
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	/**
+	 * The values of a latency histogram, in microseconds, as seen through JMX.
+	 */
+	public interface LatencyMXBean {
+		long getCount();
+
+		double getMeanMicros();
+
+		double get50thPercentileMicros();
+
+		double get90thPercentileMicros();
+
+		double get99thPercentileMicros();
+
+		double get999thPercentileMicros();
+
+		double getMaxMicros();
+	}
+
+	/**
+	 * The values of a histogram of sizes, as seen through JMX.
+	 */
+	public interface SizeMXBean {
+		long getCount();
+
+		double getMean();
+
+		long get50thPercentile();
+
+		long get99thPercentile();
+
+		long getMax();
+	}
+
+	/**
+	 * The counters of the server, as seen through JMX.
+	 */
+	public interface ServerMXBean {
+		int getActiveSessions();
+
+		int getRegisteredUsers();
+
+		long getHistoryCacheHits();
+
+		long getHistoryCacheMisses();
+
+		long getHistoryCacheEvictions();
+
+		int getHistoryCacheEntries();
+
+		long getHistoryCacheBytes();
+
+		long getLogMessagesDropped();
+
+		long getPasswordHashes();
+
+		long getPasswordCacheHits();
+
+		long getSessionResumes();
+
+		int getSessionTokens();
+
+		long getPasswordChecksRejected();
+
+		int getPasswordChecksQueued();
+
+		long getReplicaLagMillis();
+
+		int getReplicasConnected();
+	}
+
+	private final Library library;
+	private final Metrics metrics;
+
+	public MetricsExporter(Library library) {
+		this.library = library;
+		this.metrics = library.getMetrics();
+	}
+
+	/**
+	 * Registers the JMX beans, and starts the Prometheus endpoint if provider.metricsPort is set.
+	 */
+	public void start() {
+		try {
+			registerBeans();
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+		int port = Integer.getInteger("provider.metricsPort", 0);
+		if (port > 0) {
+			try {
+				serve(port);
+				Log.info("Serving metrics on http://127.0.0.1:" + port + "/metrics");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// Registers a bean for every histogram and one for the server counters
+	private void registerBeans() throws JMException {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (Metrics.Operation operation : Metrics.Operation.values()) {
+			register(server, "operation_" + operation.label(), metrics.getOperation(operation));
+		}
+		for (Metrics.Flush flush : Metrics.Flush.values()) {
+			register(server, "flush_" + flush.label(), metrics.getFlush(flush));
+		}
+		register(server, "lock_wait", metrics.getLockWait());
+		register(server, "commit_wait", metrics.getCommitWait());
+		register(server, "replica_delay", metrics.getReplicaDelay());
+		server.registerMBean(new StandardMBean(new SizeView(metrics.getCommitBatch()), SizeMXBean.class, true),
+				new ObjectName(DOMAIN + ":type=CommitBatch"));
+		server.registerMBean(new StandardMBean(new ServerView(), ServerMXBean.class, true),
+				new ObjectName(DOMAIN + ":type=Server"));
+	}
+
+	// Registers the bean of one histogram
+	private static void register(MBeanServer server, String name, LatencyHistogram histogram) throws JMException {
+		server.registerMBean(new StandardMBean(new LatencyView(histogram), LatencyMXBean.class, true),
+				new ObjectName(DOMAIN + ":type=Latency,name=" + name));
+	}
+
+	// Serves the Prometheus text on the loopback address from a background thread
+	private void serve(int port) throws IOException {
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", this::handle);
+		// The default executor runs the requests on the server's own thread
+		server.start();
+	}
+
+	// Answers one scrape of the metrics endpoint
+	private void handle(HttpExchange exchange) throws IOException {
+		byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * Returns the metrics in the Prometheus text exposition format. Latencies are exported as
+	 * summaries in seconds with the 50th, 90th, 99th and 99.9th percentiles.
+	 */
+	public String prometheusText() {
+		StringBuilder text = new StringBuilder(8192);
+		header(text, "bank_operation_duration_seconds", "summary", "Time the server takes to run a client operation.");
+		for (Metrics.Operation operation : Metrics.Operation.values()) {
+			summary(text, "bank_operation_duration_seconds", "operation=\"" + operation.label() + "\"",
+					metrics.getOperation(operation));
+		}
+		header(text, "bank_flush_duration_seconds", "summary", "Time taken by the commit writer to write to disk.");
+		for (Metrics.Flush flush : Metrics.Flush.values()) {
+			summary(text, "bank_flush_duration_seconds", "store=\"" + flush.label() + "\"", metrics.getFlush(flush));
+		}
+		header(text, "bank_lock_wait_seconds", "summary", "Time a request waits for the lock of an account.");
+		summary(text, "bank_lock_wait_seconds", null, metrics.getLockWait());
+		header(text, "bank_commit_wait_seconds", "summary", "Time a request waits for its changes to be committed.");
+		summary(text, "bank_commit_wait_seconds", null, metrics.getCommitWait());
+		header(text, "bank_commit_batch_records", "summary", "Journal records and transactions written by a commit.");
+		sizes(text, "bank_commit_batch_records", metrics.getCommitBatch());
+
+		HistoryCache.Stats cache = library.getHistoryCacheStats();
+		sample(text, "bank_active_sessions", "gauge", "Client sessions currently open.", metrics.getActiveSessions());
+		sample(text, "bank_registered_users", "gauge", "Registered users.", library.getUserCount());
+		sample(text, "bank_history_cache_hits_total", "counter", "Transaction pages served from the history cache.", cache.hits());
+		sample(text, "bank_history_cache_misses_total", "counter", "Transaction pages not in the history cache.", cache.misses());
+		sample(text, "bank_history_cache_evictions_total", "counter", "Accounts evicted from the history cache.", cache.evictions());
+		sample(text, "bank_history_cache_entries", "gauge", "Accounts in the history cache.", cache.entries());
+		sample(text, "bank_history_cache_bytes", "gauge", "Estimated size of the history cache.", cache.bytes());
+		sample(text, "bank_log_dropped_total", "counter", "Log messages dropped because the log queue was full.", Log.getDropped());
+		Credentials credentials = library.getCredentials();
+		sample(text, "bank_password_hashes_total", "counter", "Passwords hashed or checked with PBKDF2.", credentials.getHashes());
+		sample(text, "bank_password_cache_hits_total", "counter", "Logins whose password was remembered from an earlier check.",
+				credentials.getCacheHits());
+		sample(text, "bank_password_rejected_total", "counter", "Password hashes and checks refused because the queue was full.",
+				credentials.getRejected());
+		sample(text, "bank_password_queued", "gauge", "Password hashes and checks waiting for a thread.", credentials.getQueued());
+		SessionTable sessions = library.getSessionTable();
+		sample(text, "bank_session_tokens", "gauge", "Sessions that can be resumed with a token.", sessions.size());
+		sample(text, "bank_session_resumes_total", "counter", "Logins with a session token.", sessions.getResumes());
+		sample(text, "bank_session_expired_total", "counter", "Sessions expired while idle or ended by a password change.",
+				sessions.getExpired());
+
+		Replica replica = library.getReplica();
+		if (replica != null) {
+			header(text, "bank_replica_lag_seconds", "gauge", "Time since the primary sent the last changes applied by this replica.");
+			text.append("bank_replica_lag_seconds ").append(seconds(replica.getLagMillis() * 1_000_000)).append('\n');
+			header(text, "bank_replica_delay_seconds", "summary", "Time from the primary sending changes until this replica applied them.");
+			summary(text, "bank_replica_delay_seconds", null, metrics.getReplicaDelay());
+			sample(text, "bank_replica_applied_changes_total", "counter", "Changes of the primary applied by this replica.",
+					replica.getAppliedChanges());
+		}
+		ChangeStream changes = library.getChangeStream();
+		if (changes != null) {
+			sample(text, "bank_change_stream_published_total", "counter", "Committed changes published to the read replicas.",
+					changes.getPublishedSeq());
+			sample(text, "bank_replicas_connected", "gauge", "Read replicas following the change stream.", changes.getReplicas());
+		}
+		return text.toString();
+	}
+
+	// Appends the HELP and TYPE lines of a metric
+	private static void header(StringBuilder text, String name, String type, String help) {
+		text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+	}
+
+	// Appends a metric with a single value
+	private static void sample(StringBuilder text, String name, String type, String help, long value) {
+		header(text, name, type, help);
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	// Appends the quantiles, sum and count of a histogram, with the given labels if not null
+	private static void summary(StringBuilder text, String name, String labels, LatencyHistogram histogram) {
+		String prefix = labels == null ? "" : labels + ",";
+		for (double quantile : QUANTILES) {
+			text.append(name).append("{").append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+					.append(seconds(histogram.percentile(quantile))).append('\n');
+		}
+		String suffix = labels == null ? "" : "{" + labels + "}";
+		text.append(name).append("_sum").append(suffix).append(' ').append(seconds(histogram.sum())).append('\n');
+		text.append(name).append("_count").append(suffix).append(' ').append(histogram.count()).append('\n');
+	}
+
+	// Appends the quantiles, sum and count of a histogram of sizes
+	private static void sizes(StringBuilder text, String name, LatencyHistogram histogram) {
+		for (double quantile : QUANTILES) {
+			text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+					.append(histogram.percentile(quantile)).append('\n');
+		}
+		text.append(name).append("_sum ").append(histogram.sum()).append('\n');
+		text.append(name).append("_count ").append(histogram.count()).append('\n');
+	}
+
+	// Formats nanoseconds as seconds
+	private static String seconds(long nanos) {
+		return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+	}
+
+	// Converts nanoseconds to microseconds
+	private static double micros(long nanos) {
+		return nanos / 1e3;
+	}
+
+	/**
+	 * The JMX view of a histogram.
+	 */
+	private static final class LatencyView implements LatencyMXBean {
+		private final LatencyHistogram histogram;
+
+		LatencyView(LatencyHistogram histogram) {
+			this.histogram = histogram;
+		}
+
+		public long getCount() {
+			return histogram.count();
+		}
+
+		public double getMeanMicros() {
+			long count = histogram.count();
+			return count == 0 ? 0 : micros(histogram.sum()) / count;
+		}
+
+		public double get50thPercentileMicros() {
+			return micros(histogram.percentile(0.5));
+		}
+
+		public double get90thPercentileMicros() {
+			return micros(histogram.percentile(0.9));
+		}
+
+		public double get99thPercentileMicros() {
+			return micros(histogram.percentile(0.99));
+		}
+
+		public double get999thPercentileMicros() {
+			return micros(histogram.percentile(0.999));
+		}
+
+		public double getMaxMicros() {
+			return micros(histogram.max());
+		}
+	}
+
+	/**
+	 * The JMX view of a histogram of sizes.
+	 */
+	private static final class SizeView implements SizeMXBean {
+		private final LatencyHistogram histogram;
+
+		SizeView(LatencyHistogram histogram) {
+			this.histogram = histogram;
+		}
+
+		public long getCount() {
+			return histogram.count();
+		}
+
+		public double getMean() {
+			long count = histogram.count();
+			return count == 0 ? 0 : (double) histogram.sum() / count;
+		}
+
+		public long get50thPercentile() {
+			return histogram.percentile(0.5);
+		}
+
+		public long get99thPercentile() {
+			return histogram.percentile(0.99);
+		}
+
+		public long getMax() {
+			return histogram.max();
+		}
+	}
+
+	/**
+	 * The JMX view of the server counters.
+	 */
+	private final class ServerView implements ServerMXBean {
+
+		public int getActiveSessions() {
+			return metrics.getActiveSessions();
+		}
+
+		public int getRegisteredUsers() {
+			return library.getUserCount();
+		}
+
+		public long getHistoryCacheHits() {
+			return library.getHistoryCacheStats().hits();
+		}
+
+		public long getHistoryCacheMisses() {
+			return library.getHistoryCacheStats().misses();
+		}
+
+		public long getHistoryCacheEvictions() {
+			return library.getHistoryCacheStats().evictions();
+		}
+
+		public int getHistoryCacheEntries() {
+			return library.getHistoryCacheStats().entries();
+		}
+
+		public long getHistoryCacheBytes() {
+			return library.getHistoryCacheStats().bytes();
+		}
+
+		public long getLogMessagesDropped() {
+			return Log.getDropped();
+		}
+
+		public long getPasswordHashes() {
+			return library.getCredentials().getHashes();
+		}
+
+		public long getPasswordCacheHits() {
+			return library.getCredentials().getCacheHits();
+		}
+
+		public long getSessionResumes() {
+			return library.getSessionTable().getResumes();
+		}
+
+		public int getSessionTokens() {
+			return library.getSessionTable().size();
+		}
+
+		public long getPasswordChecksRejected() {
+			return library.getCredentials().getRejected();
+		}
+
+		public int getPasswordChecksQueued() {
+			return library.getCredentials().getQueued();
+		}
+
+		public long getReplicaLagMillis() {
+			Replica replica = library.getReplica();
+			return replica == null ? 0 : replica.getLagMillis();
+		}
+
+		public int getReplicasConnected() {
+			ChangeStream changes = library.getChangeStream();
+			return changes == null ? 0 : changes.getReplicas();
+		}
+	}
+}
@@ -0,0 +1,121 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/*
+ * The `Money` class works with amounts of money held as a long number of cents.
+ * Balances and amounts are plain longs everywhere, so arithmetic on them is exact and allocates
+ * nothing; this class adds the overflow-checked arithmetic and the conversion to and from the
+ * "12450.00" text used by the user file, the journal, the transaction files and the clients.
+ */
+public final class Money {
+
+	private Money() {
+	}
+
+	/**
+	 * Adds two amounts, throwing ArithmeticException if the result does not fit.
+	 */
+	public static long add(long cents, long moreCents) {
+		return Math.addExact(cents, moreCents);
+	}
+
+	/**
+	 * Subtracts an amount from another, throwing ArithmeticException if the result does not fit.
+	 */
+	public static long subtract(long cents, long lessCents) {
+		return Math.subtractExact(cents, lessCents);
+	}
+
+	/**
+	 * Parses an amount such as "12", "12.5", "12.50" or "-0.75" into cents.
+	 * Throws NumberFormatException for anything else, including more than two decimals.
+	 */
+	public static long parse(String text) {
+		int length = text.length();
+		int i = 0;
+		boolean negative = false;
+		if (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+			negative = text.charAt(0) == '-';
+			i++;
+		}
+		long units = 0;
+		int digits = 0;
+		// Whole units
+		try {
+			for (; i < length && text.charAt(i) != '.'; i++, digits++) {
+				units = Math.addExact(Math.multiplyExact(units, 10), digit(text, i));
+			}
+		} catch (ArithmeticException e) {
+			throw new NumberFormatException("Amount out of range: \"" + text + "\"");
+		}
+		long cents = 0;
+		int decimals = 0;
+		// Up to two decimals after the point
+		if (i < length) {
+			for (i++; i < length; i++, decimals++) {
+				if (decimals == 2) {
+					throw new NumberFormatException("More than two decimals in amount: \"" + text + "\"");
+				}
+				cents = cents * 10 + digit(text, i);
+			}
+		}
+		if (digits + decimals == 0) {
+			throw new NumberFormatException("Invalid amount: \"" + text + "\"");
+		}
+		if (decimals == 1) {
+			cents *= 10;
+		}
+		if (units > (Long.MAX_VALUE - cents) / 100) {
+			throw new NumberFormatException("Amount out of range: \"" + text + "\"");
+		}
+		long total = units * 100 + cents;
+		return negative ? -total : total;
+	}
+
+	/**
+	 * Parses an amount written by an older version, which may have more than two decimals or an
+	 * exponent, rounding it half up to whole cents.
+	 */
+	public static long parseLegacy(String text) {
+		try {
+			return parse(text);
+		} catch (NumberFormatException e) {
+			// Float values were sometimes written in full, such as 12352.339844 or 1.0E7
+			return new BigDecimal(text).setScale(2, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+		}
+	}
+
+	/**
+	 * Formats an amount in cents with two decimals, such as "12450.00".
+	 */
+	public static String format(long cents) {
+		return append(new StringBuilder(24), cents).toString();
+	}
+
+	/**
+	 * Appends an amount in cents with two decimals to a builder and returns the builder.
+	 */
+	public static StringBuilder append(StringBuilder builder, long cents) {
+		if (cents < 0) {
+			builder.append('-');
+		}
+		// Math.abs would overflow for the smallest long, so work on the negative value
+		long negative = cents > 0 ? -cents : cents;
+		long units = -(negative / 100);
+		int fraction = (int) -(negative % 100);
+		builder.append(units).append('.');
+		if (fraction < 10) {
+			builder.append('0');
+		}
+		return builder.append(fraction);
+	}
+
+	// Returns the value of the digit at the given index
+	private static int digit(String text, int index) {
+		char c = text.charAt(index);
+		if (c < '0' || c > '9') {
+			throw new NumberFormatException("Invalid amount: \"" + text + "\"");
+		}
+		return c - '0';
+	}
+}
@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The `NioServer` class serves clients with a few selector event loops instead of a thread per
+ * connection. The accepting thread hands each new connection to one of the event loops in turn;
+ * each loop reads the messages of its connections, runs them through their NioSession and writes
+ * the replies back, so idle sessions cost a small state object and no thread.
+ * Library calls can wait for a commit, a password hash or another shard, so a message that makes
+ * one is handed to a pool of worker threads instead of holding up every session of the loop. The
+ * loop neither reads from nor writes to that connection until the worker posts the session back,
+ * then sends its replies and goes on with the messages that came after it. A session has at most
+ * one message with the workers, so their queue holds at most one task per connection.
+ */
+public class NioServer {
+
+	private final Library library;
+	private final EventLoop[] loops;
+	// Threads that run the Library calls of the sessions
+	private final ExecutorService workers;
+
+	public NioServer(Library library, int loopCount, int workerCount) {
+		this.library = library;
+		loops = new EventLoop[loopCount];
+		AtomicInteger count = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+			Thread thread = new Thread(runnable, "nio-worker-" + count.getAndIncrement());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Listens on the given port and accepts connections until the server is stopped.
+	 */
+	public void serve(int port, int backlog) throws IOException {
+		// Start the event loops
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop();
+			Thread thread = new Thread(loops[i], "nio-loop-" + i);
+			thread.start();
+		}
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.bind(new InetSocketAddress(port), backlog);
+			int next = 0;
+			// Infinite loop to continuously accept connections and hand them to the event loops
+			while (true) {
+				SocketChannel connection = server.accept();
+				loops[next].add(connection);
+				next = (next + 1) % loops.length;
+			}
+		}
+	}
+
+	/**
+	 * One selector thread serving its share of the connections.
+	 */
+	private class EventLoop implements Runnable {
+
+		private final Selector selector;
+		// Connections handed over by the accepting thread, registered by the loop itself
+		private final Queue<SocketChannel> added = new ConcurrentLinkedQueue<>();
+		// Connections whose session a worker has finished with
+		private final Queue<SelectionKey> replied = new ConcurrentLinkedQueue<>();
+
+		EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+
+		// Hands a new connection to this loop
+		void add(SocketChannel connection) {
+			added.add(connection);
+			selector.wakeup();
+		}
+
+		// Hands a connection back from a worker once its Library call has finished
+		void replied(SelectionKey key) {
+			replied.add(key);
+			selector.wakeup();
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					selector.select();
+					registerAdded();
+					SelectionKey done;
+					while ((done = replied.poll()) != null) {
+						handle(done, true);
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						handle(key, false);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				} catch (RuntimeException e) {
+					// Keep serving the other sessions of the loop
+					Log.error("Event loop " + Thread.currentThread().getName() + " failed: " + e);
+				}
+			}
+		}
+
+		// Registers the connections added since the last select
+		private void registerAdded() throws IOException {
+			SocketChannel connection;
+			while ((connection = added.poll()) != null) {
+				connection.configureBlocking(false);
+				try {
+					// The session starts with the main menu queued, so wait until it can be sent
+					SelectionKey key = connection.register(selector, SelectionKey.OP_WRITE);
+					key.attach(new NioSession(connection, library, workers, () -> replied(key)));
+					library.getMetrics().sessionOpened();
+				} catch (ClosedChannelException e) {
+					// The client left before the connection was registered
+				}
+			}
+		}
+
+		// Reads from or writes to a ready connection, or goes on with a session a worker has
+		// finished with
+		private void handle(SelectionKey key, boolean replied) {
+			NioSession session = (NioSession) key.attachment();
+			try {
+				if (replied) {
+					session.resume();
+				} else if (key.isReadable()) {
+					session.read();
+				}
+				if (session.isBusy()) {
+					// A worker has the session until it posts it back
+					key.interestOps(0);
+					return;
+				}
+				// Send the replies, waiting for the socket to drain if they do not fit
+				if (session.write()) {
+					if (session.isClosing()) {
+						close(key);
+						return;
+					}
+					key.interestOps(SelectionKey.OP_READ);
+				} else {
+					key.interestOps(SelectionKey.OP_WRITE);
+				}
+			} catch (IOException e) {
+				close(key);
+			} catch (UncheckedIOException e) {
+				// The shard owning an account could not be reached, end the session
+				Log.warn("Closing session: " + e.getMessage());
+				close(key);
+			} catch (RuntimeException e) {
+				// A bug in handling this session must not stop the loop serving the others
+				Log.error("Closing session after an unexpected error: " + e);
+				close(key);
+			}
+		}
+
+		// Closes a connection
+		private void close(SelectionKey key) {
+			key.cancel();
+			library.getMetrics().sessionClosed();
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,566 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Represents one client connection of the non-blocking NioServer.
+ * It runs the same REGISTER/LOGIN/lodge/transfer/view/password dialogue as ServerThread, but as
+ * an explicit state machine: each message from the client moves the session to its next state
+ * and queues the replies, so no thread waits while the client is idle.
+ * A message that calls the Library is handled on one of the server's workers, as the call may wait;
+ * the session then belongs to the worker until it is posted back to the event loop. A password
+ * is not checked on a worker: the session waits for the Credentials threads without holding any
+ * thread, and is posted back once the check is done.
+ */
+public class NioSession {
+
+	// The message the session is waiting for
+	private enum State {
+		MAIN_CHOICE, GO_BACK,
+		REGISTER_NAME, REGISTER_PPS, REGISTER_MAIL, REGISTER_PASSWORD, REGISTER_ADDRESS, REGISTER_BALANCE,
+		LOGIN_MAIL, LOGIN_PASSWORD, LOGIN_CONTINUE,
+		MENU_CHOICE, LODGE_AMOUNT, TRANSFER_MAIL, TRANSFER_PPS, TRANSFER_AMOUNT, NEW_PASSWORD,
+		USER_SEARCH, NEXT_USERS_PAGE, NEXT_HISTORY_PAGE,
+		PIPELINE, CLOSING
+	}
+
+	// The states whose next text message is answered with a Library call
+	private static final Set<State> CALLS_LIBRARY = EnumSet.of(State.REGISTER_BALANCE, State.MENU_CHOICE, State.LODGE_AMOUNT, State.TRANSFER_PPS, State.TRANSFER_AMOUNT, State.NEW_PASSWORD,
+			State.USER_SEARCH, State.NEXT_USERS_PAGE, State.NEXT_HISTORY_PAGE);
+
+	private final SocketChannel channel;
+	private final Library myLib;
+	// Runs the messages that call the Library, and hands the session back to its event loop
+	private final Executor workers;
+	private final Runnable replied;
+	// Messages received but not yet handled
+	private final Queue<WireCodec.Frame> frames = new ArrayDeque<>();
+	// Set while a worker is handling messages, the event loop leaves the session alone meanwhile
+	private boolean busy;
+	// What a worker's Library call threw, rethrown on the event loop
+	private RuntimeException failure;
+	// Login whose password is being checked, and the id of its LOGIN frame in a pipeline
+	private CompletableFuture<User> login;
+	private long loginId;
+	// Bytes received but not yet decoded, ready for writing
+	private ByteBuffer in = ByteBuffer.allocate(1024);
+	// Bytes queued for the client but not yet sent, ready for writing
+	private ByteBuffer out = ByteBuffer.allocate(1024);
+	private State state;
+	// Current user associated with this session
+	private User currentUser;
+	// Details collected during registration and transfer
+	private String name, ppsNum, mail, password, address;
+	private User recipient;
+	// Number of transactions already shown while paging through the history
+	private int historyOffset;
+	// Search and position while paging through the user listing
+	private String directoryPrefix, directoryCursor;
+	// Typed requests of a machine client, set once it logs in with a LOGIN frame
+	private RequestPipeline pipeline;
+
+	public NioSession(SocketChannel channel, Library library, Executor workers, Runnable replied) {
+		this.channel = channel;
+		this.myLib = library;
+		this.workers = workers;
+		this.replied = replied;
+		// The client waits for the main menu
+		sendMessage(ServerThread.MAIN_MENU);
+		state = State.MAIN_CHOICE;
+	}
+
+	/**
+	 * Reads what the client sent and handles every complete message.
+	 * Once the client has closed its side, the session closes after the queued output is sent.
+	 * Stops at a message that calls the Library, which is handed to a worker.
+	 */
+	public void read() throws IOException {
+		int count = channel.read(in);
+		if (count < 0) {
+			state = State.CLOSING;
+			return;
+		}
+		in.flip();
+		// Decode every complete frame, leaving a partial one in the buffer
+		WireCodec.Frame frame;
+		while ((frame = WireCodec.decode(in)) != null) {
+			frames.add(frame);
+		}
+		in.compact();
+		// Grow the buffer if a single message does not fit
+		if (!in.hasRemaining()) {
+			in = grow(in, in.capacity() * 2);
+		}
+		process();
+	}
+
+	/**
+	 * Goes on with the messages after the ones a worker has handled, or after a login whose
+	 * password has been checked, on the event loop. Rethrows what the worker's Library call threw.
+	 */
+	public void resume() {
+		busy = false;
+		if (failure != null) {
+			RuntimeException e = failure;
+			failure = null;
+			throw e;
+		}
+		if (login != null) {
+			CompletableFuture<User> checked = login;
+			login = null;
+			loggedIn(checked);
+		}
+		process();
+	}
+
+	/**
+	 * Returns true while a worker is handling messages of the session, or its password is being
+	 * checked, and nothing should be read or written until it is handed back.
+	 */
+	public boolean isBusy() {
+		return busy;
+	}
+
+	// Handles the waiting messages on the event loop up to the first one that calls the Library,
+	// which is handed to a worker with the messages that follow it, or that logs in
+	private void process() {
+		while (!frames.isEmpty()) {
+			if (logsIn(frames.peek())) {
+				checkPassword(frames.poll());
+				return;
+			}
+			if (callsLibrary(frames.peek())) {
+				busy = true;
+				workers.execute(this::work);
+				return;
+			}
+			dispatch(frames.poll());
+		}
+	}
+
+	// Handles messages on a worker while they call the Library, then hands the session back
+	private void work() {
+		try {
+			do {
+				dispatch(frames.poll());
+			} while (!frames.isEmpty() && !logsIn(frames.peek()) && callsLibrary(frames.peek()));
+			// The requests handled share one commit, then their results are sent together
+			if (pipeline != null) {
+				queue(pipeline.sync());
+			}
+		} catch (RuntimeException e) {
+			failure = e;
+		}
+		replied.run();
+	}
+
+	// Returns true if a message is a password to check, in the dialogue or a LOGIN frame
+	private boolean logsIn(WireCodec.Frame message) {
+		if (message.opcode == WireCodec.LOGIN) {
+			return state == State.MAIN_CHOICE || state == State.PIPELINE;
+		}
+		return state == State.LOGIN_PASSWORD && message.opcode == WireCodec.TEXT;
+	}
+
+	// Starts checking the password of a login, the session is handed back once it is done
+	private void checkPassword(WireCodec.Frame message) {
+		String password = message.text;
+		if (message.opcode == WireCodec.LOGIN) {
+			// A machine client logs in with a typed frame instead of choosing from the menu
+			if (state == State.MAIN_CHOICE) {
+				pipeline = new RequestPipeline(myLib);
+				state = State.PIPELINE;
+			}
+			mail = message.mail;
+			password = message.password;
+			loginId = message.id;
+		}
+		busy = true;
+		login = myLib.loginUserAsync(mail, password, workers);
+		login.whenComplete((user, e) -> replied.run());
+	}
+
+	// Answers a login once its password has been checked
+	private void loggedIn(CompletableFuture<User> checked) {
+		User user = null;
+		boolean rejected = false;
+		try {
+			user = checked.join();
+		} catch (CompletionException e) {
+			if (!(e.getCause() instanceof RejectedExecutionException)) {
+				// Thrown as if the login had run on a worker
+				throw e.getCause() instanceof RuntimeException cause ? cause : e;
+			}
+			// Too many logins are waiting for their password to be checked
+			rejected = true;
+		}
+		if (state == State.PIPELINE) {
+			// The results of the requests before the LOGIN have been sent already
+			queue(pipeline.loggedIn(loginId, user, rejected));
+			return;
+		}
+		currentUser = user;
+		if (currentUser != null) {
+			sendMessage("Login successful. Welcome, " + currentUser.getName().toUpperCase());
+			sendMessage(ServerThread.LOGGED_IN_MENU);
+			state = State.MENU_CHOICE;
+		} else {
+			sendMessage(rejected ? ServerThread.BUSY : "Invalid email or password.");
+			sendMessage(ServerThread.CONTINUE);
+			state = State.LOGIN_CONTINUE;
+		}
+	}
+
+	// Returns true if handling a message may wait for a Library call
+	private boolean callsLibrary(WireCodec.Frame message) {
+		if (state == State.PIPELINE) {
+			return true;
+		}
+		if (state == State.MAIN_CHOICE) {
+			return message.opcode == WireCodec.RESUME;
+		}
+		return state == State.MENU_CHOICE && message.opcode == WireCodec.SESSION
+				|| CALLS_LIBRARY.contains(state) && message.opcode == WireCodec.TEXT;
+	}
+
+	// Handles one message according to the current state
+	private void dispatch(WireCodec.Frame message) {
+		if (state == State.PIPELINE) {
+			pipeline.process(message);
+		} else if (state == State.MAIN_CHOICE && message.opcode == WireCodec.RESUME) {
+			resumeSession(message.text);
+		} else if (state == State.MENU_CHOICE && message.opcode == WireCodec.SESSION) {
+			// Asked in place of a menu choice, the menu still waits for the choice
+			queue(WireCodec.token(message.id, WireCodec.OK, myLib.issueSessionToken(currentUser, true)));
+		} else if (state != State.CLOSING) {
+			if (message.opcode == WireCodec.TEXT) {
+				handle(message.text);
+			} else {
+				// Typed requests are not part of the interactive dialogue
+				sendMessage(ServerThread.INVALID_OPTION);
+			}
+		}
+	}
+
+	/**
+	 * Sends as much of the queued output as the socket accepts.
+	 * Returns true if everything has been sent.
+	 */
+	public boolean write() throws IOException {
+		out.flip();
+		channel.write(out);
+		out.compact();
+		return out.position() == 0;
+	}
+
+	/**
+	 * Returns true if the connection should be closed once the output has been sent.
+	 */
+	public boolean isClosing() {
+		return state == State.CLOSING;
+	}
+
+	/**
+	 * Handles one message from the client according to the current state.
+	 */
+	private void handle(String message) {
+		switch (state) {
+			case MAIN_CHOICE:
+				if (message.equals("1")) {
+					sendMessage("Please enter your name: ");
+					state = State.REGISTER_NAME;
+				} else if (message.equals("2")) {
+					promptLogin();
+				} else if (message.equals("0")) {
+					state = State.CLOSING;
+				} else {
+					sendMessage(ServerThread.INVALID_OPTION);
+					goBack();
+				}
+				break;
+			case GO_BACK:
+				if (message.equalsIgnoreCase("1")) {
+					sendMessage(ServerThread.MAIN_MENU);
+					state = State.MAIN_CHOICE;
+				} else {
+					logout();
+				}
+				break;
+			case REGISTER_NAME:
+				name = message;
+				sendMessage("Please enter your PPS number: ");
+				state = State.REGISTER_PPS;
+				break;
+			case REGISTER_PPS:
+				if (ServerThread.isValidPps(message)) {
+					ppsNum = message;
+					sendMessage("Please enter your e-mail address: ");
+					state = State.REGISTER_MAIL;
+				} else {
+					sendMessage("Invalid PPS number. It must be 9 characters with the "
+							+ "first seven digits the last two being letters.");
+					sendMessage("Please enter your PPS number: ");
+				}
+				break;
+			case REGISTER_MAIL:
+				if (ServerThread.isValidMail(message)) {
+					mail = message;
+					sendMessage("Please enter your password: ");
+					state = State.REGISTER_PASSWORD;
+				} else {
+					sendMessage("Invalid Email Address, must contain '@', '.' and 'com'.");
+					sendMessage("Please enter your e-mail address: ");
+				}
+				break;
+			case REGISTER_PASSWORD:
+				password = message;
+				sendMessage("Please enter your address: ");
+				state = State.REGISTER_ADDRESS;
+				break;
+			case REGISTER_ADDRESS:
+				address = message;
+				sendMessage("Please enter your current balance: ");
+				state = State.REGISTER_BALANCE;
+				break;
+			case REGISTER_BALANCE:
+				// Add the new user to the library if the PPS number or email address provided are unique
+				if (myLib.addUser(name, ppsNum, mail, password, address, message)) {
+					sendMessage("Registration successful!");
+				} else {
+					sendMessage("User with the same PPS Number or Email already exists.");
+				}
+				goBack();
+				break;
+			case LOGIN_MAIL:
+				mail = message;
+				sendMessage("Please enter your password: ");
+				state = State.LOGIN_PASSWORD;
+				break;
+			case LOGIN_CONTINUE:
+				if (message.equalsIgnoreCase("-1")) {
+					logout();
+				} else {
+					promptLogin();
+				}
+				break;
+			case MENU_CHOICE:
+				handleMenuChoice(message);
+				break;
+			case LODGE_AMOUNT:
+				try {
+					// Update the user's balance by adding the lodged amount and save it to file
+					myLib.lodgeMoney(currentUser, Money.parse(message));
+					sendMessage("Money lodged successfully. Updated balance: " + Money.format(currentUser.getBalance()));
+				} catch (IllegalArgumentException | ArithmeticException e) {
+					// Not a number, not positive, or more than the balance can hold
+					sendMessage("Invalid amount. Please enter a valid number.");
+				}
+				showMenu();
+				break;
+			case TRANSFER_MAIL:
+				mail = message;
+				sendMessage("Please enter the recipient's PPS number: ");
+				state = State.TRANSFER_PPS;
+				break;
+			case TRANSFER_PPS:
+				// Find the recipient user based on their email and check the PPS number matches
+				recipient = myLib.findUserByEmail(mail);
+				if (recipient != null && recipient.getPpsNum().equals(message)) {
+					sendMessage("Please enter the amount to transfer: ");
+					state = State.TRANSFER_AMOUNT;
+				} else {
+					sendMessage("Recipient not found.");
+					showMenu();
+				}
+				break;
+			case TRANSFER_AMOUNT:
+				try {
+					sendMessage(ServerThread.transferReply(myLib.transferMoney(currentUser, recipient, Money.parse(message)),
+							currentUser));
+				} catch (IllegalArgumentException | ArithmeticException e) {
+					// Not a number or not positive
+					sendMessage("Invalid amount. Please enter a valid number.");
+				}
+				showMenu();
+				break;
+			case NEW_PASSWORD:
+				// Update the user's password with the new password and save it
+				if (myLib.updatePassword(currentUser, message)) {
+					sendMessage("Password updated successfully.");
+				} else {
+					sendMessage("Password could not be updated, please try again.");
+				}
+				showMenu();
+				break;
+			case USER_SEARCH:
+				directoryPrefix = message;
+				directoryCursor = null;
+				sendUserPage();
+				break;
+			case NEXT_USERS_PAGE:
+				if (message.equalsIgnoreCase("n")) {
+					sendUserPage();
+				} else {
+					showMenu();
+				}
+				break;
+			case NEXT_HISTORY_PAGE:
+				if (message.equalsIgnoreCase("n")) {
+					sendTransactionPage();
+				} else {
+					showMenu();
+				}
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Handles a choice from the menu of a logged-in user.
+	 */
+	private void handleMenuChoice(String choice) {
+		switch (choice) {
+			case "3":
+				sendMessage("Please enter the amount to lodge: ");
+				state = State.LODGE_AMOUNT;
+				break;
+			case "4":
+				sendMessage(ServerThread.SEARCH_USERS);
+				state = State.USER_SEARCH;
+				break;
+			case "5":
+				sendMessage("Please enter the recipient's email: ");
+				state = State.TRANSFER_MAIL;
+				break;
+			case "6":
+				// Send the newest page of transactions
+				historyOffset = 0;
+				sendTransactionPage();
+				break;
+			case "7":
+				sendMessage("Please enter your new password: ");
+				state = State.NEW_PASSWORD;
+				break;
+			case "8":
+				logout();
+				break;
+			default:
+				sendMessage(ServerThread.INVALID_OPTION);
+				showMenu();
+		}
+	}
+
+	// Sends the next page of the user listing and asks whether to show another one
+	private void sendUserPage() {
+		UserDirectory.Page page = myLib.getUserDirectory(directoryPrefix, directoryCursor, ServerThread.DIRECTORY_PAGE_SIZE);
+		sendMessage(ServerThread.directoryHeader(myLib, directoryPrefix));
+		// Send the number of users on this page and then each of them
+		sendMessage(Integer.toString(page.rows().size()));
+		for (String row : page.rows()) {
+			sendMessage(row);
+		}
+		directoryCursor = page.next();
+		if (directoryCursor == null) {
+			sendMessage(ServerThread.END_OF_USERS);
+			showMenu();
+		} else {
+			sendMessage(ServerThread.NEXT_PAGE);
+			state = State.NEXT_USERS_PAGE;
+		}
+	}
+
+	// Sends the next page of transactions and asks whether to show another one
+	private void sendTransactionPage() {
+		TransactionHistory.Page page = myLib.getTransactionPage(currentUser, historyOffset, ServerThread.HISTORY_PAGE_SIZE);
+		sendMessage(ServerThread.historyHeader(currentUser, page, historyOffset));
+		// Send the number of transactions on this page and then each of them
+		sendMessage(Integer.toString(page.transactions().size()));
+		Map<String, String> names = ServerThread.counterpartyNames(page, myLib);
+		for (Transaction transaction : page.transactions()) {
+			sendMessage(ServerThread.describe(transaction, names));
+		}
+		historyOffset += page.transactions().size();
+		if (historyOffset >= page.total()) {
+			sendMessage(ServerThread.END_OF_HISTORY);
+			showMenu();
+		} else {
+			sendMessage(ServerThread.NEXT_PAGE);
+			state = State.NEXT_HISTORY_PAGE;
+		}
+	}
+
+	// Prompts for the email address to log in with
+	private void promptLogin() {
+		sendMessage("Please enter your e-mail address: ");
+		state = State.LOGIN_MAIL;
+	}
+
+	// Shows the menu of a logged-in user again
+	private void showMenu() {
+		sendMessage(ServerThread.LOGGED_IN_MENU);
+		state = State.MENU_CHOICE;
+	}
+
+	// Resumes the session of a token in the interactive menu or the pipeline it was issued in,
+	// or sends the main menu again if the token is refused
+	private void resumeSession(String token) {
+		SessionTable.Session session = myLib.resumeSession(token);
+		if (session == null) {
+			queue(WireCodec.result(0, WireCodec.NOT_LOGGED_IN, 0));
+			sendMessage(ServerThread.MAIN_MENU);
+			return;
+		}
+		currentUser = session.getUser();
+		queue(WireCodec.result(0, WireCodec.OK, currentUser.getBalance()));
+		if (session.isInteractive()) {
+			showMenu();
+		} else {
+			pipeline = new RequestPipeline(myLib, currentUser);
+			state = State.PIPELINE;
+		}
+	}
+
+	// Asks the client whether to go back to the main menu
+	private void goBack() {
+		sendMessage(ServerThread.GO_BACK);
+		state = State.GO_BACK;
+	}
+
+	// Sends the logout message and closes the connection once it has been sent
+	private void logout() {
+		sendMessage(ServerThread.LOGOUT);
+		currentUser = null;
+		state = State.CLOSING;
+	}
+
+	// Queues a message for the client
+	private void sendMessage(String msg) {
+		queue(WireCodec.text(msg));
+	}
+
+	// Queues bytes for the client, growing the output buffer if needed
+	private void queue(byte[] bytes) {
+		if (out.remaining() < bytes.length) {
+			out = grow(out, Math.max(out.capacity() * 2, out.position() + bytes.length));
+		}
+		out.put(bytes);
+	}
+
+	// Returns a larger copy of a buffer that is ready for writing
+	private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+		ByteBuffer larger = ByteBuffer.allocate(capacity);
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+}
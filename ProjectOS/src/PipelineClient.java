@@ -0,0 +1,104 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The `PipelineClient` class is a machine client that settles many transfers over one connection.
+ * It logs in with a LOGIN frame and sends TRANSFER frames of one cent to a recipient, either
+ * waiting for each result before sending the next request (lock-step) or sending all of them
+ * while a second thread reads the results as they come back (pipelined). The first connection
+ * asks for a session token, and the second logs in with it instead of the password.
+ * Both runs are timed so the cost of waiting for every round trip can be compared, for example:
+ *   java PipelineClient 127.0.0.1 2004 john.smith@email.com password mary.johnson@email.com 9876543TA 10000
+ */
+public class PipelineClient {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 6) {
+			System.out.println("Usage: java PipelineClient host port mail password recipientMail recipientPps [transfers]");
+			return;
+		}
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		String mail = args[2];
+		String password = args[3];
+		String recipientMail = args[4];
+		String recipientPps = args[5];
+		int transfers = args.length > 6 ? Integer.parseInt(args[6]) : 10_000;
+
+		System.out.println("mode,transfers,ok,failed,transfers_per_sec");
+		String token = null;
+		for (boolean pipelined : new boolean[] { false, true }) {
+			try (Socket socket = new Socket(host, port)) {
+				WireCodec codec = new WireCodec(socket.getInputStream(), socket.getOutputStream());
+				// Skip the main menu and log in, with the session token once there is one
+				codec.readText();
+				codec.write(token == null ? WireCodec.login(mail, password) : WireCodec.resume(token));
+				WireCodec.Frame login = codec.read();
+				if (login.status != WireCodec.OK) {
+					System.out.println("Login failed for " + mail);
+					return;
+				}
+				if (token == null) {
+					codec.write(WireCodec.session(0));
+					token = codec.read().text;
+				}
+				AtomicInteger ok = new AtomicInteger();
+				long start = System.nanoTime();
+				if (pipelined) {
+					runPipelined(codec, socket, recipientMail, recipientPps, transfers, ok);
+				} else {
+					runLockStep(codec, recipientMail, recipientPps, transfers, ok);
+				}
+				long elapsed = System.nanoTime() - start;
+				System.out.println((pipelined ? "pipelined" : "lockstep") + "," + transfers + "," + ok.get() + ","
+						+ (transfers - ok.get()) + "," + (long) (transfers / (elapsed / 1e9)));
+			}
+		}
+	}
+
+	/**
+	 * Sends each transfer and waits for its result before sending the next one.
+	 */
+	private static void runLockStep(WireCodec codec, String recipientMail, String recipientPps, int transfers,
+			AtomicInteger ok) throws IOException {
+		for (int i = 1; i <= transfers; i++) {
+			codec.write(WireCodec.transfer(i, recipientMail, recipientPps, 1));
+			codec.flush();
+			WireCodec.Frame result = codec.read();
+			if (result.status == WireCodec.OK) {
+				ok.incrementAndGet();
+			}
+		}
+	}
+
+	/**
+	 * Sends every transfer without waiting, while a second thread reads the results and checks
+	 * that they come back in request order.
+	 */
+	private static void runPipelined(WireCodec codec, Socket socket, String recipientMail, String recipientPps,
+			int transfers, AtomicInteger ok) throws Exception {
+		Thread reader = Thread.ofVirtual().start(() -> {
+			try {
+				for (int i = 1; i <= transfers; i++) {
+					WireCodec.Frame result = codec.read();
+					if (result.id != i) {
+						System.out.println("Result " + result.id + " received out of order, expected " + i);
+					}
+					if (result.status == WireCodec.OK) {
+						ok.incrementAndGet();
+					}
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		});
+		for (int i = 1; i <= transfers; i++) {
+			codec.write(WireCodec.transfer(i, recipientMail, recipientPps, 1));
+		}
+		codec.flush();
+		// Tell the server that no more requests are coming
+		socket.shutdownOutput();
+		reader.join();
+	}
+}
@@ -0,0 +1,168 @@
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The `ProtocolBenchmark` class compares the old Java object serialization protocol with the
+ * WireCodec frames over a loopback socket.
+ * Each round trip is one lodgement exchange: the client sends an amount and the server answers
+ * with the updated balance and the menu again, as ServerThread does.
+ * The ObjectStream protocol flushes after every message, as the server and client used to;
+ * WireCodec only sends when the writer is about to wait for a reply.
+ * Run it with: java ProtocolBenchmark [round trips]
+ */
+public class ProtocolBenchmark {
+
+	// The menu sent after every reply
+	private static final String MENU = ServerThread.LOGGED_IN_MENU;
+
+	public static void main(String[] args) throws Exception {
+		int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+		System.out.println("protocol,round_trips,round_trips_per_sec,bytes_per_round_trip,writes_per_round_trip");
+		// Run each protocol twice and report the second run, once the JIT has warmed up
+		for (int run = 0; run < 2; run++) {
+			boolean report = run == 1;
+			benchmark("objectstream", new ObjectStreamProtocol(), roundTrips, report);
+			benchmark("wirecodec", new WireCodecProtocol(), roundTrips, report);
+		}
+	}
+
+	/**
+	 * Runs the given number of round trips over a fresh loopback connection and prints the
+	 * throughput and the bytes and socket writes per round trip.
+	 */
+	private static void benchmark(String name, Protocol protocol, int roundTrips, boolean report) throws Exception {
+		AtomicLong bytes = new AtomicLong();
+		AtomicLong writes = new AtomicLong();
+		try (ServerSocket listener = new ServerSocket(0)) {
+			// The server side answers every amount with two messages
+			Thread server = new Thread(() -> {
+				try (Socket socket = listener.accept()) {
+					socket.setTcpNoDelay(true);
+					Endpoint endpoint = protocol.open(socket.getInputStream(), new CountingStream(socket.getOutputStream(), bytes, writes));
+					for (int i = 0; i < roundTrips; i++) {
+						String amount = endpoint.read();
+						endpoint.write("Money lodged successfully. Updated balance: " + amount);
+						endpoint.write(MENU);
+						endpoint.endOfReply();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}, "benchmark-server");
+			server.start();
+
+			try (Socket socket = new Socket("127.0.0.1", listener.getLocalPort())) {
+				socket.setTcpNoDelay(true);
+				Endpoint endpoint = protocol.open(socket.getInputStream(), new CountingStream(socket.getOutputStream(), bytes, writes));
+				long start = System.nanoTime();
+				for (int i = 0; i < roundTrips; i++) {
+					endpoint.write(Integer.toString(i));
+					endpoint.endOfReply();
+					endpoint.read();
+					endpoint.read();
+				}
+				long elapsed = System.nanoTime() - start;
+				server.join();
+				if (report) {
+					System.out.println(name + "," + roundTrips + "," + (long) (roundTrips / (elapsed / 1e9)) + ","
+							+ bytes.get() / roundTrips + "," + String.format("%.2f", (double) writes.get() / roundTrips));
+				}
+			}
+		}
+	}
+
+	// Opens one side of a connection with a protocol
+	private interface Protocol {
+		Endpoint open(InputStream in, OutputStream out) throws IOException;
+	}
+
+	// One side of a connection
+	private interface Endpoint {
+		String read() throws IOException;
+
+		void write(String msg) throws IOException;
+
+		// Called once all the messages before the next read have been written
+		void endOfReply() throws IOException;
+	}
+
+	// The protocol used before WireCodec: a String object per message, flushed straight away
+	private static class ObjectStreamProtocol implements Protocol {
+		public Endpoint open(InputStream input, OutputStream output) throws IOException {
+			ObjectOutputStream out = new ObjectOutputStream(output);
+			out.flush();
+			ObjectInputStream in = new ObjectInputStream(input);
+			return new Endpoint() {
+				public String read() throws IOException {
+					try {
+						return (String) in.readObject();
+					} catch (ClassNotFoundException e) {
+						throw new IOException(e);
+					}
+				}
+
+				public void write(String msg) throws IOException {
+					out.writeObject(msg);
+					out.flush();
+				}
+
+				public void endOfReply() {
+				}
+			};
+		}
+	}
+
+	// Length-prefixed text frames, sent when the writer is about to read
+	private static class WireCodecProtocol implements Protocol {
+		public Endpoint open(InputStream input, OutputStream output) {
+			WireCodec codec = new WireCodec(input, output);
+			return new Endpoint() {
+				public String read() throws IOException {
+					return codec.readText();
+				}
+
+				public void write(String msg) throws IOException {
+					codec.writeText(msg);
+				}
+
+				public void endOfReply() throws IOException {
+					// A read would flush as well, but the last reply has no read after it
+					codec.flush();
+				}
+			};
+		}
+	}
+
+	// Counts the bytes and the write calls that reach the socket
+	private static class CountingStream extends FilterOutputStream {
+		private final AtomicLong bytes;
+		private final AtomicLong writes;
+
+		CountingStream(OutputStream out, AtomicLong bytes, AtomicLong writes) {
+			super(out);
+			this.bytes = bytes;
+			this.writes = writes;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			bytes.incrementAndGet();
+			writes.incrementAndGet();
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			bytes.addAndGet(len);
+			writes.incrementAndGet();
+			out.write(b, off, len);
+		}
+	}
+}
@@ -1,36 +1,163 @@
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+/*
+ * The `Provider` class accepts client connections and runs a ServerThread for each of them.
+ * How the sessions are run is chosen with system properties:
+ *   provider.mode     thread (default) - a new platform thread per connection
+ *                     virtual          - a new virtual thread per connection
+ *                     pool             - a bounded pool of worker threads with a bounded queue;
+ *                                        connections that do not fit are closed straight away
+ *                     nio              - a few selector event loops serve every connection
+ *   provider.workers  number of worker threads in pool mode (default 200)
+ *   provider.queue    connections waiting for a worker in pool mode (default 1000)
+ *   provider.loops    number of event loops in nio mode (default one per processor)
+ *   provider.nioWorkers  threads running the Library calls of the sessions in nio mode (default 64)
+ *   provider.backlog  listen backlog of the server socket (default 128)
+ *   provider.port     port to listen on (default 2004)
+ *   library.storage   text           - accounts are snapshotted to user_data.txt
+ *                     mapped         - accounts are kept in the memory-mapped accounts.dat
+ *                     the default is mapped once accounts.dat exists, text before
+ *   library.historyCache  bytes of recent transactions cached for viewing (default 64 MB)
+ *   library.durability    fsync (default) - a change is answered once it is on disk
+ *                         enqueue         - a change is answered once it is queued for the disk
+ *   library.commitWindowMicros  time the commit writer waits to gather more changes (default 0)
+ *   provider.log          error, warn, info (default) or debug - debug logs every message
+ *                         exchanged with the clients
+ *   provider.metricsPort  serve the metrics as Prometheus text on this loopback port (default off);
+ *                         they are always published through JMX, see MetricsExporter
+ *   library.shards        partition the accounts over several Providers, see ShardRouter for this
+ *                         and the other library.shard* properties (default off)
+ *   library.transferRetryMillis  time between attempts to credit a transfer to a shard that did
+ *                                not answer (default 1000)
+ *   library.replicationPort  serve the committed changes to read replicas on this loopback port
+ *                            (default off), see ReplicationServer
+ *   library.replicationBacklog  changes kept for replicas that lost their connection to catch up
+ *                               (default 100000)
+ *   library.replicaOf     run as a read replica of the primary at host:port, see Replica for this
+ *                         and the other library.replica* properties (default off)
+ *   library.passwordIterations  PBKDF2 iterations of the stored password hashes (default 100000),
+ *                               see Credentials for this and the other password properties
+ *   library.sessionTokenSeconds  idle time after which a session token expires (default 300),
+ *                                see SessionTable
+ *   library.loadThreads   threads that load the accounts at startup (default one per processor)
+ *   library.warmHistory   load the newest transactions of the accounts into the history cache
+ *                         at startup (default false), see StartupLoader
+ * The time each phase of the startup took is logged, and so is the time from the start of the
+ * JVM until the server accepts connections.
+ * Example: java -Dprovider.mode=virtual Provider
+ * A sharded deployment on one machine runs each Provider from its own directory, with its own
+ * client port and the same list of shards, e.g. for the first of three:
+ *   java -Dprovider.port=2004 -Dlibrary.shards=127.0.0.1:3001,127.0.0.1:3002,127.0.0.1:3003
+ *        -Dlibrary.shard=0 Provider
+ * A client can connect to any of them; copying the files of an unsharded server into every
+ * directory splits its accounts, as each shard only keeps its own.
+ * A read replica runs from the directory of its primary, whose transaction files it reads, with
+ * a client port of its own:
+ *   java -Dlibrary.replicationPort=4004 Provider
+ *   java -Dprovider.port=2005 -Dlibrary.replicaOf=127.0.0.1:4004 Provider
+ * Clients of the replica are served the same menu; their reads are answered by the replica and
+ * their changes are run by the primary.
+ */
 public class Provider {
 
 	public static void main(String[] args) {
-		
+
 		// Declare ServerSocket for handling incoming connections and a reference to a shared Library object
 		ServerSocket providerSocket;
 		Library sharedList;
 
+		// Read the connection settings
+		String mode = System.getProperty("provider.mode", "thread");
+		int port = Integer.getInteger("provider.port", 2004);
+		int backlog = Integer.getInteger("provider.backlog", 128);
+
 		try {
-			// Create a ServerSocket, binding it to port 2004, with a backlog of 10 connections
-			providerSocket = new ServerSocket(2004, 10);
+			if (mode.equals("nio")) {
+				// Serve every connection from the selector event loops
+				int loops = Integer.getInteger("provider.loops", Runtime.getRuntime().availableProcessors());
+				int workers = Integer.getInteger("provider.nioWorkers", 64);
+				Library library = new Library();
+				library.start();
+				new MetricsExporter(library).start();
+				new ShardServer(library).start();
+				new ReplicationServer(library).start();
+				logReady(port, mode);
+				new NioServer(library, loops, workers).serve(port, backlog);
+				return;
+			}
+			// Create a ServerSocket, binding it to the port with the configured backlog of connections
+			providerSocket = new ServerSocket(port, backlog);
 			// Create an instance of the Library class to be shared among threads
 			sharedList = new Library();
+			// Follow the primary or retry the credits of open transfers, if configured
+			sharedList.start();
+			// Publish the metrics of the library
+			new MetricsExporter(sharedList).start();
+			// Answer the other shards, if the accounts are sharded
+			new ShardServer(sharedList).start();
+			// Serve the read replicas, if library.replicationPort is set
+			new ReplicationServer(sharedList).start();
+			// Create the executor that runs the client sessions
+			ExecutorService sessions = createExecutor(mode);
+			logReady(port, mode);
 
 			// Infinite loop to continuously wait for and handle incoming connections
 			while (true) {
-				// Print a message indicating that the server is waiting for a connection
-				System.out.println("Waiting for connection");
-
 				// Accept a connection from a client, blocking until a connection is established
 				Socket connection = providerSocket.accept();
 				// Create a new ServerThread to handle the communication with the connected client
 				ServerThread serverThread = new ServerThread(connection, sharedList);
-				// Start the thread, which will execute the run() method in a separate thread of execution
-				serverThread.start();
+				try {
+					// Run the session, which will execute the run() method in a separate thread of execution
+					sessions.execute(serverThread);
+				} catch (RejectedExecutionException e) {
+					// Every worker is busy and the queue is full, refuse the client
+					Log.warn("Server busy, refusing connection from " + connection.getRemoteSocketAddress());
+					connection.close();
+				}
 			}
 
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Logs that the server accepts connections, and how long after the start of the JVM.
+	 */
+	private static void logReady(int port, String mode) {
+		long millis = System.currentTimeMillis() - ManagementFactory.getRuntimeMXBean().getStartTime();
+		Log.info("Accepting connections on port " + port + " in " + mode + " mode, " + millis + " ms after start");
+	}
+
+	/**
+	 * Creates the executor that runs the client sessions for the given mode.
+	 */
+	private static ExecutorService createExecutor(String mode) {
+		switch (mode) {
+			case "virtual":
+				// One virtual thread per connection, idle sessions do not hold an OS thread
+				return Executors.newVirtualThreadPerTaskExecutor();
+			case "pool":
+				// A fixed number of workers, with admission control through a bounded queue
+				int workers = Integer.getInteger("provider.workers", 200);
+				int queue = Integer.getInteger("provider.queue", 1000);
+				return new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+						new ArrayBlockingQueue<>(queue), new ThreadPoolExecutor.AbortPolicy());
+			case "thread":
+				// A new platform thread per connection
+				return Executors.newThreadPerTaskExecutor(Thread::new);
+			default:
+				throw new IllegalArgumentException("Unknown provider.mode: " + mode);
+		}
+	}
+}
@@ -0,0 +1,308 @@
+/*
+ * The `Replica` class keeps a read replica's Library up to date with the ChangeStream of its
+ * primary Provider, and sends the replica's writes to the primary. A read replica is a Provider
+ * started with -Dlibrary.replicaOf, from the directory of its primary:
+ *   library.replicaOf             address (host:port) of the primary's library.replicationPort
+ *   library.maxStalenessMillis    how far the replica may be behind its primary when it answers
+ *                                 a read (default 2000)
+ *   library.replicaTimeoutMillis  time to wait for the primary to connect or answer (default 5000)
+ * The replica loads a snapshot of every account from the primary, then applies the changes the
+ * primary streams to it. It keeps the accounts in memory and reads the transaction files of
+ * its directory, which it never writes, so logins, the user listing and the transaction
+ * histories are answered without the primary. Registrations, lodgements, transfers and password
+ * changes are run by the primary, and the replica waits until it has applied the change before
+ * answering, so a session always sees its own changes.
+ * The primary sends a batch of changes or an empty one at least every 100 ms, each with the time
+ * it was sent; once a replica has applied a batch it holds every change committed before that
+ * time. A read waits while the replica is further behind than library.maxStalenessMillis, and
+ * fails with an UncheckedIOException, which ends the session, if it does not catch up in that
+ * time again. If the connection to the primary breaks, the replica connects again and carries
+ * on from the last change it applied.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class Replica implements Runnable {
+
+	// Time to wait before connecting again to a primary that could not be reached
+	private static final long RETRY_MILLIS = 1000;
+
+	/**
+	 * The status of a write run by the primary, and the change of its stream that holds it.
+	 */
+	private record Ack(byte status, long epoch, long seq) {
+	}
+
+	private final InetSocketAddress primary;
+	private final long maxStalenessMillis;
+	private final int timeoutMillis;
+	private Library library;
+	// Epoch of the primary's stream and number of the last change applied, guarded by lock
+	private long epoch;
+	private long appliedSeq;
+	// Time the primary sent the last batch applied, 0 until the first snapshot is loaded
+	private volatile long freshAsOfMillis;
+	private final ReentrantLock lock = new ReentrantLock();
+	// Signalled when a snapshot or a batch of changes has been applied
+	private final Condition applied = lock.newCondition();
+	private final LongAdder appliedChanges = new LongAdder();
+	// Open connections to the primary for the writes that no call is using
+	private final ConcurrentLinkedQueue<ShardRouter.Connection> idle = new ConcurrentLinkedQueue<>();
+
+	public Replica(InetSocketAddress primary, long maxStalenessMillis, int timeoutMillis) {
+		this.primary = primary;
+		this.maxStalenessMillis = maxStalenessMillis;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Creates the replica described by the library.replicaOf and related properties, or returns
+	 * null if library.replicaOf is not set and the library is not a replica.
+	 */
+	public static Replica fromProperties() {
+		String address = System.getProperty("library.replicaOf");
+		if (address == null || address.isBlank()) {
+			return null;
+		}
+		int colon = address.lastIndexOf(':');
+		return new Replica(new InetSocketAddress(address.substring(0, colon).trim(),
+				Integer.parseInt(address.substring(colon + 1).trim())),
+				Long.getLong("library.maxStalenessMillis", 2000), Integer.getInteger("library.replicaTimeoutMillis", 5000));
+	}
+
+	/**
+	 * Starts following the primary into the given library, and waits until its snapshot is loaded.
+	 */
+	void start(Library library) {
+		this.library = library;
+		Log.info("Loading the accounts from primary " + primary);
+		Thread thread = new Thread(this, "replica");
+		thread.setDaemon(true);
+		thread.start();
+		lock.lock();
+		try {
+			while (freshAsOfMillis == 0) {
+				applied.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Follows the change stream of the primary, connecting again whenever the connection breaks.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				follow();
+			} catch (IOException e) {
+				Log.warn("Lost the change stream of primary " + primary + ", connecting again: " + e);
+			}
+			try {
+				Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	// Subscribes to the change stream from the last change applied, and applies what it sends
+	private void follow() throws IOException {
+		try (Socket socket = new Socket()) {
+			socket.connect(primary, timeoutMillis);
+			socket.setSoTimeout(timeoutMillis);
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeByte(ReplicationServer.SUBSCRIBE);
+			out.writeLong(epoch);
+			out.writeLong(appliedSeq);
+			out.flush();
+			List<String> records = new ArrayList<>();
+			while (true) {
+				byte type = in.readByte();
+				long newEpoch = type == ReplicationServer.SNAPSHOT ? in.readLong() : epoch;
+				long sentMillis = in.readLong();
+				long lastSeq = in.readLong();
+				int count = in.readInt();
+				records.clear();
+				for (int i = 0; i < count; i++) {
+					records.add(in.readUTF());
+				}
+				if (type == ReplicationServer.SNAPSHOT) {
+					library.applySnapshot(records);
+					// Connections left over from before the primary restarted are broken
+					closeIdle();
+					Log.info("Loaded " + count + " accounts from primary " + primary);
+				} else if (type == ReplicationServer.CHANGES) {
+					library.applyChanges(records);
+					appliedChanges.add(count);
+					library.getMetrics().recordReplicaDelay(System.currentTimeMillis() - sentMillis);
+				} else {
+					throw new StreamCorruptedException("Unknown change stream message " + type);
+				}
+				lock.lock();
+				try {
+					epoch = newEpoch;
+					appliedSeq = lastSeq;
+					freshAsOfMillis = sentMillis;
+					applied.signalAll();
+				} finally {
+					lock.unlock();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns how far this replica is behind its primary: the time since the primary sent the
+	 * last batch of changes applied.
+	 */
+	public long getLagMillis() {
+		return System.currentTimeMillis() - freshAsOfMillis;
+	}
+
+	/**
+	 * Returns the number of changes applied since the replica started.
+	 */
+	public long getAppliedChanges() {
+		return appliedChanges.sum();
+	}
+
+	/**
+	 * Waits until the replica is no further behind its primary than library.maxStalenessMillis,
+	 * for at most that time, and throws UncheckedIOException if it is still behind.
+	 */
+	void awaitFresh() {
+		if (getLagMillis() <= maxStalenessMillis) {
+			return;
+		}
+		long remaining = TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+		lock.lock();
+		try {
+			while (getLagMillis() > maxStalenessMillis) {
+				if (remaining <= 0) {
+					throw new UncheckedIOException(new IOException(
+							"Replica is " + getLagMillis() + " ms behind primary " + primary));
+				}
+				remaining = applied.awaitNanos(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UncheckedIOException(new InterruptedIOException("Interrupted waiting for primary " + primary));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Has the primary register a user, as Library.addUser does.
+	 */
+	public boolean register(String name, String ppsNum, String mail, String pass, String address, String balance)
+			throws IOException {
+		return write(out -> {
+			out.writeByte(ReplicationServer.REGISTER);
+			out.writeUTF(name);
+			out.writeUTF(ppsNum);
+			out.writeUTF(mail);
+			out.writeUTF(pass);
+			out.writeUTF(address);
+			out.writeUTF(balance);
+		}) == WireCodec.OK;
+	}
+
+	/**
+	 * Has the primary lodge an amount in cents into an account, and returns the status.
+	 */
+	public byte lodge(String ppsNum, long amount) throws IOException {
+		return write(out -> {
+			out.writeByte(ReplicationServer.LODGE);
+			out.writeUTF(ppsNum);
+			out.writeLong(amount);
+		});
+	}
+
+	/**
+	 * Has the primary run a transfer, and returns the status.
+	 */
+	public byte transfer(String senderPps, String recipientPps, long amount) throws IOException {
+		return write(out -> {
+			out.writeByte(ReplicationServer.TRANSFER);
+			out.writeUTF(senderPps);
+			out.writeUTF(recipientPps);
+			out.writeLong(amount);
+		});
+	}
+
+	/**
+	 * Has the primary update the password of an account.
+	 */
+	public boolean updatePassword(String ppsNum, String newPassword) throws IOException {
+		return write(out -> {
+			out.writeByte(ReplicationServer.PASSWORD);
+			out.writeUTF(ppsNum);
+			out.writeUTF(newPassword);
+		}) == WireCodec.OK;
+	}
+
+	// Sends a write to the primary on an idle connection, or a new one, and waits until the
+	// change that holds it is applied here; a write is never sent twice
+	private byte write(ShardRouter.Request request) throws IOException {
+		ShardRouter.Connection connection = idle.poll();
+		if (connection == null) {
+			connection = new ShardRouter.Connection(primary, timeoutMillis);
+		}
+		Ack ack;
+		try {
+			request.write(connection.out);
+			connection.out.flush();
+			ack = new Ack(connection.in.readByte(), connection.in.readLong(), connection.in.readLong());
+			idle.offer(connection);
+		} catch (IOException e) {
+			connection.close();
+			closeIdle();
+			throw e;
+		}
+		awaitApplied(ack.epoch(), ack.seq());
+		return ack.status();
+	}
+
+	// Waits until the given change is applied, for at most library.maxStalenessMillis
+	private void awaitApplied(long changeEpoch, long seq) {
+		long remaining = TimeUnit.MILLISECONDS.toNanos(maxStalenessMillis);
+		lock.lock();
+		try {
+			while ((epoch != changeEpoch || appliedSeq < seq) && remaining > 0) {
+				remaining = applied.awaitNanos(remaining);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Closes the connections for the writes that no call is using
+	private void closeIdle() {
+		for (ShardRouter.Connection connection; (connection = idle.poll()) != null;) {
+			connection.close();
+		}
+	}
+}
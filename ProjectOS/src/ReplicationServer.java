@@ -0,0 +1,229 @@
+/*
+ * The `ReplicationServer` class serves the ChangeStream of a primary Library to its read
+ * replicas, see Replica, and runs the writes they send on. It listens on -Dlibrary.replicationPort
+ * of the loopback address only, as the stream holds the passwords, and runs every connection on
+ * a thread of its own. A connection either follows the stream or sends writes:
+ *   SUBSCRIBE  epoch, last change applied  -> the changes after it, or a snapshot first if they
+ *                                            are not kept or the epoch is not this stream's
+ *   REGISTER   name, PPS number, email, password, address, balance -> ack
+ *   LODGE      PPS number, amount                                  -> ack
+ *   TRANSFER   sender PPS, recipient PPS, amount                   -> ack
+ *   PASSWORD   PPS number, new password                            -> ack
+ * The stream is a series of messages, each with the time it was sent and the number of the last
+ * change it brings the replica to:
+ *   SNAPSHOT   epoch, sent time, last change, count, the lines of every account as in user_data.txt
+ *   CHANGES    sent time, last change, count, the records of the changes
+ * A CHANGES message is sent whenever there are new changes, and at least every HEARTBEAT_MILLIS
+ * without any, so the replica knows how recent its data is. An ack is the status of the write,
+ * a WireCodec status, followed by the epoch and number of the change that holds it, which is
+ * published before the ack is sent whatever the durability mode.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ReplicationServer implements Runnable {
+
+	static final byte SUBSCRIBE = 1;
+	static final byte REGISTER = 2;
+	static final byte LODGE = 3;
+	static final byte TRANSFER = 4;
+	static final byte PASSWORD = 5;
+	static final byte SNAPSHOT = 1;
+	static final byte CHANGES = 2;
+	// Longest time between two messages of the stream
+	static final long HEARTBEAT_MILLIS = 100;
+
+	private final Library library;
+	private final ChangeStream changes;
+	private ServerSocket serverSocket;
+
+	public ReplicationServer(Library library) {
+		this.library = library;
+		this.changes = library.getChangeStream();
+	}
+
+	/**
+	 * Starts serving replicas from a background thread, if library.replicationPort is set.
+	 */
+	public void start() throws IOException {
+		if (changes == null) {
+			return;
+		}
+		InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+				Integer.getInteger("library.replicationPort", 0));
+		serverSocket = new ServerSocket();
+		serverSocket.bind(address);
+		Log.info("Serving read replicas on " + address);
+		Thread thread = new Thread(this, "replication-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Accepts the connections of the replicas.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				Socket socket = serverSocket.accept();
+				Thread replica = new Thread(() -> serve(socket), "replication-replica");
+				replica.setDaemon(true);
+				replica.start();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// Streams the changes to a replica, or answers its writes until it closes the connection
+	private void serve(Socket socket) {
+		try (socket) {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while (true) {
+				byte opcode;
+				try {
+					opcode = in.readByte();
+				} catch (EOFException e) {
+					// The replica closed the connection
+					return;
+				}
+				if (opcode == SUBSCRIBE) {
+					long epoch = in.readLong();
+					stream(epoch, in.readLong(), out);
+					return;
+				}
+				answer(opcode, in, out);
+				out.flush();
+			}
+		} catch (IOException e) {
+			Log.warn("Connection from replica " + socket.getRemoteSocketAddress() + " failed: " + e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	// Sends a snapshot if the replica can not carry on from the given change, then every change
+	// after it as it is published, until the connection breaks
+	private void stream(long epoch, long appliedSeq, DataOutputStream out) throws IOException, InterruptedException {
+		changes.replicaConnected();
+		try {
+			long sentSeq = appliedSeq;
+			if (epoch != changes.getEpoch() || !changes.covers(appliedSeq)) {
+				// Every change after this one is sent after the snapshot; the changes are the new
+				// values, so those already in the snapshot leave it as it is
+				sentSeq = changes.getPublishedSeq();
+				long sentMillis = System.currentTimeMillis();
+				List<String> accounts = library.snapshot();
+				out.writeByte(SNAPSHOT);
+				out.writeLong(changes.getEpoch());
+				writeBatch(out, sentMillis, sentSeq, accounts);
+			}
+			List<String> records = new ArrayList<>();
+			while (true) {
+				out.flush();
+				changes.await(sentSeq, HEARTBEAT_MILLIS);
+				// Taken before reading the changes, so every change published before it is sent
+				long sentMillis = System.currentTimeMillis();
+				records.clear();
+				long lastSeq = changes.read(sentSeq, records);
+				if (lastSeq < 0) {
+					Log.warn("Replica fell behind the changes kept for it, it will load a new snapshot");
+					return;
+				}
+				out.writeByte(CHANGES);
+				writeBatch(out, sentMillis, lastSeq, records);
+				sentSeq = lastSeq;
+			}
+		} finally {
+			changes.replicaDisconnected();
+		}
+	}
+
+	// Writes the part of a message after its type and epoch
+	private static void writeBatch(DataOutputStream out, long sentMillis, long lastSeq, List<String> records)
+			throws IOException {
+		out.writeLong(sentMillis);
+		out.writeLong(lastSeq);
+		out.writeInt(records.size());
+		for (String record : records) {
+			out.writeUTF(record);
+		}
+	}
+
+	// Reads the fields of one write, runs it on the library and writes the ack
+	private void answer(byte opcode, DataInputStream in, DataOutputStream out) throws IOException {
+		byte status;
+		switch (opcode) {
+			case REGISTER:
+				String name = in.readUTF();
+				String ppsNum = in.readUTF();
+				String mail = in.readUTF();
+				String pass = in.readUTF();
+				String address = in.readUTF();
+				boolean added = library.addUser(name, ppsNum, mail, pass, address, in.readUTF());
+				status = added ? WireCodec.OK : WireCodec.INVALID_REQUEST;
+				break;
+			case LODGE:
+				User user = library.findUserByPps(in.readUTF());
+				status = lodge(user, in.readLong());
+				break;
+			case TRANSFER:
+				User sender = library.findUserByPps(in.readUTF());
+				User recipient = library.findUserByPps(in.readUTF());
+				status = transfer(sender, recipient, in.readLong());
+				break;
+			case PASSWORD:
+				User passwordUser = library.findUserByPps(in.readUTF());
+				String newPassword = in.readUTF();
+				boolean updated = passwordUser != null && library.updatePassword(passwordUser, newPassword);
+				status = updated ? WireCodec.OK : WireCodec.INVALID_REQUEST;
+				break;
+			default:
+				throw new StreamCorruptedException("Unknown replica request " + opcode);
+		}
+		long seq = library.awaitPublished();
+		out.writeByte(status);
+		out.writeLong(changes.getEpoch());
+		out.writeLong(seq);
+	}
+
+	// Lodges into an account and returns the status
+	private byte lodge(User user, long amount) {
+		if (user == null) {
+			return WireCodec.RECIPIENT_NOT_FOUND;
+		}
+		try {
+			library.lodgeMoney(user, amount);
+			return WireCodec.OK;
+		} catch (ArithmeticException | IllegalArgumentException e) {
+			return WireCodec.INVALID_REQUEST;
+		}
+	}
+
+	// Runs a transfer and returns the status
+	private byte transfer(User sender, User recipient, long amount) {
+		if (sender == null || recipient == null) {
+			return WireCodec.RECIPIENT_NOT_FOUND;
+		}
+		try {
+			return library.transferMoney(sender, recipient, amount);
+		} catch (IllegalArgumentException e) {
+			// The amount is not positive
+			return WireCodec.INVALID_REQUEST;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.RejectedExecutionException;
+
+/*
+ * The `RequestPipeline` class runs the typed requests of a machine client.
+ * A machine client does not follow the interactive menus: after the main menu it sends a LOGIN
+ * frame, or a RESUME frame with a session token from an earlier connection, and can then send any
+ * number of LODGE, TRANSFER and SESSION frames without waiting for replies.
+ * The requests run in the order they were sent and each one is answered with a RESULT frame
+ * carrying the request id, or a SESSION with a TOKEN frame, so the client can match results to
+ * requests while more are in flight. A LOGIN whose password could not be checked, as too many
+ * were waiting, is answered with BUSY and can be sent again.
+ * The results are held back until sync() has made the changes of every request run so far
+ * durable with one journal commit, so a batch of requests costs one disk write instead of one each.
+ * It is used by ServerThread and by NioSession, which only differ in how frames reach it.
+ */
+public class RequestPipeline {
+
+	// Number of results after which the caller should sync even if more requests are waiting
+	private static final int BATCH_LIMIT = 1024;
+
+	private final Library myLib;
+	// User logged in on this connection, null until a LOGIN succeeds
+	private User currentUser;
+	// Changes made by the requests since the last sync
+	private Library.PendingWrites pending = new Library.PendingWrites();
+	// Encoded results of the requests since the last sync
+	private final ByteArrayOutputStream results = new ByteArrayOutputStream();
+	private int resultCount;
+
+	public RequestPipeline(Library library) {
+		this.myLib = library;
+	}
+
+	/**
+	 * Creates the pipeline of a session resumed with a token, already logged in as its user.
+	 */
+	public RequestPipeline(Library library, User user) {
+		this.myLib = library;
+		this.currentUser = user;
+	}
+
+	/**
+	 * Runs one request and holds back its RESULT frame until the next sync.
+	 */
+	public void process(WireCodec.Frame request) {
+		results.writeBytes(run(request));
+		resultCount++;
+	}
+
+	/**
+	 * Takes the outcome of a LOGIN request and returns its RESULT frame: the user logged in, or
+	 * null if the password was wrong or, if busy is set, could not be checked yet. NioSession
+	 * checks the password without a worker, see Library.loginUserAsync, and hands the outcome here
+	 * once every earlier result has been sent.
+	 */
+	public byte[] loggedIn(long id, User user, boolean busy) {
+		// A failed login also logs out a previously logged in user
+		currentUser = user;
+		if (busy) {
+			return WireCodec.result(id, WireCodec.BUSY, 0);
+		}
+		if (currentUser == null) {
+			return WireCodec.result(id, WireCodec.NOT_LOGGED_IN, 0);
+		}
+		return result(id, WireCodec.OK);
+	}
+
+	/**
+	 * Returns true once enough results are held back that they should be synced and sent.
+	 */
+	public boolean isBatchFull() {
+		return resultCount >= BATCH_LIMIT;
+	}
+
+	/**
+	 * Waits until the changes of the processed requests are on disk and returns their results.
+	 */
+	public byte[] sync() {
+		myLib.sync(pending);
+		pending = new Library.PendingWrites();
+		byte[] batch = results.toByteArray();
+		results.reset();
+		resultCount = 0;
+		return batch;
+	}
+
+	/**
+	 * Runs one request and returns the encoded RESULT frame.
+	 * Balances and amounts are exchanged in cents, as the Library holds them.
+	 */
+	private byte[] run(WireCodec.Frame request) {
+		switch (request.opcode) {
+			case WireCodec.LOGIN:
+				try {
+					return loggedIn(request.id, myLib.loginUser(request.mail, request.password), false);
+				} catch (RejectedExecutionException e) {
+					return loggedIn(request.id, null, true);
+				}
+			case WireCodec.RESUME:
+				SessionTable.Session session = myLib.resumeSession(request.text);
+				currentUser = session == null ? null : session.getUser();
+				if (currentUser == null) {
+					return WireCodec.result(request.id, WireCodec.NOT_LOGGED_IN, 0);
+				}
+				return result(request.id, WireCodec.OK);
+			case WireCodec.SESSION:
+				if (currentUser == null) {
+					return WireCodec.token(request.id, WireCodec.NOT_LOGGED_IN, "");
+				}
+				return WireCodec.token(request.id, WireCodec.OK, myLib.issueSessionToken(currentUser, false));
+			case WireCodec.LODGE:
+				if (currentUser == null) {
+					return WireCodec.result(request.id, WireCodec.NOT_LOGGED_IN, 0);
+				}
+				if (request.amount <= 0) {
+					return result(request.id, WireCodec.INVALID_REQUEST);
+				}
+				try {
+					myLib.lodgeMoney(currentUser, request.amount, pending);
+				} catch (ArithmeticException e) {
+					return result(request.id, WireCodec.INVALID_REQUEST);
+				}
+				return result(request.id, WireCodec.OK);
+			case WireCodec.TRANSFER:
+				if (currentUser == null) {
+					return WireCodec.result(request.id, WireCodec.NOT_LOGGED_IN, 0);
+				}
+				if (request.amount <= 0) {
+					return result(request.id, WireCodec.INVALID_REQUEST);
+				}
+				// Find the recipient user based on their email and check the PPS number matches
+				User recipient = myLib.findUserByEmail(request.mail);
+				if (recipient == null || !recipient.getPpsNum().equals(request.account)) {
+					return result(request.id, WireCodec.RECIPIENT_NOT_FOUND);
+				}
+				return result(request.id, myLib.transferMoney(currentUser, recipient, request.amount, pending));
+			default:
+				// Text, result and token frames are not requests
+				return WireCodec.result(request.id, WireCodec.INVALID_REQUEST, 0);
+		}
+	}
+
+	// Encodes a result with the current balance of the logged in user
+	private byte[] result(long id, byte status) {
+		return WireCodec.result(id, status, currentUser.getBalance());
+	}
+}
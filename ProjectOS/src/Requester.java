@@ -1,19 +1,27 @@
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
 // Class Requester handles client-side network communication with a server.
+// With -Drequester.sessionFile the token of the session is kept in that file after logging in,
+// and the next run takes the session up again without logging in, until the server refuses it.
 public class Requester {
 	Socket requestSocket;
-	ObjectOutputStream out;
-	ObjectInputStream in;
+	WireCodec codec;
 	String message;
 	String response;
 	Scanner input;
+	// File the session token is kept in, null to log in every time
+	Path sessionFile;
 	
 	// Constructor initializes the Scanner for user input.
 	Requester() {
 		input = new Scanner(System.in);
+		String file = System.getProperty("requester.sessionFile");
+		sessionFile = file == null ? null : Paths.get(file);
 	}
 	
 	// The main method for establishing a connection and handling user interactions.
@@ -22,67 +30,64 @@ public class Requester {
 			// 1. creating a socket to connect to the server
 			requestSocket = new Socket("127.0.0.1", 2004);
 			System.out.println("Connected to localhost in port 2004");
-			// 2. get Input and Output streams for communication with the server
-			out = new ObjectOutputStream(requestSocket.getOutputStream());
-			out.flush();
-			in = new ObjectInputStream(requestSocket.getInputStream());
+			// 2. get the frame codec for communication with the server
+			codec = new WireCodec(requestSocket.getInputStream(), requestSocket.getOutputStream());
+			// Take up the saved session instead of logging in, if the server still knows it
+			if (resumeSession()) {
+				handleUserChoice();
+				return;
+			}
 			// 3: Communicating with the server
 			// Handling client communication with the servers
-			try {
-				// Communicate with the server in a loop until the user decides to exit
-				do {
-					// Read registration or login message
-					message = (String) in.readObject();
-					System.out.println(message);
-					response = input.next();
-					sendMessage(response);
-					
-					// Handle registration process
-					if (response.equalsIgnoreCase("1")) {
-						handleRegistration();
-					} 
-					// Handle login process
-					else if (response.equalsIgnoreCase("2")) {
-						handleLogin();
-					}
-					// Option to close the connection
-					else if (response.equalsIgnoreCase("0")) {
-						// Close connection
-					}
-					else {
-						message = (String) in.readObject();
-						System.out.println(message);
-					}
-					
-					// If user wants to login or exit
-					// Break the loop if user input is not 1
-					message = (String) in.readObject();
-					System.out.println(message);
-					response = input.next();
-					sendMessage(response);
-				
-				} while (response.equalsIgnoreCase("1"));
+			// Communicate with the server in a loop until the user decides to exit
+			do {
+				// Read registration or login message
+				message = readText();
+				System.out.println(message);
+				response = input.next();
+				sendMessage(response);
 				
-				 // Logout if the response is not "1"
-				if(!response.equalsIgnoreCase("1")) {
-					logout();
+				// Handle registration process
+				if (response.equalsIgnoreCase("1")) {
+					handleRegistration();
+				} 
+				// Handle login process
+				else if (response.equalsIgnoreCase("2")) {
+					handleLogin();
 				}
-
-			} 
-			catch (ClassNotFoundException e) {
-				e.printStackTrace();
+				// Option to close the connection
+				else if (response.equalsIgnoreCase("0")) {
+					// Close connection
+				}
+				else {
+					message = readText();
+					System.out.println(message);
+				}
+				
+				// If user wants to login or exit
+				// Break the loop if user input is not 1
+				message = readText();
+				System.out.println(message);
+				response = input.next();
+				sendMessage(response);
+			
+			} while (response.equalsIgnoreCase("1"));
+			
+			 // Logout if the response is not "1"
+			if(!response.equalsIgnoreCase("1")) {
+				logout();
 			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 	}
 	// Handles the registration process by interacting with the user and sending data to the server.
-	private void handleRegistration() throws IOException, ClassNotFoundException {
+	private void handleRegistration() throws IOException {
 		String name, ppsNum, mail, password, address, balance;
 
 		// User inputing user data
 		// User- name, PPS number, email address, password, address, and balance
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 		input.nextLine(); // Consume the newline character
 		name = input.nextLine();
@@ -90,7 +95,7 @@ public class Requester {
 		
 		// Loop for PPS number validation
 		do {
-			message = (String)in.readObject();
+			message = readText();
 			System.out.println(message);
 			ppsNum = input.next();
 			sendMessage(ppsNum);
@@ -103,14 +108,14 @@ public class Requester {
                 break; // Exit the loop if the condition is met
             }
             else {
-            	message = (String) in.readObject();
+            	message = readText();
 				System.out.println(message);
             }
 		} while(true);
 		
 		// Loop for email validation
 		do {
-			message = (String)in.readObject();
+			message = readText();
 			System.out.println(message);
 			mail = input.next();
 			sendMessage(mail);
@@ -122,60 +127,61 @@ public class Requester {
 				break; // Exit loop if valid
 			}
 			else {
-				message = (String) in.readObject();
+				message = readText();
 				System.out.println(message);
 			}
 		} while(true);
 		
 		// Reading and sending other user data
 		// Password
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 		password = input.next();
 		sendMessage(password);
 		// Address
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 		input.nextLine(); // Consume the newline character
 		address = input.nextLine();
 		sendMessage(address);
 		// Balance
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 		balance = input.next();
 		sendMessage(balance);
 		// Display if registration was was successful
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 	}
 	
 	// Handles the login process by interacting with the user and sending login credentials to the server.
-	private void handleLogin() throws ClassNotFoundException, IOException {
+	private void handleLogin() throws IOException {
 		String validLogin;
 		String exit = "";
 		do {
 			// Read the email input 
-			message = (String)in.readObject();
+			message = readText();
 			System.out.println(message);
 			String email = input.next();
 			sendMessage(email);
 
 			// Read the password input
-			message = (String)in.readObject();
+			message = readText();
 			System.out.println(message);
 			String pass = input.next();
 			sendMessage(pass);
 			
 			// Check if login was successful
-			validLogin = (String)in.readObject();
+			validLogin = readText();
 			System.out.println(validLogin);
 			
 			// If login was successful 
 			if(!validLogin.equalsIgnoreCase("Invalid email or password.")) {
+				requestSession();
 				handleUserChoice();
 			}
 			// If user input is -1 break the loop
-			message = (String)in.readObject();
+			message = readText();
 			System.out.println(message);
 			exit = input.next();
 			sendMessage(exit);
@@ -184,100 +190,84 @@ public class Requester {
 		logout();
 	}
 	// Handles user's choice after successful login, allowing access to different functionalities.
-	private void handleUserChoice() throws ClassNotFoundException, IOException {
+	private void handleUserChoice() throws IOException {
 		boolean valid = true;;
-		try {
-			// Loop until user input is not 8
-			do {
-				// User inputs choice
-				message = (String) in.readObject();
-				System.out.println(message);
-				response = input.next();
-				sendMessage(response);
-
-				switch (response) {
-				case "3":
-					handleLodgeMoney();
-					break;
-				case "4":
-					handleRetrieveAllUsers();
-					break;
-				case "5":
-					handleTransferMoney();
-					break;
-				case "6":
-					handleViewTransactions();
-					break;
-				case "7":
-					handlePasswordChange();
-					break;
-				case "8":
-					logout();
-					break;
-				default:
-					message = (String) in.readObject();
-					System.out.println(message);
-					valid = false;
-				}
+		// Loop until user input is not 8
+		do {
+			// User inputs choice
+			message = readText();
+			System.out.println(message);
+			response = input.next();
+			sendMessage(response);
 
-			} while (!response.equalsIgnoreCase("8") || valid == false);
+			switch (response) {
+			case "3":
+				handleLodgeMoney();
+				break;
+			case "4":
+				handleRetrieveAllUsers();
+				break;
+			case "5":
+				handleTransferMoney();
+				break;
+			case "6":
+				handleViewTransactions();
+				break;
+			case "7":
+				handlePasswordChange();
+				break;
+			case "8":
+				logout();
+				break;
+			default:
+				message = readText();
+				System.out.println(message);
+				valid = false;
+			}
 
-		} catch (ClassNotFoundException e) {
-			e.printStackTrace();
-		}
+		} while (!response.equalsIgnoreCase("8") || valid == false);
 	}
 	
-	// Retrieves and displays all registered users from the server.
-	private void handleRetrieveAllUsers() throws IOException, ClassNotFoundException {
-		// Display "Total registered users: " string
-		message = (String) in.readObject();
-		System.out.println(message);
-
-		// Read the total number of registered users and display it
-		message = (String) in.readObject();
+	// Retrieves and displays the registered users from the server, a page at a time.
+	private void handleRetrieveAllUsers() throws IOException {
+		// Prompt the user to enter the start of a name or email, or * for everyone
+		message = readText();
 		System.out.println(message);
-		int totalUsers = Integer.parseInt(message);
-
-		try {
-			// Read and display user information
-			for (int i = 0; i < totalUsers; i++) {
-				message = (String) in.readObject();
-				System.out.println(message);
-			}
-		} catch (NumberFormatException e) {
-			e.printStackTrace();
-		}
+		String prefix = input.next();
+		sendMessage(prefix);
+		
+		receivePages();
 	}
 	
 	// Handles the process of lodging (depositing) money into the user's account.
-	private void handleLodgeMoney() throws IOException, ClassNotFoundException {
+	private void handleLodgeMoney() throws IOException {
 		// User input amount of money that will be lodged
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 		String amount = input.next();
 		sendMessage(amount);
 		
 		// Display message if payment was successful or not
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 	}
 	
 	// Handles the process of transferring money to another user's account.
-	private void handleTransferMoney() throws IOException, ClassNotFoundException {
+	private void handleTransferMoney() throws IOException {
 		// Prompt the user to enter the recipient's email
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 		String recipientMail = input.next();
 		sendMessage(recipientMail);
 		
 		  // Prompt the user to enter the recipient's PPS number
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 		String recipientPps = input.next();
 		sendMessage(recipientPps);
 		
 		// Check if the user needs to enter the amount to transfer
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 		if(message.equals("Please enter the amount to transfer: ")) {
 			// Prompt the user to enter the amount to transfer
@@ -285,61 +275,123 @@ public class Requester {
 			sendMessage(amount);
 			
 			// Display a message indicating whether the transfer was successful or not
-			message = (String)in.readObject();
+			message = readText();
 			System.out.println(message);
 		}
 		else {
 			// Display a message indicating the recipient's details and allow the user to confirm
-			message = (String)in.readObject();
+			message = readText();
 			System.out.println(message);
 		}
 	}
 	// Handles the process of changing the user's password.
-	private void handlePasswordChange() throws IOException, ClassNotFoundException {
+	private void handlePasswordChange() throws IOException {
 		// Prompt the user to enter the new password
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 		String newPass = input.next();
 		sendMessage(newPass);
 		
 		// Display a message indicating whether the password change was successful or not
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 	}
 	
 	// Handles the process of viewing the user's transaction history.
-	private void handleViewTransactions() throws IOException, ClassNotFoundException {
-		// Display a message indicating that the transactions are being retrieved
-		message = (String)in.readObject();
-		System.out.println(message);
-		
-		// Read the number of transactions
-		message = (String)in.readObject();
-		int size = Integer.parseInt(message);
-		
-		// Loop to receive and display each transaction
-		for(int i = 0; i < size; i++) {
-			message = (String)in.readObject();
+	// The transactions come a page at a time, newest first.
+	private void handleViewTransactions() throws IOException {
+		receivePages();
+	}
+	
+	// Receives and displays a listing that the server sends a page at a time.
+	private void receivePages() throws IOException {
+		String reply;
+		do {
+			// Display the heading of the page
+			message = readText();
 			System.out.println(message);
-		}
+			
+			// Read the number of lines on this page
+			message = readText();
+			int size = Integer.parseInt(message);
+			
+			// Loop to receive and display each line
+			for(int i = 0; i < size; i++) {
+				message = readText();
+				System.out.println(message);
+			}
+			
+			// Check if there are more pages, and if so whether to show the next one
+			message = readText();
+			System.out.println(message);
+			reply = "";
+			if(message.equals("Enter N for the next page or any other key to go back: ")) {
+				reply = input.next();
+				sendMessage(reply);
+			}
+		} while (reply.equalsIgnoreCase("n"));
 	}
 	// Handles the logout process
-	private void logout() throws IOException, ClassNotFoundException {
+	private void logout() throws IOException {
 		// Display a logout message
-		message = (String)in.readObject();
+		message = readText();
 		System.out.println(message);
 		
-		// Close the input and output streams, and the socket
-        in.close();
-        out.close();
+		// Close the codec streams and the socket
+        codec.close();
         requestSocket.close();
 	}
 	
+	// Resumes the session saved in the session file, and returns true if the server accepted it.
+	// If it did not, the saved token is deleted and the server sends the main menu again.
+	private boolean resumeSession() throws IOException {
+		if (sessionFile == null || !Files.exists(sessionFile)) {
+			return false;
+		}
+		String token = Files.readString(sessionFile).trim();
+		// Skip the main menu, the resumed session starts at the menu of a logged in user
+		readText();
+		codec.write(WireCodec.resume(token));
+		codec.flush();
+		WireCodec.Frame result = codec.read();
+		if (result.status != WireCodec.OK) {
+			System.out.println("The saved session has expired, please log in.");
+			Files.deleteIfExists(sessionFile);
+			return false;
+		}
+		System.out.println("Session resumed.");
+		return true;
+	}
+
+	// Asks the server for a session token after logging in, if it is to be kept.
+	// The token arrives after the menu and is saved by readText.
+	private void requestSession() throws IOException {
+		if (sessionFile != null) {
+			codec.write(WireCodec.session(0));
+			codec.flush();
+		}
+	}
+
+	// Reads the next text message, saving a session token that the server sent before it
+	private String readText() throws IOException {
+		WireCodec.Frame frame = codec.read();
+		while (frame.opcode == WireCodec.TOKEN) {
+			if (frame.status == WireCodec.OK) {
+				Files.writeString(sessionFile, frame.text);
+			}
+			frame = codec.read();
+		}
+		if (frame.opcode != WireCodec.TEXT) {
+			throw new StreamCorruptedException("Expected a text frame, got opcode " + frame.opcode);
+		}
+		return frame.text;
+	}
+
 	// Sends a message to the server
 	void sendMessage(String msg) {
 		try {
-			out.writeObject(msg);
-			out.flush();
+			codec.writeText(msg);
+			codec.flush();
 			System.out.println("client>" + msg);
 		} catch (IOException ioException) {
 			ioException.printStackTrace();
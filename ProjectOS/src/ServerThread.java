@@ -1,6 +1,12 @@
 import java.io.*;
 import java.net.Socket;
-import java.util.List;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
 * Represents a server thread responsible for handling communication and interactions with a connected client.
@@ -10,14 +16,33 @@ import java.util.List;
 	* https://www.w3resource.com/java-exercises/thread/java-thread-exercise-7.php
 	* https://stackoverflow.com/questions/52957047/multithreading-bank-account-java
 */
-public class ServerThread extends Thread {
+public class ServerThread implements Runnable {
+	
+	// Prompts that are also sent by the non-blocking engine in NioSession
+	static final String MAIN_MENU = "Please enter one of the following options:\n1. REGISTER\n2. LOGIN\n0. EXIT";
+	static final String LOGGED_IN_MENU = "Please enter one of the following options:"
+			+ "\n3. Lodge money\n4. Retrieve all registered users listing\n"
+			+ "5. Transfer money\n6. View all transactions on your bank account\n7. Update your password\n8. Logout";
+	static final String GO_BACK = "Enter 1 to go back: ";
+	static final String CONTINUE = "Enter -1 to EXIT or any other key to CONTINUE: ";
+	static final String INVALID_OPTION = "Invalid option. Please try again.";
+	static final String LOGOUT = "Logout successful.";
+	static final String NEXT_PAGE = "Enter N for the next page or any other key to go back: ";
+	static final String END_OF_HISTORY = "End of transactions.";
+	static final String SEARCH_USERS = "Enter the start of a name or email to search for, or * for all users: ";
+	static final String END_OF_USERS = "End of users.";
+	static final String BUSY = "The server is busy, please try again.";
+	// Number of transactions and of users shown at a time
+	static final int HISTORY_PAGE_SIZE = 10;
+	static final int DIRECTORY_PAGE_SIZE = 20;
+	// Date and time shown with each transaction
+	private static final DateTimeFormatter TRANSACTION_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")
+			.withZone(ZoneId.systemDefault());
 	
 	// Represents socket connection
     private Socket myConnection;
-    // For reading objects from the client
-    private ObjectInputStream in;
-    // For writing objects to the client
-    private ObjectOutputStream out;
+    // For reading and writing the frames exchanged with the client
+    private WireCodec codec;
     // Library object that contains book data
     private Library myLib;
     // Current user associated with this thread
@@ -41,17 +66,33 @@ public class ServerThread extends Thread {
     	// Initialize variable for repeating the loop
     	String repeat;
     	
+        myLib.getMetrics().sessionOpened();
         try {
-        	// Set up ObjectInput/OutputStream for communication
-            out = new ObjectOutputStream(myConnection.getOutputStream());
-            out.flush();
-            in = new ObjectInputStream(myConnection.getInputStream());
+        	// Set up the frame codec for communication
+            codec = new WireCodec(myConnection.getInputStream(), myConnection.getOutputStream());
 
             // Server Comms
             do {
-                sendMessage("Please enter one of the following options:\n1. REGISTER\n2. LOGIN\n0. EXIT");
-                String choice = (String) in.readObject();
-                System.out.println(choice);
+                sendMessage(MAIN_MENU);
+                WireCodec.Frame request = codec.read();
+                // A machine client logs in with a typed frame instead of choosing from the menu
+                if (request.opcode == WireCodec.LOGIN) {
+                    runPipeline(new RequestPipeline(myLib), request);
+                    return;
+                }
+                // A client with a session token takes its session up again
+                if (request.opcode == WireCodec.RESUME) {
+                    if (resumeSession(request.text)) {
+                        return;
+                    }
+                    // The token was refused, show the main menu again
+                    repeat = "1";
+                    continue;
+                }
+                String choice = request.opcode == WireCodec.TEXT ? request.text : "";
+                if (Log.isDebugEnabled()) {
+                    Log.debug("client > " + choice);
+                }
                 
                 // Process the user choice
                 switch (choice) {
@@ -65,23 +106,27 @@ public class ServerThread extends Thread {
                         closeConnection();
                         return;  // Exit the loop and thread
                     default:
-                        sendMessage("Invalid option. Please try again.");
+                        sendMessage(INVALID_OPTION);
                 }
                 // Ask user if they want to repeat the process
                 // If input not 1 exit the loop
-                sendMessage("Enter 1 to go back: ");
-				repeat = (String)in.readObject();
-				System.out.println(repeat);
+                sendMessage(GO_BACK);
+				repeat = codec.readText();
+				if (Log.isDebugEnabled()) {
+					Log.debug("client > " + repeat);
+				}
 
             } while(repeat.equalsIgnoreCase("1"));   
         // Logout user
         logout();
 
-        } catch (IOException | ClassNotFoundException e) {
+        } catch (IOException | UncheckedIOException e) {
+            // UncheckedIOException when the shard owning an account could not be reached
             e.printStackTrace();
         } finally {
         	// Close the connection regardless of the outcome
             closeConnection();
+            myLib.getMetrics().sessionClosed();
         }
     }
     
@@ -89,26 +134,22 @@ public class ServerThread extends Thread {
      * Registers a new user by obtaining user information from the client, validating it,
      * and updating the library with the new user details.
      */
-    private void registerUser() throws IOException, ClassNotFoundException {
+    private void registerUser() throws IOException {
     	
     	String name, ppsNum, mail, password, address, balance;
     	boolean validMail = false;
     	
     	// Prompt the user for their details- name, PPS number, email address, password, address and balance
     	sendMessage("Please enter your name: ");
-        name = (String) in.readObject();
+        name = codec.readText();
         
         // While loop for PPS number- until conditions are met
         do {
             sendMessage("Please enter your PPS number: ");
-            ppsNum = (String) in.readObject();
+            ppsNum = codec.readText();
             
-            // Check if ppsNum has a length of 9, and the first 7 characters are digits,
-            // and the last 2 characters are letters
-            // Reference: https://stackoverflow.com/questions/14792063/regular-expression-for-7-digits-followed-by-an-optional-3-letters
-            if (ppsNum.length() == 9 &&
-                ppsNum.substring(0, 7).matches("\\d{7}") &&
-                ppsNum.substring(7).matches("[a-zA-Z]{2}")) {
+            // Check if ppsNum is 7 digits followed by 2 letters
+            if (isValidPps(ppsNum)) {
                 break; // Exit the loop if the condition is met
             }
             else {
@@ -120,12 +161,10 @@ public class ServerThread extends Thread {
         // While loop for e-mail address- until conditions are not met
         do {
         	sendMessage("Please enter your e-mail address: ");
-            mail = (String) in.readObject();
+            mail = codec.readText();
             
             // Check if e-mail address contains '@', '.' and 'com'
-            if(mail.contains("@") && 
-    				mail.contains(".") && 
-    				mail.contains("com")) {
+            if(isValidMail(mail)) {
     				break;
     			}
     			else {
@@ -135,13 +174,13 @@ public class ServerThread extends Thread {
         } while(!validMail); // Infinite loop until the condition is met
         
         sendMessage("Please enter your password: ");
-        password = (String) in.readObject();
+        password = codec.readText();
 
         sendMessage("Please enter your address: ");
-        address = (String) in.readObject();
+        address = codec.readText();
 
         sendMessage("Please enter your current balance: ");
-        balance = (String) in.readObject();
+        balance = codec.readText();
         
         // Add the new user to the library if the PPS number or email address provided are unique
         if (myLib.addUser(name, ppsNum, mail, password, address, balance)) {
@@ -152,28 +191,76 @@ public class ServerThread extends Thread {
             sendMessage("User with the same PPS Number or Email already exists.");
         }
     }
+    
+    /**
+     * Runs the typed requests of a machine client until it closes the connection, starting with
+     * the given one, or the next one sent if it is null.
+     * The client does not wait for each result, so the requests are read as they arrive,
+     * and the results are made durable and sent once no further request is waiting to be read.
+     */
+    private void runPipeline(RequestPipeline pipeline, WireCodec.Frame first) throws IOException {
+    	try {
+    		WireCodec.Frame request = first != null ? first : codec.read();
+    		while (true) {
+    			// Run the request in order, its result is held back until the next sync
+    			pipeline.process(request);
+    			if (!codec.hasInput() || pipeline.isBatchFull()) {
+    				codec.write(pipeline.sync());
+    			}
+    			request = codec.read();
+    		}
+    	} catch (EOFException e) {
+    		// The client has sent all of its requests, the results are sent on close
+    	}
+    }
+    
+    /**
+     * Checks if a PPS number has a length of 9, and the first 7 characters are digits,
+     * and the last 2 characters are letters.
+     * Reference: https://stackoverflow.com/questions/14792063/regular-expression-for-7-digits-followed-by-an-optional-3-letters
+     */
+    static boolean isValidPps(String ppsNum) {
+        return ppsNum.length() == 9 &&
+            ppsNum.substring(0, 7).matches("\\d{7}") &&
+            ppsNum.substring(7).matches("[a-zA-Z]{2}");
+    }
+    
+    /**
+     * Checks if an e-mail address contains '@', '.' and 'com'.
+     */
+    static boolean isValidMail(String mail) {
+        return mail.contains("@") && mail.contains(".") && mail.contains("com");
+    }
+    
     /**
      * Logs in a user by obtaining their email address and password, validating the credentials,
      * and allowing access to the user's account.
      * This method repeatedly prompts the user to enter their email address and password, checks
      * the provided credentials for validity, and proceeds to handle login options if successful.
      */
-    private void loginUser() throws IOException, ClassNotFoundException {
+    private void loginUser() throws IOException {
     	String email, password, exit;
     	
     	do {
     		// Prompt the user to enter their email address
     		sendMessage("Please enter your e-mail address: ");
     		// Read the entered email address
-	        email = (String) in.readObject();
+	        email = codec.readText();
 	        
 	        // Prompt the user to enter their password
 	        sendMessage("Please enter your password: ");
 	        // Read the entered password
-	        password = (String) in.readObject();
+	        password = codec.readText();
 	        
 	        // Attempt to log in the user using entered email and password
-	        currentUser = myLib.loginUser(email, password);
+	        boolean busy = false;
+	        try {
+	        	currentUser = myLib.loginUser(email, password);
+	        } catch (RejectedExecutionException e) {
+	        	// Too many logins are waiting for their password to be checked
+	        	currentUser = null;
+	        	busy = true;
+	        }
 	        
 	        // Check if login was successful
 	        if (currentUser != null) {
@@ -182,32 +269,67 @@ public class ServerThread extends Thread {
 	            handleLoggedInOptions();
 	        } 
 	        else {
-	            sendMessage("Invalid email or password.");
+	            sendMessage(busy ? BUSY : "Invalid email or password.");
 	        }
-	        sendMessage("Enter -1 to EXIT or any other key to CONTINUE: ");
-	        exit = (String) in.readObject();
+	        sendMessage(CONTINUE);
+	        exit = codec.readText();
 	        
     	} while(!exit.equalsIgnoreCase("-1"));
     	logout();
     }
 
+    /**
+     * Resumes the session of a token, in the interactive menu or the pipeline it was issued in,
+     * and runs it until it ends. Returns false, leaving the client at the main menu, if the
+     * token is refused.
+     */
+    private boolean resumeSession(String token) throws IOException {
+        SessionTable.Session session = myLib.resumeSession(token);
+        if (session == null) {
+            codec.write(WireCodec.result(0, WireCodec.NOT_LOGGED_IN, 0));
+            return false;
+        }
+        currentUser = session.getUser();
+        codec.write(WireCodec.result(0, WireCodec.OK, currentUser.getBalance()));
+        if (session.isInteractive()) {
+            handleLoggedInOptions();
+        } else {
+            runPipeline(new RequestPipeline(myLib, currentUser), null);
+        }
+        return true;
+    }
+
+    /**
+     * Reads the choice of the logged-in menu. A SESSION frame sent in its place is answered with
+     * the token of a session in the interactive dialogue, and the choice is read after it.
+     */
+    private String readChoice() throws IOException {
+        WireCodec.Frame frame = codec.read();
+        while (frame.opcode == WireCodec.SESSION) {
+            codec.write(WireCodec.token(frame.id, WireCodec.OK, myLib.issueSessionToken(currentUser, true)));
+            frame = codec.read();
+        }
+        if (frame.opcode != WireCodec.TEXT) {
+            throw new StreamCorruptedException("Expected a menu choice, got opcode " + frame.opcode);
+        }
+        return frame.text;
+    }
+
     /**
      * Handles the menu of options for a logged-in user.
      * This method displays a menu of available options, reads the user's choice,
      * and performs actions based on the chosen option.
      */
-    private void handleLoggedInOptions() throws IOException, ClassNotFoundException {
+    private void handleLoggedInOptions() throws IOException {
         boolean valid = true;
         String choice;
         
     	do {
         	// Display a menu of options for the logged-in user
-            sendMessage("Please enter one of the following options:"
-            		+ "\n3. Lodge money\n4. Retrieve all registered users listing\n" 
-            		+"5. Transfer money\n6. View all transactions on your bank account\n7. Update your password\n8. Logout");
+            sendMessage(LOGGED_IN_MENU);
             
             // Read the user's choice from the input stream.
-            choice = (String) in.readObject();
+            choice = readChoice();
             
             // Use a switch statement to perform actions based on the user's choice
             switch (choice) {
@@ -230,7 +352,7 @@ public class ServerThread extends Thread {
                     logout();
                     break;
                 default:
-                    sendMessage("Invalid option. Please try again.");
+                    sendMessage(INVALID_OPTION);
                     valid = false;
             }
         } while (!choice.equalsIgnoreCase("8") || valid == false);
@@ -242,44 +364,62 @@ public class ServerThread extends Thread {
      * updates the user's balance, and saves the transaction and user balances to files.
      * Reference: https://codereview.stackexchange.com/questions/275456/atm-console-program-with-java
      */
-    private void lodgeMoney() throws IOException, ClassNotFoundException {
+    private void lodgeMoney() throws IOException {
     	// Send a message to prompt the user to enter the amount to lodge
     	sendMessage("Please enter the amount to lodge: ");
     	// Read the amount entered by the user as a string from input
-        String amountStr = (String) in.readObject();
+        String amountStr = codec.readText();
 
         try {
-        	// Parse the entered amount string to a floating-point number
-            float amount = Float.parseFloat(amountStr);
-            // Update the user's balance by adding the lodged amount
-            currentUser.setBalance(currentUser.getBalance() + amount);
+        	// Parse the entered amount string to cents
+            long amount = Money.parse(amountStr);
+            // Update the user's balance by adding the lodged amount and save it to file
+            myLib.lodgeMoney(currentUser, amount);
             // Send a success message with the updated balance to the user
-            sendMessage("Money lodged successfully. Updated balance: " + currentUser.getBalance());
-            myLib.saveUsers();  // Save the updated user balances to file
-            myLib.saveUserTransactions(currentUser);  // Save the user transactions to file
-        } catch (NumberFormatException e) {
+            sendMessage("Money lodged successfully. Updated balance: " + Money.format(currentUser.getBalance()));
+        } catch (IllegalArgumentException | ArithmeticException e) {
+            // Not a number, not positive, or more than the balance can hold
             sendMessage("Invalid amount. Please enter a valid number.");
         }
     }
     /**
-     * Retrieves and sends information about all registered users to the client.
-     * This method retrieves the list of all registered users, sends the total number
-     * of users to the client, and then iterates through each user to send their
-     * information to the client.
+     * Retrieves and sends information about the registered users to the client.
+     * This method asks for the start of a name or email address, or * for everyone,
+     * and sends the matching users in alphabetical order a page at a time, asking
+     * after each page whether to send the next one.
      */
     private void retrieveAllUsers() throws IOException {
-    	// Retrieve the list of all registered users from the library
-        List<User> allUsers = myLib.getUserList();
+        sendMessage(SEARCH_USERS);
+        String prefix = codec.readText();
+        String cursor = null;
+        String reply;
+        do {
+            // Retrieve the next page of matching users from the library
+            UserDirectory.Page page = myLib.getUserDirectory(prefix, cursor, DIRECTORY_PAGE_SIZE);
+            sendMessage(directoryHeader(myLib, prefix));
+            // Send the number of users on this page
+            sendMessage(Integer.toString(page.rows().size()));
+            // Iterate through each user and send their information to the client
+            for (String row : page.rows()) {
+                sendMessage(row);
+            }
+            if (page.next() == null) {
+                sendMessage(END_OF_USERS);
+                return;
+            }
+            // Ask whether to show the next page
+            sendMessage(NEXT_PAGE);
+            reply = codec.readText();
+            cursor = page.next();
+        } while (reply.equalsIgnoreCase("n"));
+    }
 
-        // Send the total number of registered users
-        sendMessage("Total registered users: ");
-        sendMessage(Integer.toString(allUsers.size()));
-        
-        // Iterate through each user and send their information to the client
-        for (User user : allUsers) {
-            // Send user information to client
-            sendMessage(user.toString());
+    // Returns the heading of a page of the user listing
+    static String directoryHeader(Library library, String prefix) {
+        if (prefix.equals("*")) {
+            return "Total registered users: " + library.getUserCount();
         }
+        return "Registered users starting with \"" + prefix + "\":";
     }
     
     /**
@@ -290,14 +430,14 @@ public class ServerThread extends Thread {
      * and a success message is sent. Otherwise, appropriate error messages are sent.
      * Reference: https://stackoverflow.com/questions/57001044/how-to-transfer-funds-from-one-account-to-another-in-java-using-user-input-for
      */
-    private void transferMoney() throws IOException, ClassNotFoundException {
+    private void transferMoney() throws IOException {
     	// Prompt the user to enter the recipient's email
     	sendMessage("Please enter the recipient's email: ");
-        String recipientEmail = (String) in.readObject();
+        String recipientEmail = codec.readText();
         
         // Prompt the user to enter the recipient's PPS number
         sendMessage("Please enter the recipient's PPS number: ");
-        String recipientPps = (String) in.readObject();
+        String recipientPps = codec.readText();
         
         // Find the recipient user based on their email
         User recipient = myLib.findUserByEmail(recipientEmail);
@@ -306,15 +446,16 @@ public class ServerThread extends Thread {
         if (recipient != null && recipient.getPpsNum().equals(recipientPps)) {
         	// Prompt the user to enter the amount to transfer
         	sendMessage("Please enter the amount to transfer: ");
-            String amountStr = (String) in.readObject();
-            float amount = Float.parseFloat(amountStr);
-            
-            // Attempt to transfer money from the current user to the recipient
-            if (myLib.transferMoney(currentUser, recipient, amount)) {
-                sendMessage("Money transferred successfully. Updated balance: " + currentUser.getBalance());
-            } 
-            else {
-                sendMessage("Insufficient funds for the transfer.");
+            String amountStr = codec.readText();
+            try {
+            	// Parse the entered amount string to cents
+            	long amount = Money.parse(amountStr);
+            	
+            	// Attempt to transfer money from the current user to the recipient
+            	sendMessage(transferReply(myLib.transferMoney(currentUser, recipient, amount), currentUser));
+            } catch (IllegalArgumentException | ArithmeticException e) {
+            	// Not a number or not positive
+            	sendMessage("Invalid amount. Please enter a valid number.");
             }
         } else {
             sendMessage("Recipient not found.");
@@ -327,16 +468,89 @@ public class ServerThread extends Thread {
      * sends the total number of transactions and each transaction's details to the client.
      */
     private void viewTransactions() throws IOException {
-        // Retrieve and send transaction information
-        List<String> transactions = myLib.getUserTransactions(currentUser);
-        // Send a message indicating the user whose transactions are being displayed
-        sendMessage("Transactions for user " + currentUser.getName().toUpperCase() + ":");
-        // Send the total number of transactions
-        sendMessage(Integer.toString(transactions.size()));
-        // Iterate through each transaction and send it to the client
-        for (String transaction : transactions) {
-            sendMessage(transaction);
+        int offset = 0;
+        String reply;
+        do {
+            // Retrieve the next page of transactions, newest first
+            TransactionHistory.Page page = myLib.getTransactionPage(currentUser, offset, HISTORY_PAGE_SIZE);
+            // Send a message indicating the user whose transactions are being displayed
+            sendMessage(historyHeader(currentUser, page, offset));
+            // Send the number of transactions on this page
+            sendMessage(Integer.toString(page.transactions().size()));
+            // Iterate through each transaction and send it to the client
+            Map<String, String> names = counterpartyNames(page, myLib);
+            for (Transaction transaction : page.transactions()) {
+                sendMessage(describe(transaction, names));
+            }
+            offset += page.transactions().size();
+            if (offset >= page.total()) {
+                sendMessage(END_OF_HISTORY);
+                return;
+            }
+            // Ask whether to show the next page
+            sendMessage(NEXT_PAGE);
+            reply = codec.readText();
+        } while (reply.equalsIgnoreCase("n"));
+    }
+
+    // Returns the text shown for a transaction, e.g.
+    // "2024-03-01 14:05 Sent $50.00 to MARY JOHNSON, balance $12400.00"
+    // Transactions converted from older text files have no date and balance.
+    // The other account's name is taken from names, see counterpartyNames.
+    static String describe(Transaction transaction, Map<String, String> names) {
+        StringBuilder text = new StringBuilder(80);
+        if (transaction.timestamp() != Transaction.UNKNOWN) {
+            TRANSACTION_TIME.formatTo(Instant.ofEpochMilli(transaction.timestamp()), text);
+            text.append(' ');
+        }
+        boolean sent = transaction.type() == Transaction.Type.SENT;
+        Money.append(text.append(sent ? "Sent $" : "Received $"), transaction.amount());
+        text.append(sent ? " to " : " from ");
+        // The other account is stored by PPS number, show the name it has now
+        String counterparty = names.get(transaction.counterparty());
+        text.append(counterparty != null ? counterparty.toUpperCase() : "UNKNOWN ACCOUNT");
+        if (transaction.balance() != Transaction.UNKNOWN) {
+            Money.append(text.append(", balance $"), transaction.balance());
+        }
+        return text.toString();
+    }
+
+    // Returns the names of the other accounts of a page of transactions, looked up together so
+    // the accounts of another shard cost one request to it for the whole page
+    static Map<String, String> counterpartyNames(TransactionHistory.Page page, Library library) {
+        Set<String> ppsNums = new HashSet<>();
+        for (Transaction transaction : page.transactions()) {
+            ppsNums.add(transaction.counterparty());
+        }
+        return library.findNamesByPps(ppsNums);
+    }
+
+    // Returns the reply to a transfer from the given sender that ended with the given status
+    static String transferReply(byte status, User sender) {
+        switch (status) {
+            case WireCodec.OK:
+                return "Money transferred successfully. Updated balance: " + Money.format(sender.getBalance());
+            case WireCodec.PENDING:
+                return "Transfer pending, the recipient's account will be credited once it can be reached. "
+                        + "Updated balance: " + Money.format(sender.getBalance());
+            case WireCodec.INSUFFICIENT_FUNDS:
+                return "Insufficient funds for the transfer.";
+            case WireCodec.RECIPIENT_NOT_FOUND:
+                return "Recipient not found.";
+            default:
+                // The recipient's balance would overflow
+                return "Invalid amount. Please enter a valid number.";
+        }
+    }
+
+    // Returns the heading of a page of transactions, e.g. "... newest first (11-20 of 53):"
+    static String historyHeader(User user, TransactionHistory.Page page, int offset) {
+        String heading = "Transactions for user " + user.getName().toUpperCase();
+        if (page.transactions().isEmpty()) {
+            return heading + ":";
         }
+        return heading + ", newest first (" + (offset + 1) + "-" + (offset + page.transactions().size())
+                + " of " + page.total() + "):";
     }
     
     /**
@@ -344,16 +558,18 @@ public class ServerThread extends Thread {
      * This method prompts the user to enter a new password, updates the user's password
      * in the system, and then saves the updated user information to a file.
      */
-    private void updatePassword() throws IOException, ClassNotFoundException {
+    private void updatePassword() throws IOException {
     	// Prompt the user to enter their new password
     	sendMessage("Please enter your new password: ");
     	// Read the new password entered by the user as a string from input
-        String newPassword = (String) in.readObject();
-        // Update the user's password with the new password
-        currentUser.setPassword(newPassword);
-        myLib.saveUsers(); // Save the updated user information, including the new password, to a file
-        // Send a success message indicating that the password has been updated
-        sendMessage("Password updated successfully.");
+        String newPassword = codec.readText();
+        // Update the user's password with the new password and save it
+        if (myLib.updatePassword(currentUser, newPassword)) {
+            // Send a success message indicating that the password has been updated
+            sendMessage("Password updated successfully.");
+        } else {
+            sendMessage("Password could not be updated, please try again.");
+        }
     }
     
     /**
@@ -363,7 +579,7 @@ public class ServerThread extends Thread {
      */
     private void logout() throws IOException {
     	// Send a logout success message to the client
-        sendMessage("Logout successful.");
+        sendMessage(LOGOUT);
         // Clear the current user
         currentUser = null;
         // Close connection
@@ -372,14 +588,16 @@ public class ServerThread extends Thread {
     
     /**
      * This method sends the provided message to the client.
+     * The message is buffered and sent together with any other messages
+     * when the next reply is read or the connection is closed.
      */
     private void sendMessage(String msg) throws IOException {
-    	// Write the message to the output stream
-    	out.writeObject(msg);
-    	// Flush the output stream to ensure the message is sent immediately
-        out.flush();
-     // Print the message to the server's console for logging
-        System.out.println("server > " + msg);
+    	// Write the message to the output buffer
+    	codec.writeText(msg);
+        // Log the message at debug level, off unless -Dprovider.log=debug
+        if (Log.isDebugEnabled()) {
+            Log.debug("server > " + msg);
+        }
     }
     
     /**
@@ -387,10 +605,8 @@ public class ServerThread extends Thread {
      */
     private void closeConnection() {
         try {
-        	// Close the input stream
-            in.close();
-            // Close the output stream
-            out.close();
+        	// Send any buffered messages and close the streams
+            codec.close();
             // Close the connection with the client
             myConnection.close();
         } catch (IOException e) {
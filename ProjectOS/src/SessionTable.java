@@ -0,0 +1,223 @@
+/*
+ * The `SessionTable` class holds the sessions of the clients that asked the Library for a session
+ * token, so that they can log in again with the token, on a new connection or one back at the
+ * main menu, without the password being checked again. A token is 16 random bytes; it stands for
+ * the account, the stored password it was issued against, and whether the session was the
+ * interactive dialogue or a pipeline of typed requests, which is what resuming it goes back to.
+ * A session expires once it has not been resumed for -Dlibrary.sessionTokenSeconds (default 300),
+ * and as soon as the account's password changes.
+ * The idle sessions are found by a hashed timer wheel: a ring of SLOTS lists, one for each tick of
+ * TICK_MILLIS, and a thread that moves to the next list every tick. A session is put in the list
+ * of the tick its idle time runs out, or of the last tick of the ring if that is further away.
+ * Resuming a session only moves its deadline; when its list comes round, a session whose deadline
+ * has not passed is put in the list of its new deadline instead of being expired. So resuming
+ * costs no work on the wheel, and each tick only looks at the sessions due in it.
+ */
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class SessionTable {
+
+	// Time between two moves of the wheel, and the number of lists on it
+	private static final long TICK_MILLIS = 1000;
+	private static final int SLOTS = 512;
+
+	/**
+	 * The session of a client that asked for a token.
+	 */
+	public static final class Session {
+		private final String token;
+		private final User user;
+		// Stored password of the account when the token was issued
+		private final String stored;
+		private final boolean interactive;
+		// Time the session expires unless it is resumed before
+		private volatile long deadlineMillis;
+
+		Session(String token, User user, String stored, boolean interactive, long deadlineMillis) {
+			this.token = token;
+			this.user = user;
+			this.stored = stored;
+			this.interactive = interactive;
+			this.deadlineMillis = deadlineMillis;
+		}
+
+		public User getUser() {
+			return user;
+		}
+
+		/**
+		 * Returns true if the session is the interactive dialogue, false if it is a pipeline of
+		 * typed requests.
+		 */
+		public boolean isInteractive() {
+			return interactive;
+		}
+	}
+
+	private final long idleMillis;
+	private final SecureRandom random = new SecureRandom();
+	private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+	// The lists of the wheel, the one of tick t at index t % SLOTS, guarded by lock
+	private final List<List<Session>> wheel = new ArrayList<>();
+	// Number of ticks the wheel has moved, guarded by lock
+	private long tick;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final LongAdder resumes = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+
+	/**
+	 * Creates a table whose sessions expire after the given time without being resumed, once
+	 * start has been called.
+	 */
+	public SessionTable(long idleMillis) {
+		this.idleMillis = idleMillis;
+		for (int i = 0; i < SLOTS; i++) {
+			wheel.add(new ArrayList<>());
+		}
+	}
+
+	/**
+	 * Creates the table described by the library.sessionTokenSeconds property, and starts it.
+	 */
+	public static SessionTable fromProperties() {
+		SessionTable table = new SessionTable(Long.getLong("library.sessionTokenSeconds", 300) * 1000);
+		table.start();
+		return table;
+	}
+
+	/**
+	 * Starts the thread that moves the wheel. Called once, after the table is constructed.
+	 */
+	public void start() {
+		ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "session-wheel");
+			thread.setDaemon(true);
+			return thread;
+		});
+		ticker.scheduleAtFixedRate(this::advance, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Opens a session for a user who has logged in with the given stored password, and returns
+	 * its token.
+	 */
+	public String open(User user, String stored, boolean interactive) {
+		byte[] bytes = new byte[16];
+		random.nextBytes(bytes);
+		String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+		Session session = new Session(token, user, stored, interactive, System.currentTimeMillis() + idleMillis);
+		sessions.put(token, session);
+		lock.lock();
+		try {
+			schedule(session, System.currentTimeMillis());
+		} finally {
+			lock.unlock();
+		}
+		return token;
+	}
+
+	/**
+	 * Returns the session of a token and keeps it open for another idle time, or returns null if
+	 * the token is unknown, has expired or the user's password has changed since it was issued.
+	 */
+	public Session resume(String token) {
+		Session session = sessions.get(token);
+		if (session == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (session.deadlineMillis <= now || !session.stored.equals(session.user.getPassword().toString())) {
+			// Expired before its list came round, or no longer valid
+			if (sessions.remove(token, session)) {
+				expired.increment();
+			}
+			return null;
+		}
+		session.deadlineMillis = now + idleMillis;
+		resumes.increment();
+		return session;
+	}
+
+	/**
+	 * Returns the number of open sessions.
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Returns the number of logins with a session token.
+	 */
+	public long getResumes() {
+		return resumes.sum();
+	}
+
+	/**
+	 * Returns the number of sessions that expired or were ended by a password change.
+	 */
+	public long getExpired() {
+		return expired.sum();
+	}
+
+	/**
+	 * Moves the wheel one tick on, expiring the sessions of the new tick whose idle time has run
+	 * out and putting the others in the list of their deadline.
+	 */
+	void advance() {
+		List<Session> due;
+		lock.lock();
+		try {
+			tick++;
+			int slot = (int) (tick % SLOTS);
+			due = wheel.get(slot);
+			wheel.set(slot, new ArrayList<>());
+		} finally {
+			lock.unlock();
+		}
+		long now = System.currentTimeMillis();
+		List<Session> later = new ArrayList<>();
+		for (Session session : due) {
+			if (sessions.get(session.token) != session) {
+				// Already removed by a resume that found it expired
+				continue;
+			}
+			if (session.deadlineMillis <= now) {
+				if (sessions.remove(session.token, session)) {
+					expired.increment();
+				}
+			} else {
+				later.add(session);
+			}
+		}
+		if (later.isEmpty()) {
+			return;
+		}
+		lock.lock();
+		try {
+			for (Session session : later) {
+				schedule(session, now);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// Puts a session in the list of the tick its deadline falls in, at most a turn of the wheel
+	// away, while holding the lock
+	private void schedule(Session session, long now) {
+		long ticks = (session.deadlineMillis - now + TICK_MILLIS - 1) / TICK_MILLIS;
+		ticks = Math.max(1, Math.min(ticks, SLOTS - 1));
+		wheel.get((int) ((tick + ticks) % SLOTS)).add(session);
+	}
+}
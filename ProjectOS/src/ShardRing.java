@@ -0,0 +1,56 @@
+/*
+ * The `ShardRing` class assigns every account to a shard by consistent hashing of its PPS number.
+ * Each shard is placed on a ring of 64-bit hashes at many points, derived from its address, and
+ * an account belongs to the first shard point at or after the hash of its PPS number. With many
+ * points per shard the accounts are spread evenly, and adding or removing a shard only moves
+ * the accounts between its points and the ones before them, about 1/n of all accounts, instead
+ * of reassigning nearly every account as a hash modulo the number of shards would.
+ * The ring is built once and only read afterwards, so lookups need no locking.
+ */
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class ShardRing {
+
+	// Shard index of every point on the ring, by the point's hash
+	private final TreeMap<Long, Integer> points = new TreeMap<>();
+
+	/**
+	 * Builds the ring of the given shard addresses, placing each one at pointsPerShard points.
+	 */
+	public ShardRing(List<String> shards, int pointsPerShard) {
+		for (int shard = 0; shard < shards.size(); shard++) {
+			for (int point = 0; point < pointsPerShard; point++) {
+				// A collision keeps the first shard, both ends of the ring agree on it
+				points.putIfAbsent(hash(shards.get(shard) + "#" + point), shard);
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the shard that owns the account with the given PPS number.
+	 */
+	public int shardOf(String ppsNum) {
+		Map.Entry<Long, Integer> point = points.ceilingEntry(hash(ppsNum));
+		// Past the last point the ring wraps around to the first one
+		return (point != null ? point : points.firstEntry()).getValue();
+	}
+
+	// Hashes a string to 64 bits with FNV-1a, finished with the MurmurHash3 mixer so that keys
+	// differing only in their last characters are spread over the whole ring
+	static long hash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+			hash = (hash ^ (b & 0xFF)) * 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb3f95d6c1a4fL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
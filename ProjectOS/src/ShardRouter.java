@@ -0,0 +1,442 @@
+/*
+ * The `ShardRouter` class sends the calls of a Library to the shards that own the accounts when
+ * they are partitioned over several Provider processes, each with the files of its own accounts.
+ * It is set up from system properties, which must list the shards in the same order everywhere:
+ *   library.shards              addresses (host:port) on which the shards answer each other,
+ *                               e.g. 127.0.0.1:3001,127.0.0.1:3002,127.0.0.1:3003
+ *   library.shard               index in library.shards of this shard (default 0)
+ *   library.shardPoints         points of each shard on the hash ring (default 128), see ShardRing
+ *   library.shardTimeoutMillis  time to wait for another shard to connect or answer (default 5000)
+ * The Library asks isLocal whether an account is its own and uses the other methods for the
+ * accounts that are not; the requests are answered by the ShardServer of the other shard.
+ * Connections are opened when first needed and reused by later calls. A call that fails closes
+ * the connections to that shard and throws an IOException; calls that change nothing are sent
+ * again once on a new connection, as the failed one may be left over from before the other
+ * shard restarted.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+
+public class ShardRouter {
+
+	/**
+	 * The status of a lodgement or transfer run by another shard and the balance it left.
+	 */
+	public record Outcome(byte status, long balance) {
+	}
+
+	// The status of a login on another shard and the user it logged in
+	private record Login(byte status, User user) {
+	}
+
+	/**
+	 * A lookup of a user on one shard.
+	 */
+	public interface UserCall {
+		User call(int shard) throws IOException;
+	}
+
+	// Writes a request to another shard, or from a Replica to its primary
+	interface Request {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	// Reads the answer to a request
+	interface Reply<T> {
+		T read(DataInputStream in) throws IOException;
+	}
+
+	private final List<InetSocketAddress> shards;
+	private final int self;
+	private final ShardRing ring;
+	private final int timeoutMillis;
+	// Open connections to each shard that no call is using
+	private final List<ConcurrentLinkedQueue<Connection>> idle = new ArrayList<>();
+
+	public ShardRouter(List<String> addresses, int self, int pointsPerShard, int timeoutMillis) {
+		if (self < 0 || self >= addresses.size()) {
+			throw new IllegalArgumentException("library.shard " + self + " is not an index of library.shards");
+		}
+		shards = new ArrayList<>(addresses.size());
+		for (String address : addresses) {
+			int colon = address.lastIndexOf(':');
+			shards.add(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))));
+			idle.add(new ConcurrentLinkedQueue<>());
+		}
+		this.self = self;
+		this.ring = new ShardRing(addresses, pointsPerShard);
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Creates the router described by the library.shard* properties, or returns null if
+	 * library.shards is not set and the library holds every account itself.
+	 */
+	public static ShardRouter fromProperties() {
+		String shards = System.getProperty("library.shards");
+		if (shards == null || shards.isBlank()) {
+			return null;
+		}
+		List<String> addresses = new ArrayList<>();
+		for (String address : shards.split(",")) {
+			addresses.add(address.trim());
+		}
+		return new ShardRouter(addresses, Integer.getInteger("library.shard", 0),
+				Integer.getInteger("library.shardPoints", 128), Integer.getInteger("library.shardTimeoutMillis", 5000));
+	}
+
+	/**
+	 * Checks whether the account with the given PPS number belongs to this shard.
+	 */
+	public boolean isLocal(String ppsNum) {
+		return ring.shardOf(ppsNum) == self;
+	}
+
+	/**
+	 * Returns the index of this shard.
+	 */
+	public int getSelf() {
+		return self;
+	}
+
+	/**
+	 * Returns the address on which the given shard answers the other shards.
+	 */
+	public InetSocketAddress getAddress(int shard) {
+		return shards.get(shard);
+	}
+
+	/**
+	 * Looks up a user on every other shard in turn and returns the first one found, or null.
+	 * A shard that can not be reached is logged and skipped.
+	 */
+	public User findOnOtherShards(UserCall lookup) {
+		for (int shard = 0; shard < shards.size(); shard++) {
+			if (shard == self) {
+				continue;
+			}
+			try {
+				User user = lookup.call(shard);
+				if (user != null) {
+					return user;
+				}
+			} catch (IOException e) {
+				Log.warn("Shard " + shards.get(shard) + " is unreachable: " + e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Checks whether another shard has an account with the given email address. A shard that
+	 * can not be reached counts as having one, as the address can not be shown to be free.
+	 */
+	public boolean isMailUsedOnOtherShards(String mail) {
+		for (int shard = 0; shard < shards.size(); shard++) {
+			if (shard == self) {
+				continue;
+			}
+			try {
+				if (findUserByEmail(shard, mail) != null) {
+					return true;
+				}
+			} catch (IOException e) {
+				Log.warn("Shard " + shards.get(shard) + " is unreachable, can not check email " + mail + ": " + e);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the user registered on a shard with the given email address, or null.
+	 */
+	public User findUserByEmail(int shard, String mail) throws IOException {
+		return call(shard, true, out -> {
+			out.writeByte(ShardServer.FIND_MAIL);
+			out.writeUTF(mail);
+		}, ShardServer::readUser);
+	}
+
+	/**
+	 * Returns the user with the given PPS number from the shard that owns it, or null.
+	 */
+	public User findUserByPps(String ppsNum) throws IOException {
+		return call(ring.shardOf(ppsNum), true, out -> {
+			out.writeByte(ShardServer.FIND_PPS);
+			out.writeUTF(ppsNum);
+		}, ShardServer::readUser);
+	}
+
+	/**
+	 * Returns the names of the accounts with the given PPS numbers, asking each shard that owns
+	 * some of them once. Numbers without an account, or whose shard can not be reached, are
+	 * left out.
+	 */
+	public Map<String, String> findNames(Collection<String> ppsNums) {
+		Map<Integer, List<String>> byShard = new HashMap<>();
+		for (String ppsNum : ppsNums) {
+			byShard.computeIfAbsent(ring.shardOf(ppsNum), shard -> new ArrayList<>()).add(ppsNum);
+		}
+		Map<String, String> names = new HashMap<>();
+		for (Map.Entry<Integer, List<String>> entry : byShard.entrySet()) {
+			List<String> asked = entry.getValue();
+			try {
+				List<String> found = call(entry.getKey(), true, out -> {
+					out.writeByte(ShardServer.FIND_NAMES);
+					out.writeInt(asked.size());
+					for (String ppsNum : asked) {
+						out.writeUTF(ppsNum);
+					}
+				}, in -> {
+					List<String> read = new ArrayList<>(asked.size());
+					for (int i = 0; i < asked.size(); i++) {
+						read.add(in.readUTF());
+					}
+					return read;
+				});
+				for (int i = 0; i < asked.size(); i++) {
+					if (!found.get(i).isEmpty()) {
+						names.put(asked.get(i), found.get(i));
+					}
+				}
+			} catch (IOException e) {
+				Log.warn("Shard " + shards.get(entry.getKey()) + " is unreachable: " + e);
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Returns a user of a shard with the given name, ignoring case, or null.
+	 */
+	public User findUserByName(int shard, String name) throws IOException {
+		return call(shard, true, out -> {
+			out.writeByte(ShardServer.FIND_NAME);
+			out.writeUTF(name);
+		}, ShardServer::readUser);
+	}
+
+	/**
+	 * Returns the user registered on a shard with the email address if the password is right,
+	 * or null. The password is checked by that shard, which throws RejectedExecutionException
+	 * if it had too many to check.
+	 */
+	public User login(int shard, String mail, String password) throws IOException {
+		Login login = call(shard, true, out -> {
+			out.writeByte(ShardServer.LOGIN);
+			out.writeUTF(mail);
+			out.writeUTF(password);
+		}, in -> new Login(in.readByte(), ShardServer.readUser(in)));
+		if (login.status() == WireCodec.BUSY) {
+			throw new RejectedExecutionException("Shard " + shards.get(shard) + " has too many passwords to check");
+		}
+		return login.user();
+	}
+
+	/**
+	 * Registers a user on the shard that owns the PPS number, as Library.addUser does.
+	 */
+	public boolean register(String name, String ppsNum, String mail, String pass, String address, String balance)
+			throws IOException {
+		return call(ring.shardOf(ppsNum), false, out -> {
+			out.writeByte(ShardServer.REGISTER);
+			out.writeUTF(name);
+			out.writeUTF(ppsNum);
+			out.writeUTF(mail);
+			out.writeUTF(pass);
+			out.writeUTF(address);
+			out.writeUTF(balance);
+		}, DataInputStream::readBoolean);
+	}
+
+	/**
+	 * Lodges an amount in cents into an account on the shard that owns it.
+	 */
+	public Outcome lodge(String ppsNum, long amount) throws IOException {
+		return call(ring.shardOf(ppsNum), false, out -> {
+			out.writeByte(ShardServer.LODGE);
+			out.writeUTF(ppsNum);
+			out.writeLong(amount);
+		}, ShardRouter::readOutcome);
+	}
+
+	/**
+	 * Runs a transfer on the shard that owns the sender's account, and returns the status and
+	 * the sender's balance.
+	 */
+	public Outcome transfer(String senderPps, String recipientPps, long amount) throws IOException {
+		return call(ring.shardOf(senderPps), false, out -> {
+			out.writeByte(ShardServer.TRANSFER);
+			out.writeUTF(senderPps);
+			out.writeUTF(recipientPps);
+			out.writeLong(amount);
+		}, ShardRouter::readOutcome);
+	}
+
+	/**
+	 * Updates the password of an account on the shard that owns it.
+	 */
+	public boolean updatePassword(String ppsNum, String newPassword) throws IOException {
+		return call(ring.shardOf(ppsNum), false, out -> {
+			out.writeByte(ShardServer.PASSWORD);
+			out.writeUTF(ppsNum);
+			out.writeUTF(newPassword);
+		}, DataInputStream::readBoolean);
+	}
+
+	/**
+	 * Reads a page of the transactions of an account from the shard that owns it.
+	 */
+	public TransactionHistory.Page getTransactionPage(String ppsNum, int offset, int limit) throws IOException {
+		return call(ring.shardOf(ppsNum), true, out -> {
+			out.writeByte(ShardServer.HISTORY);
+			out.writeUTF(ppsNum);
+			out.writeInt(offset);
+			out.writeInt(limit);
+		}, ShardServer::readPage);
+	}
+
+	/**
+	 * Returns the directory entries of every other shard that the same search would return
+	 * there, see UserDirectory.entries. Shards that can not be reached are logged and left out.
+	 */
+	public List<UserDirectory.Entry> getOtherDirectories(String prefix, String after, int limit) {
+		List<UserDirectory.Entry> entries = new ArrayList<>();
+		for (int shard = 0; shard < shards.size(); shard++) {
+			if (shard == self) {
+				continue;
+			}
+			try {
+				entries.addAll(call(shard, true, out -> {
+					out.writeByte(ShardServer.DIRECTORY);
+					out.writeUTF(prefix);
+					ShardServer.writeOptional(out, after);
+					out.writeInt(limit);
+				}, ShardServer::readEntries));
+			} catch (IOException e) {
+				Log.warn("Shard " + shards.get(shard) + " is unreachable, listing it without its users: " + e);
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * Returns the number of accounts of every other shard that can be reached.
+	 */
+	public int getOtherUserCount() {
+		int count = 0;
+		for (int shard = 0; shard < shards.size(); shard++) {
+			if (shard == self) {
+				continue;
+			}
+			try {
+				count += call(shard, true, out -> out.writeByte(ShardServer.COUNT), DataInputStream::readInt);
+			} catch (IOException e) {
+				Log.warn("Shard " + shards.get(shard) + " is unreachable, counting users without it: " + e);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Asks the shard that owns the recipient's account to credit a transfer, and returns
+	 * WireCodec.OK once it is credited, or RECIPIENT_NOT_FOUND or INVALID_REQUEST if the credit
+	 * was refused.
+	 * A transfer is credited at most once whatever number of times this is called for it,
+	 * until forget is called.
+	 */
+	public byte credit(String id, String senderPps, String recipientPps, long amount) throws IOException {
+		return call(ring.shardOf(recipientPps), true, out -> {
+			out.writeByte(ShardServer.CREDIT);
+			out.writeUTF(id);
+			out.writeUTF(senderPps);
+			out.writeUTF(recipientPps);
+			out.writeLong(amount);
+		}, DataInputStream::readByte);
+	}
+
+	/**
+	 * Tells the shard that owns the recipient's account that a credited transfer is closed and
+	 * will not be asked for again.
+	 */
+	public void forget(String recipientPps, String id) throws IOException {
+		call(ring.shardOf(recipientPps), true, out -> {
+			out.writeByte(ShardServer.FORGET);
+			out.writeUTF(id);
+		}, DataInputStream::readByte);
+	}
+
+	// Reads the status and balance of a lodgement or transfer
+	private static Outcome readOutcome(DataInputStream in) throws IOException {
+		byte status = in.readByte();
+		return new Outcome(status, in.readLong());
+	}
+
+	// Sends a request to a shard on an idle connection, or a new one, and reads the reply.
+	// If it fails on a reused connection and the request is safe to repeat, it is sent once more.
+	private <T> T call(int shard, boolean repeatable, Request request, Reply<T> reply) throws IOException {
+		ConcurrentLinkedQueue<Connection> connections = idle.get(shard);
+		Connection connection = connections.poll();
+		boolean reused = connection != null;
+		if (connection == null) {
+			connection = new Connection(shards.get(shard), timeoutMillis);
+		}
+		try {
+			request.write(connection.out);
+			connection.out.flush();
+			T result = reply.read(connection.in);
+			connections.offer(connection);
+			return result;
+		} catch (IOException e) {
+			connection.close();
+			// The other idle connections to the shard are most likely broken too
+			for (Connection stale; (stale = connections.poll()) != null;) {
+				stale.close();
+			}
+			if (reused && repeatable) {
+				return call(shard, false, request, reply);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * A connection to another shard, or from a Replica to its primary, used by one call at a time.
+	 */
+	static final class Connection {
+		private final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+
+		Connection(InetSocketAddress address, int timeoutMillis) throws IOException {
+			socket = new Socket();
+			socket.connect(address, timeoutMillis);
+			socket.setSoTimeout(timeoutMillis);
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already broken, nothing more to release
+			}
+		}
+	}
+}
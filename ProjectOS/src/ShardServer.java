@@ -0,0 +1,340 @@
+/*
+ * The `ShardServer` class answers the requests that the other shards of a sharded deployment
+ * send to this one through their ShardRouter. It listens on this shard's address in
+ * library.shards and runs every connection on a thread of its own; the other shards keep their
+ * connections open and reuse them for later requests.
+ * A request is an opcode followed by its fields, written with DataOutputStream: strings with
+ * writeUTF, amounts and balances as longs in cents. Requests act on the accounts of this shard,
+ * only a transfer to the account of a third shard goes on to that shard:
+ *   FIND_MAIL  email                                         -> user
+ *   FIND_PPS   PPS number                                    -> user
+ *   FIND_NAME  name                                          -> user
+ *   FIND_NAMES count, PPS numbers                            -> names, empty if there is no account
+ *   LOGIN      email, password                               -> status, user
+ *   REGISTER   name, PPS number, email, password, address, balance -> registered
+ *   LODGE      PPS number, amount                            -> status, balance
+ *   TRANSFER   sender PPS, recipient PPS, amount             -> status, sender's balance
+ *   PASSWORD   PPS number, new password                      -> updated
+ *   HISTORY    PPS number, offset, limit                     -> total, transactions
+ *   DIRECTORY  prefix, cursor, limit                         -> directory entries
+ *   COUNT                                                    -> number of accounts
+ *   CREDIT     transfer id, sender PPS, recipient PPS, amount -> status
+ *   FORGET     transfer id                                   -> status
+ * A user is a presence flag followed by the name, PPS number, email, address and balance; the
+ * password never leaves its shard. Statuses are those of WireCodec, with RECIPIENT_NOT_FOUND
+ * for any account this shard does not have, and BUSY for a login whose password this shard had no
+ * time to check.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+public class ShardServer implements Runnable {
+
+	static final byte FIND_MAIL = 1;
+	static final byte FIND_PPS = 2;
+	static final byte LOGIN = 3;
+	static final byte REGISTER = 4;
+	static final byte LODGE = 5;
+	static final byte TRANSFER = 6;
+	static final byte PASSWORD = 7;
+	static final byte HISTORY = 8;
+	static final byte DIRECTORY = 9;
+	static final byte COUNT = 10;
+	static final byte CREDIT = 11;
+	static final byte FORGET = 12;
+	static final byte FIND_NAME = 13;
+	static final byte FIND_NAMES = 14;
+
+	private final Library library;
+	private final ShardRouter router;
+	private ServerSocket serverSocket;
+
+	public ShardServer(Library library) {
+		this.library = library;
+		this.router = library.getShardRouter();
+	}
+
+	/**
+	 * Starts answering the other shards from a background thread, if the library is sharded.
+	 */
+	public void start() throws IOException {
+		if (router == null) {
+			return;
+		}
+		InetSocketAddress address = router.getAddress(router.getSelf());
+		serverSocket = new ServerSocket();
+		serverSocket.bind(address);
+		Log.info("Answering the other shards on " + address + " as shard " + router.getSelf());
+		Thread thread = new Thread(this, "shard-server");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Accepts the connections of the other shards.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				Socket socket = serverSocket.accept();
+				Thread peer = new Thread(() -> serve(socket), "shard-peer");
+				peer.setDaemon(true);
+				peer.start();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// Answers the requests of one connection until the other shard closes it
+	private void serve(Socket socket) {
+		try (socket) {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while (true) {
+				byte opcode;
+				try {
+					opcode = in.readByte();
+				} catch (EOFException e) {
+					// The other shard closed the connection
+					return;
+				}
+				answer(opcode, in, out);
+				out.flush();
+			}
+		} catch (IOException e) {
+			Log.warn("Connection from shard " + socket.getRemoteSocketAddress() + " failed: " + e);
+		}
+	}
+
+	// Reads the fields of one request, runs it on the library and writes the reply
+	private void answer(byte opcode, DataInputStream in, DataOutputStream out) throws IOException {
+		switch (opcode) {
+			case FIND_MAIL:
+				writeUser(out, library.findLocalUserByEmail(in.readUTF()));
+				break;
+			case FIND_PPS:
+				writeUser(out, library.findLocalUserByPps(in.readUTF()));
+				break;
+			case FIND_NAME:
+				writeUser(out, library.findLocalUserByName(in.readUTF()));
+				break;
+			case FIND_NAMES:
+				int lookups = in.readInt();
+				List<String> ppsNums = new ArrayList<>(lookups);
+				for (int i = 0; i < lookups; i++) {
+					ppsNums.add(in.readUTF());
+				}
+				for (String named : ppsNums) {
+					User user = library.findLocalUserByPps(named);
+					out.writeUTF(user == null ? "" : user.getName());
+				}
+				break;
+			case LOGIN:
+				String mail = in.readUTF();
+				String password = in.readUTF();
+				try {
+					User user = library.loginLocalUser(mail, password);
+					out.writeByte(WireCodec.OK);
+					writeUser(out, user);
+				} catch (RejectedExecutionException e) {
+					out.writeByte(WireCodec.BUSY);
+					writeUser(out, null);
+				}
+				break;
+			case REGISTER:
+				String name = in.readUTF();
+				String ppsNum = in.readUTF();
+				String registerMail = in.readUTF();
+				String pass = in.readUTF();
+				String address = in.readUTF();
+				out.writeBoolean(library.addUser(name, ppsNum, registerMail, pass, address, in.readUTF()));
+				break;
+			case LODGE:
+				lodge(library.findLocalUserByPps(in.readUTF()), in.readLong(), out);
+				break;
+			case TRANSFER:
+				User sender = library.findLocalUserByPps(in.readUTF());
+				User recipient = library.findUserByPps(in.readUTF());
+				transfer(sender, recipient, in.readLong(), out);
+				break;
+			case PASSWORD:
+				User user = library.findLocalUserByPps(in.readUTF());
+				String newPassword = in.readUTF();
+				out.writeBoolean(user != null && library.updatePassword(user, newPassword));
+				break;
+			case HISTORY:
+				User owner = library.findLocalUserByPps(in.readUTF());
+				int offset = in.readInt();
+				int limit = in.readInt();
+				writePage(out, owner == null ? new TransactionHistory.Page(new ArrayList<>(), 0)
+						: library.getTransactionPage(owner, offset, limit));
+				break;
+			case DIRECTORY:
+				String prefix = in.readUTF();
+				String after = readOptional(in);
+				writeEntries(out, library.getLocalDirectory(prefix, after, in.readInt()));
+				break;
+			case COUNT:
+				out.writeInt(library.getLocalUserCount());
+				break;
+			case CREDIT:
+				String id = in.readUTF();
+				String senderPps = in.readUTF();
+				String recipientPps = in.readUTF();
+				out.writeByte(library.creditTransfer(id, senderPps, recipientPps, in.readLong()));
+				break;
+			case FORGET:
+				library.forgetTransfer(in.readUTF());
+				out.writeByte(WireCodec.OK);
+				break;
+			default:
+				throw new StreamCorruptedException("Unknown shard request " + opcode);
+		}
+	}
+
+	// Lodges into an account of this shard and writes the status and new balance
+	private void lodge(User user, long amount, DataOutputStream out) throws IOException {
+		if (user == null) {
+			out.writeByte(WireCodec.RECIPIENT_NOT_FOUND);
+			out.writeLong(0);
+			return;
+		}
+		byte status = WireCodec.OK;
+		try {
+			library.lodgeMoney(user, amount);
+		} catch (ArithmeticException | IllegalArgumentException e) {
+			status = WireCodec.INVALID_REQUEST;
+		}
+		out.writeByte(status);
+		out.writeLong(user.getBalance());
+	}
+
+	// Transfers from an account of this shard and writes the status and the sender's balance
+	private void transfer(User sender, User recipient, long amount, DataOutputStream out) throws IOException {
+		if (sender == null || recipient == null) {
+			out.writeByte(WireCodec.RECIPIENT_NOT_FOUND);
+			out.writeLong(sender == null ? 0 : sender.getBalance());
+			return;
+		}
+		byte status;
+		try {
+			status = library.transferMoney(sender, recipient, amount);
+		} catch (IllegalArgumentException e) {
+			// The amount is not positive
+			status = WireCodec.INVALID_REQUEST;
+		}
+		out.writeByte(status);
+		out.writeLong(sender.getBalance());
+	}
+
+	// Writes a user without the password, or only an absent flag for null
+	private static void writeUser(DataOutputStream out, User user) throws IOException {
+		out.writeBoolean(user != null);
+		if (user == null) {
+			return;
+		}
+		out.writeUTF(user.getName());
+		out.writeUTF(user.getPpsNum());
+		out.writeUTF(user.getMail());
+		out.writeUTF(user.getAddress().toString());
+		out.writeLong(user.getBalance());
+	}
+
+	/**
+	 * Reads a user written by another shard. The User only stands for the account, which
+	 * stays on that shard; it has no password, and its balance is the one sent.
+	 */
+	static User readUser(DataInputStream in) throws IOException {
+		if (!in.readBoolean()) {
+			return null;
+		}
+		String name = in.readUTF();
+		String ppsNum = in.readUTF();
+		String mail = in.readUTF();
+		String address = in.readUTF();
+		return new User(name, ppsNum, mail, "", address, in.readLong());
+	}
+
+	// Writes a page of transactions
+	private static void writePage(DataOutputStream out, TransactionHistory.Page page) throws IOException {
+		out.writeInt(page.total());
+		out.writeInt(page.transactions().size());
+		for (Transaction transaction : page.transactions()) {
+			out.writeLong(transaction.id());
+			out.writeLong(transaction.timestamp());
+			out.writeByte(transaction.type().ordinal());
+			out.writeUTF(transaction.counterparty());
+			out.writeLong(transaction.amount());
+			out.writeLong(transaction.balance());
+		}
+	}
+
+	/**
+	 * Reads a page of transactions written by another shard.
+	 */
+	static TransactionHistory.Page readPage(DataInputStream in) throws IOException {
+		int total = in.readInt();
+		int count = in.readInt();
+		List<Transaction> transactions = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			long id = in.readLong();
+			long timestamp = in.readLong();
+			Transaction.Type type = Transaction.Type.values()[in.readByte()];
+			String counterparty = in.readUTF();
+			long amount = in.readLong();
+			transactions.add(new Transaction(id, timestamp, type, counterparty, amount, in.readLong()));
+		}
+		return new TransactionHistory.Page(transactions, total);
+	}
+
+	// Writes directory entries
+	private static void writeEntries(DataOutputStream out, List<UserDirectory.Entry> entries) throws IOException {
+		out.writeInt(entries.size());
+		for (UserDirectory.Entry entry : entries) {
+			out.writeUTF(entry.key());
+			out.writeUTF(entry.row());
+		}
+	}
+
+	/**
+	 * Reads directory entries written by another shard.
+	 */
+	static List<UserDirectory.Entry> readEntries(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		List<UserDirectory.Entry> entries = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			String key = in.readUTF();
+			entries.add(new UserDirectory.Entry(key, in.readUTF()));
+		}
+		return entries;
+	}
+
+	/**
+	 * Writes a string that may be null.
+	 */
+	static void writeOptional(DataOutputStream out, String value) throws IOException {
+		out.writeBoolean(value != null);
+		if (value != null) {
+			out.writeUTF(value);
+		}
+	}
+
+	// Reads a string written by writeOptional
+	private static String readOptional(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+}
@@ -0,0 +1,213 @@
+/*
+ * The `StartupLoader` class does the work of a Library's startup on a fork-join pool of
+ * -Dlibrary.loadThreads threads (default one per processor), and logs how long each phase took.
+ * The user file is split into chunks of whole lines, which the pool parses in parallel. The
+ * chunks are added to the UserStore in the order of the file, each as soon as it is parsed, so
+ * the indexes are built while the later chunks are still being parsed and the users keep their
+ * registration order; a user whose PPS number or email address is already taken is dropped, as
+ * when the file was read one line at a time. The sorted UserDirectory, which takes most of the
+ * time, is filled by the pool too, a chunk at a time, while the next chunks are added.
+ * With -Dlibrary.warmHistory=true the newest transactions of the accounts are loaded into the
+ * HistoryCache, several transaction files at a time, until it is full, so the first view of a
+ * history does not read its file. This runs before the server accepts connections, while no
+ * transaction is written.
+ */
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+public class StartupLoader {
+
+	// Bytes of the user file parsed by one task
+	private static final int CHUNK_BYTES = 1 << 20;
+	// Accounts whose history is loaded by one task
+	private static final int WARM_BATCH = 256;
+
+	/**
+	 * Something the startup does, which may fail with an IOException.
+	 */
+	public interface Phase {
+		void run() throws IOException;
+	}
+
+	/**
+	 * The users parsed from one chunk of the user file, and the exception that stopped the
+	 * parsing of the chunk, null if it got to the end.
+	 */
+	private record Parsed(List<User> users, RuntimeException error) {
+	}
+
+	private final boolean warmHistory;
+	private final ForkJoinPool pool;
+	// Time the loader was created, when the startup began
+	private final long startNanos = System.nanoTime();
+
+	public StartupLoader(int threads, boolean warmHistory) {
+		this.warmHistory = warmHistory;
+		AtomicInteger count = new AtomicInteger();
+		pool = new ForkJoinPool(threads, forkJoinPool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+			thread.setName("startup-loader-" + count.getAndIncrement());
+			return thread;
+		}, null, false);
+	}
+
+	/**
+	 * Creates the loader described by the library.loadThreads and library.warmHistory properties.
+	 */
+	public static StartupLoader fromProperties() {
+		return new StartupLoader(Integer.getInteger("library.loadThreads", Runtime.getRuntime().availableProcessors()),
+				Boolean.getBoolean("library.warmHistory"));
+	}
+
+	/**
+	 * Runs a phase of the startup and logs the time it took.
+	 */
+	public void time(String name, Phase phase) throws IOException {
+		long start = System.nanoTime();
+		try {
+			phase.run();
+		} finally {
+			Log.info("Startup phase " + name + " took " + millisSince(start) + " ms");
+		}
+	}
+
+	/**
+	 * Parses the lines of a file on the pool and adds the users they hold to a store, in the
+	 * order of the file, skipping the lines parse returns null for and the users keep rejects.
+	 * Returns the number of users added. If parse throws, the users of the lines before are
+	 * still added and the exception is rethrown. Throws NoSuchFileException if there is no file.
+	 */
+	public int loadUsers(Path file, Function<String, User> parse, Predicate<User> keep, UserStore users)
+			throws IOException {
+		byte[] bytes = Files.readAllBytes(file);
+		List<ForkJoinTask<Parsed>> chunks = new ArrayList<>();
+		for (int start = 0; start < bytes.length;) {
+			// Extend the chunk to the end of its last line
+			int end = Math.min(bytes.length, start + CHUNK_BYTES);
+			while (end < bytes.length && bytes[end - 1] != '\n') {
+				end++;
+			}
+			int from = start;
+			int to = end;
+			chunks.add(pool.submit(() -> parse(new String(bytes, from, to - from, StandardCharsets.UTF_8), parse, keep)));
+			start = end;
+		}
+		int added = 0;
+		List<ForkJoinTask<?>> listings = new ArrayList<>();
+		RuntimeException error = null;
+		for (ForkJoinTask<Parsed> chunk : chunks) {
+			Parsed parsed = chunk.join();
+			List<User> unlisted = new ArrayList<>(parsed.users().size());
+			for (User user : parsed.users()) {
+				if (users.addUnlisted(user)) {
+					unlisted.add(user);
+				}
+			}
+			added += unlisted.size();
+			listings.add(pool.submit(() -> {
+				for (User user : unlisted) {
+					users.directory().add(user);
+				}
+			}));
+			if (parsed.error() != null) {
+				error = parsed.error();
+				break;
+			}
+		}
+		for (ForkJoinTask<Parsed> chunk : chunks) {
+			chunk.cancel(false);
+		}
+		for (ForkJoinTask<?> listing : listings) {
+			listing.join();
+		}
+		if (error != null) {
+			throw error;
+		}
+		return added;
+	}
+
+	/**
+	 * Loads the newest transactions of the given users into the cache on the pool, if
+	 * library.warmHistory is set, until the cache is full, and logs the time it took. Must only
+	 * be called while no transactions are written.
+	 */
+	public void warmHistory(Collection<User> users, HistoryCache cache, TransactionHistory history) {
+		if (!warmHistory) {
+			return;
+		}
+		long start = System.nanoTime();
+		AtomicBoolean full = new AtomicBoolean();
+		List<ForkJoinTask<?>> batches = new ArrayList<>();
+		Iterator<User> iterator = users.iterator();
+		while (iterator.hasNext()) {
+			List<String> files = new ArrayList<>(WARM_BATCH);
+			while (iterator.hasNext() && files.size() < WARM_BATCH) {
+				files.add(TransactionHistory.fileName(iterator.next().getPpsNum()));
+			}
+			batches.add(pool.submit(() -> {
+				for (String fileName : files) {
+					if (full.get()) {
+						return;
+					}
+					try {
+						if (!cache.warm(fileName, history)) {
+							full.set(true);
+						}
+					} catch (IOException e) {
+						Log.warn("Could not load the history in " + fileName + ": " + e);
+					}
+				}
+			}));
+		}
+		for (ForkJoinTask<?> batch : batches) {
+			batch.join();
+		}
+		HistoryCache.Stats stats = cache.stats();
+		Log.info("Loaded the history of " + stats.entries() + " accounts, " + stats.bytes() + " bytes, in "
+				+ millisSince(start) + " ms");
+	}
+
+	/**
+	 * Stops the pool and logs the time since the startup began.
+	 */
+	public void finish() {
+		pool.shutdown();
+		Log.info("Library started in " + millisSince(startNanos) + " ms");
+	}
+
+	// Parses the lines of one chunk of the user file
+	private static Parsed parse(String text, Function<String, User> parse, Predicate<User> keep) {
+		List<User> parsed = new ArrayList<>();
+		Iterator<String> lines = text.lines().iterator();
+		try {
+			while (lines.hasNext()) {
+				User user = parse.apply(lines.next());
+				if (user != null && keep.test(user)) {
+					parsed.add(user);
+				}
+			}
+		} catch (RuntimeException e) {
+			return new Parsed(parsed, e);
+		}
+		return new Parsed(parsed, null);
+	}
+
+	private static long millisSince(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - nanos);
+	}
+}
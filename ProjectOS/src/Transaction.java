@@ -0,0 +1,80 @@
+/*
+ * The `Transaction` record is one entry of an account's history: its id, when it happened, whether
+ * money was sent or received, the PPS number of the other account, the amount and the balance of
+ * the account afterwards, both in cents. The text shown to a client is only made from it by the
+ * server sessions, see ServerThread.describe.
+ * In a transaction file every transaction is a fixed-width record of 40 bytes:
+ *   offset  0  timestamp in milliseconds since the epoch (8 bytes)
+ *   offset  8  amount in cents (8 bytes)
+ *   offset 16  balance afterwards in cents (8 bytes)
+ *   offset 24  type, 1 for SENT and 2 for RECEIVED (1 byte)
+ *   offset 25  PPS number of the other account (1 length byte and up to 14 bytes of UTF-8)
+ * The id is not stored, it is the position of the record in the file counting from 1, so the
+ * n-th transaction of an account is found without searching.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public record Transaction(long id, long timestamp, Type type, String counterparty, long amount, long balance) {
+
+	public enum Type {
+		SENT, RECEIVED
+	}
+
+	// Timestamp or balance of a transaction converted from an older text file, which had neither
+	public static final long UNKNOWN = Long.MIN_VALUE;
+
+	static final int RECORD_SIZE = 40;
+	private static final int TIMESTAMP = 0;
+	private static final int AMOUNT = 8;
+	private static final int BALANCE = 16;
+	private static final int TYPE = 24;
+	private static final int COUNTERPARTY = 25, COUNTERPARTY_WIDTH = 15;
+
+	/**
+	 * Checks whether a PPS number fits in the counterparty field of a record.
+	 */
+	public static boolean fitsAccount(String ppsNum) {
+		return ppsNum.getBytes(StandardCharsets.UTF_8).length < COUNTERPARTY_WIDTH;
+	}
+
+	/**
+	 * Returns this transaction with the given id, once its position in the file is known.
+	 */
+	public Transaction withId(long newId) {
+		return new Transaction(newId, timestamp, type, counterparty, amount, balance);
+	}
+
+	/**
+	 * Writes this transaction as a record at the position of the buffer and advances it.
+	 */
+	public void encode(ByteBuffer buffer) {
+		int offset = buffer.position();
+		byte[] account = counterparty.getBytes(StandardCharsets.UTF_8);
+		buffer.putLong(offset + TIMESTAMP, timestamp)
+				.putLong(offset + AMOUNT, amount)
+				.putLong(offset + BALANCE, balance)
+				.put(offset + TYPE, (byte) (type.ordinal() + 1))
+				.put(offset + COUNTERPARTY, (byte) account.length)
+				.put(offset + COUNTERPARTY + 1, account);
+		// Clear the rest of the field, the buffer may be reused
+		for (int i = offset + COUNTERPARTY + 1 + account.length; i < offset + RECORD_SIZE; i++) {
+			buffer.put(i, (byte) 0);
+		}
+		buffer.position(offset + RECORD_SIZE);
+	}
+
+	/**
+	 * Reads the record at the given offset of a buffer as the transaction with the given id.
+	 */
+	public static Transaction decode(ByteBuffer buffer, int offset, long id) {
+		int length = buffer.get(offset + COUNTERPARTY) & 0xFF;
+		byte[] account = new byte[length];
+		buffer.get(offset + COUNTERPARTY + 1, account);
+		Type type = buffer.get(offset + TYPE) == 1 ? Type.SENT : Type.RECEIVED;
+		return new Transaction(id, buffer.getLong(offset + TIMESTAMP), type,
+				new String(account, StandardCharsets.UTF_8), buffer.getLong(offset + AMOUNT),
+				buffer.getLong(offset + BALANCE));
+	}
+}
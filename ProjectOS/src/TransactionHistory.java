@@ -0,0 +1,267 @@
+/*
+ * The `TransactionHistory` class reads the transaction files, each holding the history of one
+ * account as fixed-width Transaction records in the order they happened. Transaction n is at
+ * offset (n - 1) * 40, so a page of the newest transactions is one positioned read whatever the
+ * length of the history, and a range of dates is found by a binary search on the timestamps.
+ * Older versions kept the history as text lines in user_<PPS>.txt. Such a file is converted the
+ * first time the account's history is read or written: each line becomes a record without a
+ * timestamp or balance, the other account is found by its name, and the text file is kept as
+ * user_<PPS>.txt.bak; the line index user_<PPS>.idx of an older version is deleted too, and
+ * LedgerMigration deletes those of accounts that are not used again. A read-only history, that
+ * of a read replica, leaves the files to the server that writes them and reads an old text file
+ * that is not converted yet every time.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class TransactionHistory {
+
+	private static final String FILE_PREFIX = "user_";
+	private static final String FILE_SUFFIX = ".dat";
+	private static final String LEGACY_SUFFIX = ".txt";
+	// Line index kept next to the old text files by the previous version
+	private static final String LEGACY_INDEX_SUFFIX = ".idx";
+	// Records read at a time when reading a whole history or a range of it
+	private static final int READ_RECORDS = 1024;
+	// One transaction of an old text file. Some lines hold several because a line terminator
+	// was missing, so a transaction ends where the next one starts.
+	private static final Pattern LEGACY_TRANSACTION = Pattern.compile(
+			"(Sent|Received) \\$([0-9,]+(?:\\.[0-9]+)?) (?:to|from) (.*?)(?=(?:Sent|Received) \\$|$)");
+
+	// Finds the PPS number of a user by name when converting old text files, null if unknown
+	private final Function<String, String> ppsByName;
+	// Transaction files already checked for an old text file to convert
+	private final Set<String> checkedFiles = ConcurrentHashMap.newKeySet();
+	private final ReentrantLock convertLock = new ReentrantLock();
+	// Set for a read replica, which never writes the files
+	private volatile boolean readOnly;
+
+	/**
+	 * One page of an account's transactions, newest first, and the number of transactions in total.
+	 */
+	public record Page(List<Transaction> transactions, int total) {
+	}
+
+	public TransactionHistory(Function<String, String> ppsByName) {
+		this.ppsByName = ppsByName;
+	}
+
+	/**
+	 * Stops converting old text files, which are read as they are instead.
+	 */
+	public void setReadOnly() {
+		readOnly = true;
+	}
+
+	/**
+	 * Returns the name of the transaction file of the user with the given PPS number.
+	 */
+	public static String fileName(String ppsNum) {
+		return FILE_PREFIX + ppsNum + FILE_SUFFIX;
+	}
+
+	/**
+	 * Returns up to limit transactions of a transaction file, newest first, skipping the
+	 * offset newest ones. A missing file has no transactions.
+	 */
+	public Page readPage(String fileName, int offset, int limit) throws IOException {
+		convertLegacy(fileName);
+		if (!new File(fileName).exists()) {
+			List<Transaction> unconverted = readUnconverted(fileName);
+			if (unconverted != null) {
+				// Newest first, like the records of a transaction file
+				List<Transaction> page = new ArrayList<>();
+				for (int i = unconverted.size() - 1 - Math.max(0, offset); i >= 0 && page.size() < limit; i--) {
+					page.add(unconverted.get(i));
+				}
+				return new Page(page, unconverted.size());
+			}
+		}
+		if (!new File(fileName).exists()) {
+			return new Page(Collections.emptyList(), 0);
+		}
+		try (FileChannel file = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			// A record still being written is not counted
+			int total = (int) (file.size() / Transaction.RECORD_SIZE);
+			int last = total - 1 - Math.max(0, offset);
+			int first = Math.max(0, last - limit + 1);
+			if (limit <= 0 || last < 0) {
+				return new Page(Collections.emptyList(), total);
+			}
+			List<Transaction> page = read(file, first, last - first + 1);
+			Collections.reverse(page);
+			return new Page(page, total);
+		}
+	}
+
+	/**
+	 * Returns every transaction of a transaction file, oldest first.
+	 */
+	public List<Transaction> readAll(String fileName) throws IOException {
+		return readBetween(fileName, Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Returns up to limit transactions of a transaction file with a timestamp from fromMillis to
+	 * toMillis inclusive, oldest first. The records are in the order they were written, which is
+	 * the order of their timestamps unless the clock was set back.
+	 */
+	public List<Transaction> readBetween(String fileName, long fromMillis, long toMillis, int limit) throws IOException {
+		convertLegacy(fileName);
+		List<Transaction> transactions = new ArrayList<>();
+		if (!new File(fileName).exists()) {
+			List<Transaction> unconverted = readUnconverted(fileName);
+			if (unconverted != null) {
+				for (Transaction transaction : unconverted) {
+					if (transaction.timestamp() >= fromMillis && transaction.timestamp() <= toMillis
+							&& transactions.size() < limit) {
+						transactions.add(transaction);
+					}
+				}
+				return transactions;
+			}
+		}
+		if (!new File(fileName).exists()) {
+			return transactions;
+		}
+		try (FileChannel file = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			int total = (int) (file.size() / Transaction.RECORD_SIZE);
+			// Binary search for the first record at or after fromMillis
+			int low = 0;
+			int high = total;
+			while (low < high) {
+				int middle = (low + high) >>> 1;
+				if (readTimestamp(file, middle) < fromMillis) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+			}
+			for (int first = low; first < total && transactions.size() < limit; first += READ_RECORDS) {
+				for (Transaction transaction : read(file, first, Math.min(READ_RECORDS, total - first))) {
+					if (transaction.timestamp() > toMillis || transactions.size() == limit) {
+						return transactions;
+					}
+					transactions.add(transaction);
+				}
+			}
+		}
+		return transactions;
+	}
+
+	/**
+	 * Converts the old text file of a transaction file, if there is one and it has not been
+	 * converted yet. Called before the transaction file is read or written.
+	 */
+	public void convertLegacy(String fileName) throws IOException {
+		if (readOnly || checkedFiles.contains(fileName)) {
+			return;
+		}
+		convertLock.lock();
+		try {
+			String base = fileName.substring(0, fileName.length() - FILE_SUFFIX.length());
+			Path legacy = Paths.get(base + LEGACY_SUFFIX);
+			if (Files.exists(legacy) && !Files.exists(Paths.get(fileName))) {
+				List<Transaction> transactions = readLegacy(legacy);
+				ByteBuffer records = ByteBuffer.allocate(transactions.size() * Transaction.RECORD_SIZE);
+				for (Transaction transaction : transactions) {
+					transaction.encode(records);
+				}
+				// Written to a temporary file first, so an interrupted conversion is done again
+				Path temp = Paths.get(fileName + ".tmp");
+				Files.write(temp, records.array());
+				Files.move(temp, Paths.get(fileName), StandardCopyOption.ATOMIC_MOVE);
+				Files.move(legacy, Paths.get(legacy + ".bak"), StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.deleteIfExists(Paths.get(base + LEGACY_INDEX_SUFFIX));
+			checkedFiles.add(fileName);
+		} finally {
+			convertLock.unlock();
+		}
+	}
+
+	// Returns the transactions of the old text file of a transaction file that is not converted
+	// yet, with the ids they will have, or null if there is none or the history is not read-only
+	private List<Transaction> readUnconverted(String fileName) throws IOException {
+		if (!readOnly) {
+			return null;
+		}
+		String base = fileName.substring(0, fileName.length() - FILE_SUFFIX.length());
+		List<Transaction> transactions;
+		try {
+			transactions = readLegacy(Paths.get(base + LEGACY_SUFFIX));
+		} catch (NoSuchFileException e) {
+			// There is none, or the server has just converted it
+			return null;
+		}
+		for (int i = 0; i < transactions.size(); i++) {
+			transactions.set(i, transactions.get(i).withId(i + 1));
+		}
+		return transactions;
+	}
+
+	// Returns the transactions of an old text file, oldest first
+	private List<Transaction> readLegacy(Path legacy) throws IOException {
+		List<Transaction> transactions = new ArrayList<>();
+		for (String line : Files.readAllLines(legacy, StandardCharsets.UTF_8)) {
+			parseLegacy(line, transactions);
+		}
+		return transactions;
+	}
+
+	// Adds the transactions of one line of an old text file, such as "Sent $1,000.00 to JOHN SMITH"
+	private void parseLegacy(String line, List<Transaction> transactions) {
+		Matcher matcher = LEGACY_TRANSACTION.matcher(line.trim());
+		while (matcher.find()) {
+			Transaction.Type type = matcher.group(1).equals("Sent") ? Transaction.Type.SENT : Transaction.Type.RECEIVED;
+			long amount = Money.parseLegacy(matcher.group(2).replace(",", ""));
+			String ppsNum = ppsByName.apply(matcher.group(3).trim());
+			transactions.add(new Transaction(0, Transaction.UNKNOWN, type, ppsNum == null ? "" : ppsNum,
+					amount, Transaction.UNKNOWN));
+		}
+	}
+
+	// Reads count records starting with the given one
+	private static List<Transaction> read(FileChannel file, int first, int count) throws IOException {
+		ByteBuffer records = ByteBuffer.allocate(count * Transaction.RECORD_SIZE);
+		long position = (long) first * Transaction.RECORD_SIZE;
+		while (records.hasRemaining() && file.read(records, position + records.position()) >= 0) {
+			// Keep reading until every record is in
+		}
+		List<Transaction> transactions = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			// Ids count from 1
+			transactions.add(Transaction.decode(records, i * Transaction.RECORD_SIZE, first + i + 1));
+		}
+		return transactions;
+	}
+
+	// Reads the timestamp of a record
+	private static long readTimestamp(FileChannel file, int record) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		long position = (long) record * Transaction.RECORD_SIZE;
+		while (buffer.hasRemaining() && file.read(buffer, position + buffer.position()) >= 0) {
+			// Keep reading until the 8 bytes are in
+		}
+		return buffer.getLong(0);
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * The `TransactionLedger` class appends new transactions to the per-user transaction files.
+ * Each user remembers how many of their transactions are already in their file, so only the
+ * new entries are written. Threads queue their new entries, and the CommitWriter thread writes
+ * the entries queued by every thread since its last flush with one write and one fsync per file,
+ * before they count as flushed.
+ * The entries are written as the fixed-width records of Transaction, and each gets the id of its
+ * position in the file. Once written they are added to the HistoryCache, so they can be paged
+ * through straight away, and a primary with read replicas publishes them to its ChangeStream.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class TransactionLedger {
+
+	// New entries waiting to be written, by file name, guarded by this
+	private Map<String, List<Transaction>> pending = new LinkedHashMap<>();
+	// Sequence number of the last queued append, guarded by this
+	private long appendedSeq;
+	// Sequence number of the last append that is written
+	private volatile long flushedSeq;
+	// Only one thread writes the files at a time
+	private final ReentrantLock flushLock = new ReentrantLock();
+	// Files already checked to end with a whole record
+	private final Set<String> checkedFiles = ConcurrentHashMap.newKeySet();
+	// Reads the transaction files, and converts old text files before they are appended to
+	private final TransactionHistory history;
+	// Recent transactions of the accounts whose history was viewed
+	private final HistoryCache cache;
+	// Stream the written entries are published to, null when the library has no replicas
+	private volatile ChangeStream changes;
+
+	public TransactionLedger(TransactionHistory history, HistoryCache cache) {
+		this.history = history;
+		this.cache = cache;
+	}
+
+	/**
+	 * Queues the transactions of a user that are not yet in their file and returns a
+	 * sequence number to flush. The caller holds the user's lock, so the entries of one
+	 * user are queued in order and each entry is queued exactly once.
+	 */
+	public long append(User user) {
+		int persisted = user.getPersistedTransactions();
+		// Only the entries after the persisted offset are new
+		List<Transaction> transactions = user.getTransactionsSince(persisted);
+		synchronized (this) {
+			if (!transactions.isEmpty()) {
+				pending.computeIfAbsent(TransactionHistory.fileName(user.getPpsNum()), name -> new ArrayList<>())
+						.addAll(transactions);
+				user.setPersistedTransactions(persisted + transactions.size());
+			}
+			return ++appendedSeq;
+		}
+	}
+
+	/**
+	 * Publishes every entry to the given stream once it has been written.
+	 */
+	public void publishTo(ChangeStream changes) {
+		this.changes = changes;
+	}
+
+	/**
+	 * Returns the sequence number of the last queued append.
+	 */
+	public synchronized long getAppendedSeq() {
+		return appendedSeq;
+	}
+
+	/**
+	 * Returns the sequence number of the last append that has been written and forced to disk.
+	 */
+	public long getFlushedSeq() {
+		return flushedSeq;
+	}
+
+	/**
+	 * Writes every queued entry, with one write and fsync per file, and returns the number written.
+	 * If the write of a file fails its entries are queued again, ahead of those queued meanwhile,
+	 * and nothing counts as flushed until a later flush has written them; the first exception is
+	 * thrown once the other files have been written.
+	 */
+	public int flush() throws IOException {
+		flushLock.lock();
+		try {
+			Map<String, List<Transaction>> batch;
+			long batchSeq;
+			// Take the queued entries so other threads can keep appending while we write
+			synchronized (this) {
+				batch = pending;
+				pending = new LinkedHashMap<>();
+				batchSeq = appendedSeq;
+			}
+			int written = 0;
+			Map<String, List<Transaction>> unwritten = new LinkedHashMap<>();
+			IOException failure = null;
+			// One write and fsync per file, whatever the number of threads that queued entries
+			cache.lockWrites();
+			try {
+				for (Map.Entry<String, List<Transaction>> entry : batch.entrySet()) {
+					List<Transaction> numbered;
+					try {
+						numbered = write(entry.getKey(), entry.getValue());
+					} catch (IOException e) {
+						unwritten.put(entry.getKey(), entry.getValue());
+						if (failure == null) {
+							failure = e;
+						}
+						continue;
+					}
+					cache.append(entry.getKey(), numbered);
+					publish(entry.getKey(), numbered);
+					written += entry.getValue().size();
+				}
+			} finally {
+				cache.unlockWrites();
+			}
+			if (failure != null) {
+				requeue(unwritten);
+				throw failure;
+			}
+			flushedSeq = batchSeq;
+			return written;
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	// Queues the entries of a failed flush again, ahead of the entries queued since it began
+	private synchronized void requeue(Map<String, List<Transaction>> unwritten) {
+		for (Map.Entry<String, List<Transaction>> entry : pending.entrySet()) {
+			unwritten.computeIfAbsent(entry.getKey(), name -> new ArrayList<>()).addAll(entry.getValue());
+		}
+		pending = unwritten;
+	}
+
+	// Publishes the transactions just written to a transaction file, if there are replicas
+	private void publish(String fileName, List<Transaction> written) {
+		if (changes == null) {
+			return;
+		}
+		List<String> records = new ArrayList<>(written.size());
+		for (Transaction transaction : written) {
+			records.add(ChangeStream.transactionRecord(fileName, transaction));
+		}
+		changes.publish(records);
+	}
+
+	// Appends the transactions to a transaction file, forces them to disk and returns them with
+	// their ids, or removes what it wrote of them if it fails, the caller holds flushLock
+	private List<Transaction> write(String fileName, List<Transaction> transactions) throws IOException {
+		history.convertLegacy(fileName);
+		try (FileChannel file = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE)) {
+			long size = file.size();
+			// A record cut short by a crash is dropped, so the new records start on a record boundary
+			if (checkedFiles.add(fileName) && size % Transaction.RECORD_SIZE != 0) {
+				size -= size % Transaction.RECORD_SIZE;
+				file.truncate(size);
+			}
+			long nextId = size / Transaction.RECORD_SIZE + 1;
+			List<Transaction> written = new ArrayList<>(transactions.size());
+			ByteBuffer records = ByteBuffer.allocate(transactions.size() * Transaction.RECORD_SIZE);
+			for (Transaction transaction : transactions) {
+				Transaction numbered = transaction.withId(nextId++);
+				numbered.encode(records);
+				written.add(numbered);
+			}
+			records.flip();
+			try {
+				while (records.hasRemaining()) {
+					file.write(records, size + records.position());
+				}
+				file.force(false);
+			} catch (IOException e) {
+				try {
+					file.truncate(size);
+				} catch (IOException truncateFailure) {
+					// Check the file again before the retry, which drops a torn record
+					checkedFiles.remove(fileName);
+					e.addSuppressed(truncateFailure);
+				}
+				throw e;
+			}
+			return written;
+		}
+	}
+}
@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * The `TransferStress` class checks that concurrent transfers neither create nor lose money and
+ * never deadlock, by running many threads that transfer between accounts of one Library:
+ *   spread    every thread transfers random amounts between random accounts, so most transfers
+ *             touch unrelated accounts and run in parallel
+ *   opposed   half of the threads transfer from the first account to the second and the other
+ *             half back, which deadlocks unless the account locks are taken in a fixed order
+ * After each run the total of the balances must equal the money the accounts started with, no
+ * balance may be negative, and every account's balance must be its opening balance plus what its
+ * history shows it received and minus what it sent. A run whose threads have not finished some
+ * seconds after its time is up is reported as deadlocked.
+ * The parameters are system properties:
+ *   stress.threads   number of threads (default 8)
+ *   stress.accounts  number of accounts of the spread run (default 50)
+ *   stress.millis    time of each run in milliseconds (default 2000); a run also stops after
+ *                    1,000,000 transfers, as every transfer is kept in memory
+ * It writes no files, for example:
+ *   java -Dstress.threads=16 TransferStress
+ * It prints one line per run and exits with status 1 if any check failed.
+ */
+public class TransferStress {
+
+	// Balance every account starts with, in cents
+	private static final long OPENING_BALANCE = 1_000_00;
+	// Time the threads of a run get to finish once its time is up
+	private static final long DEADLOCK_MILLIS = 10_000;
+	// Upper bound on the transfers of a run
+	private static final long MAX_TRANSFERS = 1_000_000;
+
+	public static void main(String[] args) throws Exception {
+		int threads = Integer.getInteger("stress.threads", 8);
+		int accounts = Integer.getInteger("stress.accounts", 50);
+		long millis = Long.getLong("stress.millis", 2000);
+
+		System.out.println("run,threads,accounts,transfers,result");
+		boolean passed = run("spread", threads, accounts, millis, (random, thread, users) -> {
+			User sender = users.get(random.nextInt(users.size()));
+			User recipient = users.get(random.nextInt(users.size()));
+			return new User[] { sender, recipient };
+		});
+		passed &= run("opposed", threads, 2, millis, (random, thread, users) -> thread % 2 == 0
+				? new User[] { users.get(0), users.get(1) }
+				: new User[] { users.get(1), users.get(0) });
+		System.exit(passed ? 0 : 1);
+	}
+
+	/**
+	 * Chooses the sender and recipient of the next transfer of a thread.
+	 */
+	private interface Pair {
+		User[] choose(Random random, int thread, List<User> users);
+	}
+
+	// Runs transfers between the accounts of a new library from every thread, and checks them
+	private static boolean run(String name, int threads, int accounts, long millis, Pair pair)
+			throws InterruptedException {
+		Library library = new Library(new UserStore());
+		List<User> users = new ArrayList<>(accounts);
+		for (int i = 0; i < accounts; i++) {
+			String ppsNum = String.format("%07dTS", i);
+			library.addUser("Transfer " + i, ppsNum, "transfer" + i + "@stress.com", "pass", "Stress Road",
+					Money.format(OPENING_BALANCE));
+			users.add(library.findUserByPps(ppsNum));
+		}
+
+		LongAdder transfers = new LongAdder();
+		AtomicLong started = new AtomicLong();
+		CountDownLatch start = new CountDownLatch(1);
+		long end = System.nanoTime() + millis * 1_000_000;
+		List<Thread> workers = new ArrayList<>(threads);
+		for (int t = 0; t < threads; t++) {
+			int thread = t;
+			Random random = new Random(t);
+			Thread worker = new Thread(() -> {
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				while (System.nanoTime() < end && started.incrementAndGet() <= MAX_TRANSFERS) {
+					User[] chosen = pair.choose(random, thread, users);
+					// Up to a tenth of the opening balance, so some transfers are refused
+					if (library.transferMoney(chosen[0], chosen[1], 1 + random.nextInt((int) (OPENING_BALANCE / 10))) == WireCodec.OK) {
+						transfers.increment();
+					}
+				}
+			}, "transfer-stress-" + t);
+			worker.setDaemon(true);
+			worker.start();
+			workers.add(worker);
+		}
+		start.countDown();
+		long deadline = System.currentTimeMillis() + millis + DEADLOCK_MILLIS;
+		int stuck = 0;
+		for (Thread worker : workers) {
+			worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+			if (worker.isAlive()) {
+				stuck++;
+			}
+		}
+		if (stuck > 0) {
+			return report(name, threads, accounts, transfers.sum(), false, stuck + " threads deadlocked");
+		}
+
+		long total = 0;
+		String failure = null;
+		for (User user : users) {
+			long balance = user.getBalance();
+			total += balance;
+			long expected = OPENING_BALANCE;
+			for (Transaction transaction : user.getTransactions()) {
+				expected += transaction.type() == Transaction.Type.SENT ? -transaction.amount() : transaction.amount();
+			}
+			if (balance < 0) {
+				failure = user.getPpsNum() + " has a negative balance";
+			} else if (balance != expected) {
+				failure = user.getPpsNum() + " has a balance of " + balance + ", its history adds up to " + expected;
+			}
+		}
+		if (total != accounts * OPENING_BALANCE) {
+			failure = "total " + total + ", expected " + accounts * OPENING_BALANCE;
+		}
+		return report(name, threads, accounts, transfers.sum(), failure == null, failure);
+	}
+
+	// Prints the result of a run and returns whether it passed
+	private static boolean report(String name, int threads, int accounts, long transfers, boolean passed, String failure) {
+		System.out.println(name + "," + threads + "," + accounts + "," + transfers + ","
+				+ (passed ? "PASS" : "FAIL: " + failure));
+		return passed;
+	}
+}
@@ -1,41 +1,64 @@
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class User {
 	
+	// Volatile and compare-and-set access to the balance in its chunk of the balance column
+	private static final VarHandle BALANCE = MethodHandles.arrayElementVarHandle(long[].class);
+
+	// Returned by withdraw when the balance does not cover the amount
+	public static final long INSUFFICIENT_FUNDS = Long.MIN_VALUE;
+
 	// Declare private instance variables
 	private String name;
 	private String ppsNum;
 	private String mail;
-	private String pass;
+	// Stored password, a Credentials hash or the plain password of files written by older versions
+	private volatile String pass;
 	private String address;
-	private float balance;
-	private List<String> transactions;
+	// Chunk of the balance column holding this account's balance in cents, and its index in it.
+	// Until the user is added to a UserStore the balance is held in an array of its own.
+	private long[] balances;
+	private int balanceIndex;
+	// Created with the first transaction, most accounts in memory have none
+	private List<Transaction> transactions;
+	// Number of transactions already written to the user's transaction file
+	private int persistedTransactions;
+	// Guards the transactions of this account and orders its journal records; the balance is
+	// changed by compare-and-set and needs no lock
+	private final ReentrantLock lock = new ReentrantLock();
+	// The part of toString() before the balance, built the first time the user is listed
+	private String row;
+	// Record of this account in the account table, -1 when it has none
+	private int slot = -1;
 	
 	// Constructor to initialize the User object with given parameters
-	public User(String name, String ppsNum, String mail, String pass, String address, float balance) {
+	public User(String name, String ppsNum, String mail, String pass, String address, long balance) {
 		this.name = name;
 		this.ppsNum = ppsNum;
 		this.mail = mail;
 		this.pass = pass;
 		this.address = address;
-		this.balance = balance;
-		// Initialize the list of transactions as a LinkedList
-		transactions = new LinkedList<>();
+		this.balances = new long[] { balance };
 	}
 	
 	// Getter methods to retrieve the user data
 	public String getMail() {
 		return mail;
 	}
-	public float getBalance() {
-		return balance;
+	// Balance in cents
+	public long getBalance() {
+		return (long) BALANCE.getVolatile(balances, balanceIndex);
 	}
 	public String getName() {
 		return name;
 	}
-	public Object getPpsNum() {
+	public String getPpsNum() {
 		return ppsNum;
 	}
 	public Object getPassword() {
@@ -45,34 +68,114 @@ public class User {
 	public Object getAddress() {
 		return address;
 	}
+	public ReentrantLock getLock() {
+		return lock;
+	}
 	
 	// Setter methods
-	public void setBalance(float f) {
-		this.balance = f;
+	public void setBalance(long cents) {
+		BALANCE.setVolatile(balances, balanceIndex, cents);
+	}
+	
+	// Adds cents to the balance with a compare-and-set loop and returns the new balance.
+	// Throws ArithmeticException, leaving the balance unchanged, if it would overflow, and
+	// IllegalArgumentException if the amount is not positive.
+	// Lock-free and allocation-free: a failed compare-and-set means another update succeeded.
+	public long lodge(long cents) {
+		requirePositive(cents);
+		long[] chunk = balances;
+		int index = balanceIndex;
+		while (true) {
+			long current = (long) BALANCE.getVolatile(chunk, index);
+			long updated = Money.add(current, cents);
+			if (BALANCE.compareAndSet(chunk, index, current, updated)) {
+				return updated;
+			}
+		}
+	}
+
+	// Takes cents from the balance if it holds at least that much and returns the new balance,
+	// or INSUFFICIENT_FUNDS, leaving the balance unchanged, if it does not.
+	// Throws IllegalArgumentException if the amount is not positive.
+	public long withdraw(long cents) {
+		requirePositive(cents);
+		long[] chunk = balances;
+		int index = balanceIndex;
+		while (true) {
+			long current = (long) BALANCE.getVolatile(chunk, index);
+			if (current < cents) {
+				return INSUFFICIENT_FUNDS;
+			}
+			long updated = Money.subtract(current, cents);
+			if (BALANCE.compareAndSet(chunk, index, current, updated)) {
+				return updated;
+			}
+		}
+	}
+
+	// Refuses an amount that would turn a lodgement into a withdrawal or the other way round
+	private static void requirePositive(long cents) {
+		if (cents <= 0) {
+			throw new IllegalArgumentException("Amount must be positive: " + cents);
+		}
+	}
+
+	// Moves the balance to the given index of a chunk of the balance column,
+	// called by the UserStore before the user can be found by anyone else,
+	// and to move it out of the column again if the user is not added
+	void moveBalance(long[] chunk, int index) {
+		chunk[index] = getBalance();
+		balances = chunk;
+		balanceIndex = index;
 	}
 	public void setPassword(String newPassword) {
 		this.pass = newPassword;
 	}
 	
-	// Method to authenticate the user based on the provided password
-	public boolean authenticate(String password) {
-		return pass.equals(password);
+	// Getter method to retrieve a copy of the list of transactions
+	public List<Transaction> getTransactions() {
+		return transactions == null ? new LinkedList<>() : new LinkedList<>(transactions);
 	}
 	
-	// Getter method to retrieve a copy of the list of transactions
-	public List<String> getTransactions() {
-		return new LinkedList<>(transactions);
+	// Getter method to retrieve a copy of the transactions from the given index onwards
+	public List<Transaction> getTransactionsSince(int from) {
+		return transactions == null ? new ArrayList<>() : new ArrayList<>(transactions.subList(from, transactions.size()));
 	}
 	
 	// Method to add transactions to the list
-	public void addTransaction(String transaction) {
+	public void addTransaction(Transaction transaction) {
+		if (transactions == null) {
+			// An ArrayList, so new entries can be found by index
+			transactions = new ArrayList<>();
+		}
 		transactions.add(transaction);
 	}
+	
+	// Getter and setter for the number of transactions already saved to file
+	public int getPersistedTransactions() {
+		return persistedTransactions;
+	}
+	public void setPersistedTransactions(int persistedTransactions) {
+		this.persistedTransactions = persistedTransactions;
+	}
+	// Getter and setter for the record of this account in the account table
+	public int getSlot() {
+		return slot;
+	}
+	public void setSlot(int slot) {
+		this.slot = slot;
+	}
 	// Override the toString() method to provide a custom string representation of the object
+	// Only the balance changes, so the rest of the text is built once and reused
 	@Override
 	public String toString() {
-		return String.format("Name: %s, PPS Number: %s, Email: %s, Address: %s, Balance: %.2f",
-				name.toUpperCase(), ppsNum, mail, address, balance);
+		String fixed = row;
+		if (fixed == null) {
+			fixed = "Name: " + name.toUpperCase() + ", PPS Number: " + ppsNum + ", Email: " + mail
+					+ ", Address: " + address + ", Balance: ";
+			row = fixed;
+		}
+		return Money.append(new StringBuilder(fixed.length() + 24).append(fixed), getBalance()).toString();
 	}
 
 
@@ -0,0 +1,107 @@
+/*
+ * The `UserDirectory` class keeps the users of a UserStore sorted by name and by email address,
+ * so the user listing can be searched by a prefix of either and read one page at a time.
+ * Each index is a concurrent skip list keyed by the lower-case name or email followed by the
+ * PPS number, which keeps the keys unique. A page starts after the key of the last row of the
+ * previous page, so finding it costs a skip list search however far into the listing it is.
+ * The keys are the same on every shard, so the entries of several shards can be merged by key
+ * into one page, see Library.getUserDirectory.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+public class UserDirectory {
+
+	// Separates the name or email of a key from the PPS number, sorting before any character
+	private static final char SEPARATOR = '\u0000';
+
+	// Users by lower-case name and by lower-case email address
+	private final ConcurrentSkipListMap<String, User> byName = new ConcurrentSkipListMap<>();
+	private final ConcurrentSkipListMap<String, User> byMail = new ConcurrentSkipListMap<>();
+
+	/**
+	 * One page of the directory: the formatted rows and the cursor to pass for the next page,
+	 * which is null when there are no more rows.
+	 */
+	public record Page(List<String> rows, String next) {
+	}
+
+	/**
+	 * One row of the directory with the index key it is sorted by.
+	 */
+	public record Entry(String key, String row) {
+	}
+
+	/**
+	 * Adds a registered user to both indexes.
+	 */
+	public void add(User user) {
+		byName.put(key(user.getName(), user), user);
+		byMail.put(key(user.getMail(), user), user);
+	}
+
+	/**
+	 * Returns a user with the given name, ignoring case, or null if there is none.
+	 * Names are not unique; the user with the lowest PPS number is returned.
+	 */
+	public User findByName(String name) {
+		String start = name.toLowerCase(Locale.ROOT) + SEPARATOR;
+		Map.Entry<String, User> entry = byName.ceilingEntry(start);
+		return entry != null && entry.getKey().startsWith(start) ? entry.getValue() : null;
+	}
+
+	/**
+	 * Returns up to limit users whose name starts with the prefix, or whose email address does
+	 * if the prefix contains '@', in alphabetical order. "*" matches every user.
+	 * The page starts after the given cursor, or at the first match if it is null.
+	 */
+	public Page find(String prefix, String after, int limit) {
+		// One more entry than shown tells whether there is a next page
+		return page(entries(prefix, after, limit + 1), limit);
+	}
+
+	/**
+	 * Returns up to limit entries matching the prefix after the given cursor, in key order,
+	 * as find selects them.
+	 */
+	public List<Entry> entries(String prefix, String after, int limit) {
+		boolean all = prefix.equals("*");
+		String start = all ? "" : prefix.toLowerCase(Locale.ROOT);
+		ConcurrentSkipListMap<String, User> index = !all && prefix.indexOf('@') >= 0 ? byMail : byName;
+		ConcurrentNavigableMap<String, User> from = after == null ? index.tailMap(start, true) : index.tailMap(after, false);
+
+		List<Entry> entries = new ArrayList<>(Math.min(limit, 64));
+		for (Map.Entry<String, User> entry : from.entrySet()) {
+			if (!entry.getKey().startsWith(start) || entries.size() == limit) {
+				// Past the last key with the prefix, or enough entries
+				break;
+			}
+			entries.add(new Entry(entry.getKey(), entry.getValue().toString()));
+		}
+		return entries;
+	}
+
+	/**
+	 * Makes the page of the first limit entries of a list sorted by key; the page has a next
+	 * cursor if the list holds more.
+	 */
+	public static Page page(List<Entry> entries, int limit) {
+		int shown = Math.min(limit, entries.size());
+		List<String> rows = new ArrayList<>(shown);
+		for (int i = 0; i < shown; i++) {
+			rows.add(entries.get(i).row());
+		}
+		String next = entries.size() > limit ? entries.get(limit - 1).key() : null;
+		return new Page(rows, next);
+	}
+
+	// Returns the index key of a user for the given name or email address
+	private static String key(String value, User user) {
+		return value.toLowerCase(Locale.ROOT) + SEPARATOR + user.getPpsNum();
+	}
+}
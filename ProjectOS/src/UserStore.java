@@ -0,0 +1,152 @@
+/*
+ * The `UserStore` class keeps the registered users of the `Library` in memory.
+ * Users are indexed by email address and by PPS number in concurrent hash maps, so a login
+ * or a recipient lookup is a single O(1) map access instead of a scan of every customer.
+ * The users and their balances are kept in AccountColumns in registration order, so that the
+ * user file and the user listing stay stable and a full scan walks contiguous arrays.
+ * A UserDirectory sorts them by name and email address for the paged user listing.
+ */
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class UserStore {
+
+	// Index of users by their email address
+	private final ConcurrentHashMap<String, User> usersByMail;
+	// Index of users by their PPS number
+	private final ConcurrentHashMap<String, User> usersByPps;
+	// All users and their balances in the order they were registered
+	private final AccountColumns accounts;
+	// Users sorted by name and by email address
+	private final UserDirectory directory;
+
+	public UserStore() {
+		usersByMail = new ConcurrentHashMap<>();
+		usersByPps = new ConcurrentHashMap<>();
+		accounts = new AccountColumns();
+		directory = new UserDirectory();
+	}
+
+	/**
+	 * Adds a user to the store if both the email address and the PPS number are unused.
+	 * The PPS number is claimed first with putIfAbsent, so the uniqueness check and the insert
+	 * are one atomic step. If the email address turns out to be taken, the PPS claim is released
+	 * again and false is returned.
+	 * The user's balance is moved into the balance column before the user can be found, so no
+	 * change to it can be lost; the slot of a user that is not added is released again.
+	 */
+	public boolean add(User user) {
+		if (!addUnlisted(user)) {
+			return false;
+		}
+		directory.add(user);
+		return true;
+	}
+
+	/**
+	 * Adds a user to the store as add does, but not to the directory, for the StartupLoader,
+	 * which fills the directory on other threads while it adds the next users.
+	 */
+	boolean addUnlisted(User user) {
+		int slot = accounts.reserve();
+		user.moveBalance(accounts.balanceChunk(slot), AccountColumns.offset(slot));
+		// Claim the PPS number, failing if another user already owns it
+		if (usersByPps.putIfAbsent(user.getPpsNum(), user) != null) {
+			release(user, slot);
+			return false;
+		}
+		// Claim the email address, releasing the PPS number if it is already taken
+		if (usersByMail.putIfAbsent(user.getMail(), user) != null) {
+			usersByPps.remove(user.getPpsNum(), user);
+			release(user, slot);
+			return false;
+		}
+		// Both keys are unique, record the registration order
+		accounts.setUser(slot, user);
+		return true;
+	}
+
+	// Gives back the slot of a user that was not added, moving its balance out of the column first
+	// so the user can not change the balance of the next one to get the slot
+	private void release(User user, int slot) {
+		user.moveBalance(new long[1], 0);
+		accounts.release(slot);
+	}
+
+	/**
+	 * Returns the user registered with the given email address, or null if there is none.
+	 */
+	public User findByMail(String mail) {
+		return usersByMail.get(mail);
+	}
+
+	/**
+	 * Returns the user registered with the given PPS number, or null if there is none.
+	 */
+	public User findByPps(String ppsNum) {
+		return usersByPps.get(ppsNum);
+	}
+
+	/**
+	 * Returns the users sorted by name and by email address.
+	 */
+	public UserDirectory directory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the number of registered users.
+	 */
+	public int size() {
+		return usersByPps.size();
+	}
+
+	/**
+	 * Returns a read-only view of all users in registration order.
+	 */
+	public Collection<User> users() {
+		return new AbstractCollection<User>() {
+			@Override
+			public Iterator<User> iterator() {
+				return new SlotIterator();
+			}
+
+			@Override
+			public int size() {
+				return UserStore.this.size();
+			}
+		};
+	}
+
+	/**
+	 * Walks the user column in slot order, skipping slots that hold no user.
+	 */
+	private final class SlotIterator implements Iterator<User> {
+		// Slots handed out when the iteration started
+		private final int end = accounts.size();
+		private int slot;
+		private User next;
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && slot < end) {
+				next = accounts.getUser(slot++);
+			}
+			return next != null;
+		}
+
+		@Override
+		public User next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			User user = next;
+			next = null;
+			return user;
+		}
+	}
+}
@@ -0,0 +1,314 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * The `WireCodec` class reads and writes the frames of the client/server protocol.
+ * Every frame is a 4-byte length, a 1-byte opcode and a payload:
+ *   TEXT      UTF-8 text of a prompt, reply or menu choice
+ *   LOGIN     email, password
+ *   LODGE     request id, amount
+ *   TRANSFER  request id, recipient email, recipient PPS number (account id), amount
+ *   RESULT    request id, status, resulting balance
+ *   SESSION   request id                    asks for a session token once logged in
+ *   TOKEN     request id, status, token     the reply to SESSION
+ *   RESUME    session token                 logs in with a token instead of the password
+ * The interactive client can also send SESSION in place of a choice of the logged-in menu, and
+ * RESUME in place of a choice of the main menu. RESUME is answered with a RESULT frame, and a
+ * resumed session goes back to the interactive menu or the pipeline its token was issued in; if
+ * the token is refused the connection stays at the main menu, which is sent again.
+ * Strings inside typed frames are a 2-byte length followed by UTF-8; amounts are fixed-point
+ * longs in cents. The same file is used by the server and by the client.
+ * Written frames are buffered and only sent on flush or when a read would have to wait, so all
+ * the frames written before waiting for a reply go out together, and a pipelining client's
+ * results are sent in batches while its requests keep arriving.
+ */
+public class WireCodec {
+
+	public static final byte TEXT = 1;
+	public static final byte LOGIN = 2;
+	public static final byte LODGE = 3;
+	public static final byte TRANSFER = 4;
+	public static final byte RESULT = 5;
+	public static final byte SESSION = 6;
+	public static final byte TOKEN = 7;
+	public static final byte RESUME = 8;
+
+	// Result statuses
+	public static final byte OK = 0;
+	public static final byte INSUFFICIENT_FUNDS = 1;
+	public static final byte RECIPIENT_NOT_FOUND = 2;
+	public static final byte INVALID_REQUEST = 3;
+	public static final byte NOT_LOGGED_IN = 4;
+	// A transfer to another shard that has left the sender but is not yet credited
+	public static final byte PENDING = 5;
+	// A login whose password could not be checked as too many were waiting, it may be sent again
+	public static final byte BUSY = 6;
+
+	// Largest frame accepted, so a corrupt length can not exhaust memory
+	private static final int MAX_FRAME = 16 * 1024 * 1024;
+
+	private final DataInputStream in;
+	private final DataOutputStream out;
+
+	public WireCodec(InputStream input, OutputStream output) {
+		in = new DataInputStream(new BufferedInputStream(input));
+		out = new DataOutputStream(new BufferedOutputStream(output));
+	}
+
+	/**
+	 * One decoded frame. Only the fields used by its opcode are set.
+	 */
+	public static final class Frame {
+		public final byte opcode;
+		public final long id;
+		public final String text;
+		public final String mail;
+		public final String password;
+		public final String account;
+		public final long amount;
+		public final byte status;
+
+		Frame(byte opcode, long id, String text, String mail, String password, String account, long amount, byte status) {
+			this.opcode = opcode;
+			this.id = id;
+			this.text = text;
+			this.mail = mail;
+			this.password = password;
+			this.account = account;
+			this.amount = amount;
+			this.status = status;
+		}
+	}
+
+	/**
+	 * Buffers a text frame.
+	 */
+	public void writeText(String text) throws IOException {
+		out.write(text(text));
+	}
+
+	/**
+	 * Buffers an encoded frame.
+	 */
+	public void write(byte[] frame) throws IOException {
+		out.write(frame);
+	}
+
+	/**
+	 * Sends every buffered frame.
+	 */
+	public void flush() throws IOException {
+		out.flush();
+	}
+
+	/**
+	 * Reads the next text frame, sending the buffered frames if it has not arrived yet.
+	 */
+	public String readText() throws IOException {
+		Frame frame = read();
+		if (frame.opcode != TEXT) {
+			throw new StreamCorruptedException("Expected a text frame, got opcode " + frame.opcode);
+		}
+		return frame.text;
+	}
+
+	/**
+	 * Reads the next frame of any type, sending the buffered frames if it has not arrived yet.
+	 */
+	public Frame read() throws IOException {
+		// The peer may be waiting for the buffered frames before it sends anything more
+		if (!hasInput()) {
+			out.flush();
+		}
+		int length = in.readInt();
+		if (length < 1 || length > MAX_FRAME) {
+			throw new StreamCorruptedException("Invalid frame length " + length);
+		}
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+		ByteBuffer buffer = ByteBuffer.wrap(frame);
+		return decodePayload(buffer.get(), buffer);
+	}
+
+	/**
+	 * Returns true if some of the next frame has already arrived, so reading it will not wait
+	 * for the peer.
+	 */
+	public boolean hasInput() throws IOException {
+		return in.available() > 0;
+	}
+
+	/**
+	 * Sends the buffered frames and closes both streams.
+	 */
+	public void close() throws IOException {
+		// Close the output first so buffered frames are still sent
+		out.close();
+		in.close();
+	}
+
+	/**
+	 * Decodes the next complete frame from a buffer that is ready for reading.
+	 * Returns null and leaves the buffer unchanged if the frame has not fully arrived.
+	 */
+	public static Frame decode(ByteBuffer buffer) throws StreamCorruptedException {
+		if (buffer.remaining() < 4) {
+			return null;
+		}
+		int length = buffer.getInt(buffer.position());
+		if (length < 1 || length > MAX_FRAME) {
+			throw new StreamCorruptedException("Invalid frame length " + length);
+		}
+		if (buffer.remaining() < 4 + length) {
+			return null;
+		}
+		buffer.position(buffer.position() + 4);
+		// Decode from a view limited to this frame
+		ByteBuffer payload = buffer.slice(buffer.position(), length);
+		buffer.position(buffer.position() + length);
+		return decodePayload(payload.get(), payload);
+	}
+
+	// Decodes the payload of a frame with the given opcode
+	private static Frame decodePayload(byte opcode, ByteBuffer payload) throws StreamCorruptedException {
+		try {
+			switch (opcode) {
+				case TEXT:
+					String text = StandardCharsets.UTF_8.decode(payload).toString();
+					return new Frame(opcode, 0, text, null, null, null, 0, OK);
+				case LOGIN:
+					String mail = getString(payload);
+					return new Frame(opcode, 0, null, mail, getString(payload), null, 0, OK);
+				case LODGE:
+					long lodgeId = payload.getLong();
+					return new Frame(opcode, lodgeId, null, null, null, null, payload.getLong(), OK);
+				case TRANSFER:
+					long transferId = payload.getLong();
+					String recipientMail = getString(payload);
+					String recipientAccount = getString(payload);
+					return new Frame(opcode, transferId, null, recipientMail, null, recipientAccount, payload.getLong(), OK);
+				case RESULT:
+					long resultId = payload.getLong();
+					byte status = payload.get();
+					return new Frame(opcode, resultId, null, null, null, null, payload.getLong(), status);
+				case SESSION:
+					return new Frame(opcode, payload.getLong(), null, null, null, null, 0, OK);
+				case TOKEN:
+					long tokenId = payload.getLong();
+					byte tokenStatus = payload.get();
+					return new Frame(opcode, tokenId, getString(payload), null, null, null, 0, tokenStatus);
+				case RESUME:
+					return new Frame(opcode, 0, getString(payload), null, null, null, 0, OK);
+				default:
+					throw new StreamCorruptedException("Unknown opcode " + opcode);
+			}
+		} catch (RuntimeException e) {
+			// The payload was shorter than its opcode requires
+			throw new StreamCorruptedException("Truncated frame with opcode " + opcode);
+		}
+	}
+
+	/**
+	 * Encodes a text frame.
+	 */
+	public static byte[] text(String text) {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		return frame(TEXT, bytes.length).put(bytes).array();
+	}
+
+	/**
+	 * Encodes a login request.
+	 */
+	public static byte[] login(String mail, String password) {
+		byte[] mailBytes = mail.getBytes(StandardCharsets.UTF_8);
+		byte[] passwordBytes = password.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = frame(LOGIN, 4 + mailBytes.length + passwordBytes.length);
+		putString(frame, mailBytes);
+		putString(frame, passwordBytes);
+		return frame.array();
+	}
+
+	/**
+	 * Encodes a lodgement request of an amount in cents.
+	 */
+	public static byte[] lodge(long id, long amount) {
+		return frame(LODGE, 16).putLong(id).putLong(amount).array();
+	}
+
+	/**
+	 * Encodes a transfer request of an amount in cents.
+	 */
+	public static byte[] transfer(long id, String recipientMail, String recipientAccount, long amount) {
+		byte[] mailBytes = recipientMail.getBytes(StandardCharsets.UTF_8);
+		byte[] accountBytes = recipientAccount.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = frame(TRANSFER, 8 + 4 + mailBytes.length + accountBytes.length + 8);
+		frame.putLong(id);
+		putString(frame, mailBytes);
+		putString(frame, accountBytes);
+		return frame.putLong(amount).array();
+	}
+
+	/**
+	 * Encodes the result of a request, with the resulting balance in cents.
+	 */
+	public static byte[] result(long id, byte status, long balance) {
+		return frame(RESULT, 17).putLong(id).put(status).putLong(balance).array();
+	}
+
+	/**
+	 * Encodes a request for a session token.
+	 */
+	public static byte[] session(long id) {
+		return frame(SESSION, 8).putLong(id).array();
+	}
+
+	/**
+	 * Encodes the reply to a session request, with an empty token if it was refused.
+	 */
+	public static byte[] token(long id, byte status, String token) {
+		byte[] tokenBytes = token.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = frame(TOKEN, 8 + 1 + 2 + tokenBytes.length).putLong(id).put(status);
+		putString(frame, tokenBytes);
+		return frame.array();
+	}
+
+	/**
+	 * Encodes a login with a session token.
+	 */
+	public static byte[] resume(String token) {
+		byte[] tokenBytes = token.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer frame = frame(RESUME, 2 + tokenBytes.length);
+		putString(frame, tokenBytes);
+		return frame.array();
+	}
+
+	// Allocates a frame with its length and opcode written
+	private static ByteBuffer frame(byte opcode, int payloadLength) {
+		ByteBuffer frame = ByteBuffer.allocate(4 + 1 + payloadLength);
+		return frame.putInt(1 + payloadLength).put(opcode);
+	}
+
+	// Writes a string as a 2-byte length and its UTF-8 bytes, refusing one that is too long for it
+	private static void putString(ByteBuffer frame, byte[] bytes) {
+		if (bytes.length > 0xFFFF) {
+			throw new IllegalArgumentException("String of " + bytes.length + " bytes is longer than a frame allows");
+		}
+		frame.putShort((short) bytes.length).put(bytes);
+	}
+
+	// Reads a string written by putString
+	private static String getString(ByteBuffer payload) {
+		int length = payload.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+		payload.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}